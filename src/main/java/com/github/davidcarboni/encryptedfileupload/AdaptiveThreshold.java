@@ -0,0 +1,422 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses the size threshold for items of an {@link EncryptedFileItemFactory}
+ * from the sizes of the items it has seen.
+ *
+ * Part sizes are recorded in a histogram with four buckets per power of two,
+ * whose counts are halved periodically so that it follows changes in the
+ * traffic. The threshold is the size that minimises an estimate of the cost
+ * of handling the recorded parts: each byte held in memory costs one unit,
+ * an item that exceeds the threshold holds the threshold's worth of memory
+ * before it spills, and each spill to disk costs a configurable number of
+ * units. The threshold is kept within configured bounds.
+ *
+ * Sizes may be partitioned by content type or field name, so that, for
+ * example, small form fields and large file parts get thresholds of their
+ * own. A partition uses the overall threshold until it has enough samples.
+ */
+public class AdaptiveThreshold {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * How sizes are partitioned.
+     */
+    public enum Partition {
+        /**
+         * One threshold for all items.
+         */
+        NONE,
+        /**
+         * A threshold per content type.
+         */
+        CONTENT_TYPE,
+        /**
+         * A threshold per form field name.
+         */
+        FIELD_NAME
+    }
+
+    /**
+     * The default cost of spilling an item to disk, in bytes of memory.
+     */
+    public static final long DEFAULT_SPILL_COST = 64 * 1024;
+
+    /**
+     * The number of samples needed before a threshold is computed.
+     */
+    public static final int DEFAULT_MIN_SAMPLES = 100;
+
+    /**
+     * The number of threshold changes kept in the history.
+     */
+    public static final int HISTORY_SIZE = 100;
+
+    /**
+     * The most partitions tracked. Part headers are chosen by clients, so
+     * sizes with further content types or field names count only towards
+     * the overall threshold.
+     */
+    public static final int MAX_PARTITIONS = 64;
+
+    /**
+     * The number of samples between threshold computations.
+     */
+    static final int RECOMPUTE_INTERVAL = 100;
+
+    /**
+     * The number of samples after which histogram counts are halved.
+     */
+    static final int DECAY_INTERVAL = 10000;
+
+    /**
+     * Histogram buckets per power of two.
+     */
+    private static final int BUCKETS_PER_OCTAVE = 4;
+
+    /**
+     * Histogram buckets, enough for sizes up to 2^31.
+     */
+    private static final int BUCKETS = 32 * BUCKETS_PER_OCTAVE;
+
+    // ----------------------------------------------------- Instance Variables
+
+    private final int initialThreshold;
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final long spillCost;
+    private final Partition partition;
+    private final int minSamples;
+
+    /**
+     * The model of all sizes.
+     */
+    private final Model overall = new Model(null);
+
+    /**
+     * The models of each partition.
+     */
+    private final ConcurrentMap<String, Model> partitions = new ConcurrentHashMap<String, Model>();
+
+    /**
+     * Recent threshold changes, oldest first.
+     */
+    private final Deque<Change> history = new ArrayDeque<Change>();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs an instance with one threshold for all items.
+     *
+     * @param initialThreshold The threshold until enough sizes are seen.
+     * @param minThreshold     The lowest threshold to choose.
+     * @param maxThreshold     The highest threshold to choose.
+     */
+    public AdaptiveThreshold(int initialThreshold, int minThreshold, int maxThreshold) {
+        this(initialThreshold, minThreshold, maxThreshold, DEFAULT_SPILL_COST, Partition.NONE, DEFAULT_MIN_SAMPLES);
+    }
+
+    /**
+     * Constructs an instance.
+     *
+     * @param initialThreshold The threshold until enough sizes are seen.
+     * @param minThreshold     The lowest threshold to choose.
+     * @param maxThreshold     The highest threshold to choose.
+     * @param spillCost        The cost of spilling an item to disk, as the
+     *                         number of bytes of memory it is worth holding
+     *                         to avoid one spill.
+     * @param partition        How to partition sizes.
+     * @param minSamples       The number of sizes to see before computing a
+     *                         threshold, overall or for a partition.
+     */
+    public AdaptiveThreshold(int initialThreshold, int minThreshold, int maxThreshold,
+                             long spillCost, Partition partition, int minSamples) {
+        if (minThreshold < 0 || minThreshold > maxThreshold
+                || initialThreshold < minThreshold || initialThreshold > maxThreshold) {
+            throw new IllegalArgumentException("Thresholds must satisfy 0 <= min <= initial <= max");
+        }
+        if (spillCost < 0 || minSamples < 1 || partition == null) {
+            throw new IllegalArgumentException("Invalid spill cost, sample count or partition");
+        }
+        this.initialThreshold = initialThreshold;
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.spillCost = spillCost;
+        this.partition = partition;
+        this.minSamples = minSamples;
+        overall.threshold = initialThreshold;
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Records the size of an item.
+     *
+     * @param contentType The content type of the item.
+     * @param fieldName   The field name of the item.
+     * @param size        The size of the item, in bytes.
+     */
+    public void record(String contentType, String fieldName, long size) {
+        record(key(contentType, fieldName), size);
+    }
+
+    /**
+     * @return The overall threshold.
+     */
+    public int getThreshold() {
+        return overall.threshold;
+    }
+
+    /**
+     * Returns the threshold for an item. This is the threshold of its
+     * partition, if there are enough samples for one, or the overall
+     * threshold otherwise.
+     *
+     * @param contentType The content type of the item.
+     * @param fieldName   The field name of the item.
+     * @return The threshold to use.
+     */
+    public int getThreshold(String contentType, String fieldName) {
+        return getThreshold(key(contentType, fieldName));
+    }
+
+    /**
+     * @return Recent changes to the thresholds, oldest first.
+     */
+    public List<Change> getHistory() {
+        synchronized (history) {
+            return Collections.unmodifiableList(new ArrayList<Change>(history));
+        }
+    }
+
+    /**
+     * @return The number of sizes recorded.
+     */
+    public long getSampleCount() {
+        return overall.samples;
+    }
+
+    /**
+     * @return The lowest threshold to choose.
+     */
+    public int getMinThreshold() {
+        return minThreshold;
+    }
+
+    /**
+     * @return The highest threshold to choose.
+     */
+    public int getMaxThreshold() {
+        return maxThreshold;
+    }
+
+    /**
+     * @return How sizes are partitioned.
+     */
+    public Partition getPartition() {
+        return partition;
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Returns the partition of an item.
+     *
+     * @param contentType The content type of the item.
+     * @param fieldName   The field name of the item.
+     * @return The partition key, or <code>null</code> if sizes are not
+     * partitioned.
+     */
+    String key(String contentType, String fieldName) {
+        switch (partition) {
+            case CONTENT_TYPE:
+                return String.valueOf(contentType);
+            case FIELD_NAME:
+                return String.valueOf(fieldName);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the threshold for a partition.
+     *
+     * @param key The partition key, or <code>null</code>.
+     * @return The threshold to use.
+     */
+    int getThreshold(String key) {
+        if (key != null) {
+            Model model = partitions.get(key);
+            if (model != null && model.samples >= minSamples) {
+                return model.threshold;
+            }
+        }
+        return overall.threshold;
+    }
+
+    /**
+     * Records the size of an item.
+     *
+     * @param key  The partition key, or <code>null</code>.
+     * @param size The size of the item, in bytes.
+     */
+    void record(String key, long size) {
+        overall.record(size);
+        if (key != null) {
+            Model model = partitions.get(key);
+            if (model == null && partitions.size() < MAX_PARTITIONS) {
+                Model created = new Model(key);
+                created.threshold = initialThreshold;
+                model = partitions.putIfAbsent(key, created);
+                if (model == null) {
+                    model = created;
+                }
+            }
+            if (model != null) {
+                model.record(size);
+            }
+        }
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * @return The histogram bucket for a size.
+     */
+    private static int bucket(long size) {
+        if (size <= 1) {
+            return 0;
+        }
+        int index = (int) Math.ceil(Math.log(size) / Math.log(2) * BUCKETS_PER_OCTAVE);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * @return The largest size in a histogram bucket.
+     */
+    private static long bucketSize(int bucket) {
+        return (long) Math.floor(Math.pow(2, (double) bucket / BUCKETS_PER_OCTAVE));
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * The histogram of sizes seen overall or in one partition.
+     */
+    private final class Model {
+
+        private final String key;
+        private final double[] counts = new double[BUCKETS];
+        private volatile long samples;
+        private volatile int threshold;
+
+        Model(String key) {
+            this.key = key;
+        }
+
+        synchronized void record(long size) {
+            counts[bucket(size)]++;
+            samples++;
+            if (samples % DECAY_INTERVAL == 0) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] /= 2;
+                }
+            }
+            if (samples >= minSamples && samples % RECOMPUTE_INTERVAL == 0) {
+                int chosen = choose();
+                if (chosen != threshold) {
+                    threshold = chosen;
+                    synchronized (history) {
+                        if (history.size() == HISTORY_SIZE) {
+                            history.removeFirst();
+                        }
+                        history.addLast(new Change(System.currentTimeMillis(), key, chosen));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The candidate threshold with the lowest estimated cost.
+         */
+        private int choose() {
+            // Items in buckets up to b stay in memory; the rest hold the
+            // threshold's worth of memory and then spill:
+            double below = 0;
+            double above = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                above += counts[i];
+            }
+            long best = minThreshold;
+            double bestCost = Double.MAX_VALUE;
+            for (int b = -1; b < BUCKETS; b++) {
+                if (b >= 0) {
+                    below += counts[b] * bucketSize(b);
+                    above -= counts[b];
+                }
+                long candidate = b < 0 ? minThreshold : bucketSize(b);
+                if (candidate < minThreshold || candidate > maxThreshold) {
+                    continue;
+                }
+                double cost = below + above * (candidate + spillCost);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = candidate;
+                }
+            }
+            return (int) best;
+        }
+    }
+
+    /**
+     * A change to a threshold.
+     */
+    public static final class Change {
+
+        private final long time;
+        private final String key;
+        private final int threshold;
+
+        Change(long time, String key, int threshold) {
+            this.time = time;
+            this.key = key;
+            this.threshold = threshold;
+        }
+
+        /**
+         * @return When the threshold changed, in milliseconds since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The partition whose threshold changed, or <code>null</code>
+         * for the overall threshold.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The new threshold.
+         */
+        public int getThreshold() {
+            return threshold;
+        }
+
+        @Override
+        public String toString() {
+            return (key == null ? "overall" : key) + " -> " + threshold + " at " + time;
+        }
+    }
+}
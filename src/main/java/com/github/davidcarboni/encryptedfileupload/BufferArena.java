@@ -0,0 +1,434 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed-size chunks for the in-memory tier of
+ * {@link EncryptedDeferredOutputStream}.
+ *
+ * Items borrow chunks as they are written and return them when they are
+ * deleted or spill to disk, or once the last stream reading them is closed,
+ * so that high rates of small uploads reuse the
+ * same buffers instead of allocating new ones for every request.
+ *
+ * An arena constructed with an off-heap budget allocates direct chunks, so
+ * that data held by slow requests do not accumulate in the old generation.
+ * Direct memory is only given back to the operating system by the garbage
+ * collector, so the arena bounds it: once the budget is in use, further
+ * chunks are allocated on the heap. Direct chunks that the arena lets go of,
+ * rather than keeping them free, go on counting against the budget until the
+ * garbage collector has found them unreachable, since until then their
+ * memory has not been given back; they are reported as outstanding. Items
+ * should be deleted when they are no longer needed so that their chunks
+ * return to the arena; chunks of items that are garbage collected without
+ * being deleted are counted as leaks.
+ */
+public class BufferArena {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default size of a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /**
+     * The default maximum number of free chunks held by the arena.
+     */
+    public static final int DEFAULT_MAX_FREE = 1024;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The size of each chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * The maximum number of free chunks held by the arena.
+     */
+    private final int maxFree;
+
+    /**
+     * Chunks that are ready to be borrowed.
+     */
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * The most direct memory this arena may allocate, or zero for heap chunks.
+     */
+    private final long offHeapBudget;
+
+    /**
+     * The direct memory allocated by this arena and not yet collected.
+     */
+    private final AtomicLong offHeapBytes = new AtomicLong();
+
+    /**
+     * The direct memory of chunks dropped by this arena and not yet collected.
+     */
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    /**
+     * Phantom references to the direct chunks dropped by this arena, which
+     * are queued once the chunks have been collected.
+     */
+    private final Set<Reference<ByteBuffer>> dropped = Collections.newSetFromMap(new ConcurrentHashMap<Reference<ByteBuffer>, Boolean>());
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * Chunks lent to readers, which are queued once the readers have been
+     * collected without returning them.
+     */
+    private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+    private final ReferenceQueue<Object> unreachable = new ReferenceQueue<Object>();
+
+    /**
+     * Number of chunks borrowed and not yet returned.
+     */
+    private final AtomicLong inUse = new AtomicLong();
+
+    /**
+     * Number of chunks allocated on the heap because the off-heap budget
+     * was in use.
+     */
+    private final AtomicLong heapFallbacks = new AtomicLong();
+
+    /**
+     * Number of chunks abandoned without being returned.
+     */
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * Number of chunks allocated because none were free.
+     */
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Number of free chunks handed out again.
+     */
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Number of chunks returned to the arena.
+     */
+    private final AtomicLong returns = new AtomicLong();
+
+    /**
+     * Number of returned chunks dropped because the arena was full.
+     */
+    private final AtomicLong discards = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs an arena of {@link #DEFAULT_CHUNK_SIZE} byte chunks,
+     * holding up to {@link #DEFAULT_MAX_FREE} free chunks.
+     */
+    public BufferArena() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_FREE);
+    }
+
+    /**
+     * Constructs an arena.
+     *
+     * @param chunkSize The size of each chunk, in bytes.
+     * @param maxFree   The maximum number of free chunks to hold. Chunks
+     *                  returned beyond this are left to the garbage collector.
+     */
+    public BufferArena(int chunkSize, int maxFree) {
+        this(chunkSize, maxFree, 0);
+    }
+
+    /**
+     * Constructs an arena that allocates chunks off the heap.
+     *
+     * @param chunkSize     The size of each chunk, in bytes.
+     * @param maxFree       The maximum number of free chunks to hold. Chunks
+     *                      returned beyond this are left to the garbage
+     *                      collector.
+     * @param offHeapBudget The most direct memory to allocate, in bytes, or
+     *                      zero to allocate chunks on the heap.
+     */
+    public BufferArena(int chunkSize, int maxFree, long offHeapBudget) {
+        if (chunkSize < 1 || maxFree < 1) {
+            throw new IllegalArgumentException("Chunk size and free chunk limit must be positive");
+        }
+        if (offHeapBudget < 0) {
+            throw new IllegalArgumentException("Off-heap budget must not be negative");
+        }
+        this.chunkSize = chunkSize;
+        this.maxFree = maxFree;
+        this.offHeapBudget = offHeapBudget;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(maxFree);
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The size of each chunk, in bytes.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The maximum number of free chunks held by the arena.
+     */
+    public int getMaxFree() {
+        return maxFree;
+    }
+
+    /**
+     * @return <code>true</code> if this arena allocates chunks off the heap.
+     */
+    public boolean isOffHeap() {
+        return offHeapBudget > 0;
+    }
+
+    /**
+     * @return The most direct memory this arena may allocate, in bytes.
+     */
+    public long getOffHeapBudget() {
+        return offHeapBudget;
+    }
+
+    /**
+     * @return The direct memory allocated by this arena, in bytes, whether
+     * borrowed, free or outstanding.
+     */
+    public long getOffHeapBytes() {
+        expunge();
+        return offHeapBytes.get();
+    }
+
+    /**
+     * @return The direct memory of chunks that this arena no longer holds,
+     * because they were forgotten, abandoned or discarded, but that the
+     * garbage collector has not yet found unreachable, in bytes.
+     */
+    public long getOutstandingBytes() {
+        expunge();
+        return outstandingBytes.get();
+    }
+
+    /**
+     * @return The number of chunks borrowed and not yet returned.
+     */
+    public long getInUseCount() {
+        expunge();
+        return inUse.get();
+    }
+
+    /**
+     * @return The number of chunks allocated on the heap because the
+     * off-heap budget was in use.
+     */
+    public long getHeapFallbackCount() {
+        return heapFallbacks.get();
+    }
+
+    /**
+     * @return The number of chunks that belonged to items garbage collected
+     * without being deleted.
+     */
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    /**
+     * @return The number of chunks waiting to be borrowed.
+     */
+    public int getFreeCount() {
+        return free.size();
+    }
+
+    /**
+     * @return The number of chunks allocated because none were free.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return The number of times a free chunk was handed out again.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return The number of chunks returned to the arena.
+     */
+    public long getReturnCount() {
+        return returns.get();
+    }
+
+    /**
+     * @return The number of returned chunks dropped because the arena was full.
+     */
+    public long getDiscardCount() {
+        return discards.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Borrows an empty chunk.
+     *
+     * @return A chunk whose position is zero and limit is its capacity.
+     */
+    ByteBuffer allocate() {
+        expunge();
+        inUse.incrementAndGet();
+        ByteBuffer chunk = free.poll();
+        if (chunk != null) {
+            reuses.incrementAndGet();
+            return chunk;
+        }
+        allocations.incrementAndGet();
+        if (isOffHeap()) {
+            if (offHeapBytes.addAndGet(chunkSize) <= offHeapBudget) {
+                return ByteBuffer.allocateDirect(chunkSize);
+            }
+            offHeapBytes.addAndGet(-chunkSize);
+            heapFallbacks.incrementAndGet();
+        }
+        return ByteBuffer.allocate(chunkSize);
+    }
+
+    /**
+     * Returns a chunk borrowed from this arena. The caller must not use
+     * the chunk afterwards.
+     *
+     * @param chunk The chunk to return.
+     */
+    void release(ByteBuffer chunk) {
+        inUse.decrementAndGet();
+        chunk.clear();
+        if (isOffHeap() && !chunk.isDirect()) {
+            // A heap fallback: keep the free list for direct chunks
+            discards.incrementAndGet();
+        } else if (free.offer(chunk)) {
+            returns.incrementAndGet();
+        } else {
+            drop(chunk);
+            discards.incrementAndGet();
+        }
+    }
+
+    /**
+     * Accounts for a chunk that will not be returned, because the item that
+     * borrowed it was garbage collected without being deleted. The chunk is
+     * left to the garbage collector rather than reused, since views of it
+     * may still be reachable.
+     *
+     * @param chunk The abandoned chunk.
+     */
+    void abandon(ByteBuffer chunk) {
+        leaks.incrementAndGet();
+        forget(chunk);
+    }
+
+    /**
+     * Accounts for a chunk that will not be returned because its data may
+     * still be read, and is left to the garbage collector instead.
+     *
+     * @param chunk The chunk.
+     */
+    void forget(ByteBuffer chunk) {
+        inUse.decrementAndGet();
+        drop(chunk);
+    }
+
+    /**
+     * Lends borrowed chunks, whose owner is done with them, to readers that
+     * are still reading them. The chunks are returned to the arena when the
+     * lease is ended, or when the given holder, through which the readers
+     * reach the chunks, has been garbage collected.
+     *
+     * @param holder The object through which the readers reach the chunks.
+     *               It must not be reachable from the lease.
+     * @param chunks The chunks.
+     * @return The lease, to be ended once the last reader is done.
+     */
+    Lease lend(Object holder, List<ByteBuffer> chunks) {
+        Lease lease = new Lease(holder, chunks);
+        leases.add(lease);
+        return lease;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Leaves a chunk to the garbage collector. A direct chunk goes on being
+     * counted, as outstanding, until it has been collected, since views of
+     * it may keep it reachable for some time yet.
+     */
+    private void drop(ByteBuffer chunk) {
+        if (chunk.isDirect()) {
+            outstandingBytes.addAndGet(chunkSize);
+            dropped.add(new PhantomReference<ByteBuffer>(chunk, collected));
+        }
+    }
+
+    /**
+     * Stops counting dropped chunks that have been collected, and takes back
+     * chunks lent to readers that have been collected.
+     */
+    private void expunge() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            if (dropped.remove(reference)) {
+                outstandingBytes.addAndGet(-chunkSize);
+                offHeapBytes.addAndGet(-chunkSize);
+            }
+        }
+        Reference<?> holder;
+        while ((holder = unreachable.poll()) != null) {
+            ((Lease) holder).end();
+        }
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * Chunks lent to readers after their owner was done with them.
+     */
+    final class Lease extends PhantomReference<Object> {
+
+        private List<ByteBuffer> chunks;
+
+        Lease(Object holder, List<ByteBuffer> chunks) {
+            super(holder, unreachable);
+            this.chunks = chunks;
+        }
+
+        /**
+         * Returns the chunks to the arena, if they have not been already.
+         */
+        void end() {
+            List<ByteBuffer> lent;
+            synchronized (this) {
+                lent = chunks;
+                chunks = null;
+            }
+            if (lent != null) {
+                leases.remove(this);
+                for (ByteBuffer chunk : lent) {
+                    release(chunk);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The in-memory tier of {@link EncryptedDeferredOutputStream}: an output
+ * stream that collects data in a list of chunks.
+ *
+ * Chunks are borrowed from a {@link BufferArena}, if one is given, and
+ * returned to it by {@link #release()}. Streams opened on the chunks are
+ * counted, and if any are still open when the buffer is released, the chunks
+ * are only returned once the last of them has been closed or read to the end,
+ * or else has been garbage collected. Views of the chunks handed out by
+ * {@link #asReadOnlyBuffers()} cannot be tracked, so chunks that have been
+ * viewed are never returned. Otherwise chunks are allocated here,
+ * each as large as all the previous ones together, as the commons-io
+ * {@code ByteArrayOutputStream} does, starting with a chunk of the expected
+ * size if one is given.
+ */
+final class ChunkBuffer extends OutputStream {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The size of the first chunk, when there is no arena.
+     */
+    private static final int INITIAL_CHUNK_SIZE = 1024;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The arena from which chunks are borrowed, or <code>null</code>.
+     */
+    private final BufferArena arena;
+
+    /**
+     * The size of the first chunk, when there is no arena.
+     */
+    private final int initialCapacity;
+
+    /**
+     * The chunks, each filled up to its position.
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * The chunk being written.
+     */
+    private ByteBuffer current;
+
+    /**
+     * The number of bytes written.
+     */
+    private int size;
+
+    /**
+     * True once views of the chunks have been handed out.
+     */
+    private boolean shared;
+
+    /**
+     * The number of streams reading the chunks.
+     */
+    private int readers;
+
+    /**
+     * The loan of the chunks to readers still open when the buffer was
+     * released, or <code>null</code>.
+     */
+    private BufferArena.Lease lease;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * @param arena           The arena from which to borrow chunks, or
+     *                        <code>null</code>.
+     * @param initialCapacity The expected size of the data, or zero if
+     *                        unknown. This is ignored if there is an arena.
+     */
+    ChunkBuffer(BufferArena arena, int initialCapacity) {
+        this.arena = arena;
+        this.initialCapacity = initialCapacity > 0 ? initialCapacity : INITIAL_CHUNK_SIZE;
+    }
+
+    // --------------------------------------------------- OutputStream methods
+
+    @Override
+    public void write(int b) {
+        if (current == null || !current.hasRemaining()) {
+            nextChunk();
+        }
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * @return The number of bytes written.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the data written. If they fill exactly one chunk that was not
+     * borrowed, the chunk's array is returned; otherwise the data are copied.
+     *
+     * @return The data written.
+     */
+    byte[] toByteArray() {
+        if (arena == null && chunks.size() == 1) {
+            ByteBuffer chunk = chunks.get(0);
+            if (chunk.hasArray() && chunk.arrayOffset() == 0 && chunk.position() == chunk.array().length) {
+                return chunk.array();
+            }
+        }
+        byte[] result = new byte[size];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer data = (ByteBuffer) chunk.duplicate().flip();
+            int n = data.remaining();
+            data.get(result, offset, n);
+            offset += n;
+        }
+        return result;
+    }
+
+    /**
+     * Returns read-only views of the data written so far, one per chunk,
+     * without copying them. The views see the chunks themselves, which are
+     * then never returned to the arena, so that they cannot be reused by
+     * another buffer while a view of them is being read.
+     *
+     * @return The data, in order.
+     */
+    synchronized List<ByteBuffer> asReadOnlyBuffers() {
+        shared = true;
+        return views();
+    }
+
+    /**
+     * Opens the data written so far for reading, straight from the chunks.
+     * The chunks are not returned to the arena until the stream has been
+     * closed or read to the end.
+     *
+     * @return A stream of the data.
+     */
+    synchronized InputStream openInputStream() {
+        readers++;
+        return new ChunkInputStream(views());
+    }
+
+    /**
+     * Writes the data written so far to the given channel.
+     *
+     * @param channel The channel to write to.
+     * @return The number of bytes written.
+     * @throws IOException if an error occurs.
+     */
+    long writeTo(WritableByteChannel channel) throws IOException {
+        List<ByteBuffer> buffers;
+        synchronized (this) {
+            readers++;
+            buffers = views();
+        }
+        try {
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                total += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return total;
+        } finally {
+            readerClosed();
+        }
+    }
+
+    /**
+     * Writes the data written so far to the given stream.
+     *
+     * @param out The stream to write to.
+     * @throws IOException if an error occurs.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        byte[] copy = null;
+        for (ByteBuffer chunk : chunks) {
+            if (chunk.hasArray()) {
+                out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+            } else {
+                // Direct chunks are copied out through a single array
+                ByteBuffer data = (ByteBuffer) chunk.duplicate().flip();
+                if (copy == null) {
+                    copy = new byte[chunk.capacity()];
+                }
+                int n = data.remaining();
+                data.get(copy, 0, n);
+                out.write(copy, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Discards the data, returning borrowed chunks to the arena. If streams
+     * of the chunks are still open, the chunks are lent to them and returned
+     * once the last has been closed. If views of the chunks have been handed
+     * out, the chunks are forgotten instead, as {@link #forget()} does, so
+     * that the views go on reading these data rather than whatever is written
+     * to the chunks next.
+     */
+    synchronized void release() {
+        if (arena != null && !chunks.isEmpty()) {
+            if (shared) {
+                for (ByteBuffer chunk : chunks) {
+                    arena.forget(chunk);
+                }
+            } else if (readers > 0) {
+                lease = arena.lend(this, new ArrayList<ByteBuffer>(chunks));
+            } else {
+                for (ByteBuffer chunk : chunks) {
+                    arena.release(chunk);
+                }
+            }
+        }
+        chunks.clear();
+        current = null;
+        size = 0;
+    }
+
+    /**
+     * Stops accounting for borrowed chunks without returning them to the
+     * arena, so that they are left to the garbage collector. The data remain
+     * readable through this buffer and its views, which is what makes this
+     * safe while other threads may still be reading them.
+     */
+    synchronized void forget() {
+        if (arena != null) {
+            for (ByteBuffer chunk : chunks) {
+                arena.forget(chunk);
+            }
+        }
+    }
+
+    /**
+     * Discards the data without returning borrowed chunks to the arena,
+     * which counts them as leaked. This is for buffers whose owner was
+     * garbage collected without releasing them.
+     */
+    synchronized void abandon() {
+        if (arena != null) {
+            for (ByteBuffer chunk : chunks) {
+                arena.abandon(chunk);
+            }
+        }
+        chunks.clear();
+        current = null;
+        size = 0;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * @return Read-only views of the data written so far, one per chunk.
+     */
+    private List<ByteBuffer> views() {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            buffers.add((ByteBuffer) chunk.asReadOnlyBuffer().flip());
+        }
+        return Collections.unmodifiableList(buffers);
+    }
+
+    /**
+     * Counts a stream of the chunks as finished with, returning the chunks
+     * to the arena if the buffer has been released and this was the last.
+     */
+    private synchronized void readerClosed() {
+        readers--;
+        if (readers == 0 && lease != null) {
+            lease.end();
+            lease = null;
+        }
+    }
+
+    private void nextChunk() {
+        if (arena != null) {
+            current = arena.allocate();
+        } else {
+            current = ByteBuffer.allocate(chunks.isEmpty() ? initialCapacity : size);
+        }
+        chunks.add(current);
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * Reads a list of views of the chunks in turn, and counts itself as
+     * finished with them once it has been closed or read to the end.
+     */
+    private final class ChunkInputStream extends InputStream {
+
+        private final List<ByteBuffer> buffers;
+        private int index;
+        private boolean finished;
+
+        ChunkInputStream(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = next();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = next();
+            if (buffer == null) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            if (finished) {
+                return 0;
+            }
+            int available = 0;
+            for (int i = index; i < buffers.size(); i++) {
+                available += buffers.get(i).remaining();
+            }
+            return available;
+        }
+
+        @Override
+        public void close() {
+            finish();
+        }
+
+        /**
+         * @return The first buffer with data remaining, or <code>null</code>
+         * at the end of the data.
+         */
+        private ByteBuffer next() {
+            while (!finished && index < buffers.size()) {
+                ByteBuffer buffer = buffers.get(index);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                index++;
+            }
+            finish();
+            return null;
+        }
+
+        /**
+         * Stops reading the chunks, which may then be reused.
+         */
+        private synchronized void finish() {
+            if (!finished) {
+                finished = true;
+                readerClosed();
+            }
+        }
+    }
+}
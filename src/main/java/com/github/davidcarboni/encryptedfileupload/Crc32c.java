@@ -0,0 +1,106 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.security.MessageDigest;
+
+/**
+ * Computes the CRC-32C (Castagnoli) checksum, as used by iSCSI, ext4 and
+ * cloud object stores, in the form of a {@link MessageDigest} so that it
+ * can be computed alongside cryptographic digests. The digest is the four
+ * bytes of the checksum, most significant first.
+ *
+ * The checksum is computed eight bytes at a time with the slicing-by-8
+ * tables, which costs 8KB of tables shared by all instances.
+ */
+final class Crc32c extends MessageDigest implements Cloneable {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The name of the algorithm.
+     */
+    static final String ALGORITHM = "CRC32C";
+
+    /**
+     * The Castagnoli polynomial, reversed.
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[][] TABLES = tables();
+
+    // ----------------------------------------------------- Instance Variables
+
+    private int crc = 0xFFFFFFFF;
+
+    // ----------------------------------------------------------- Constructors
+
+    Crc32c() {
+        super(ALGORITHM);
+    }
+
+    // ------------------------------------------------ MessageDigestSpi methods
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 4;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ input) & 0xFF];
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        int c = crc;
+        int end = offset + len;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            int low = c ^ ((input[i] & 0xFF) | (input[i + 1] & 0xFF) << 8
+                    | (input[i + 2] & 0xFF) << 16 | (input[i + 3] & 0xFF) << 24);
+            c = TABLES[7][low & 0xFF] ^ TABLES[6][(low >>> 8) & 0xFF]
+                    ^ TABLES[5][(low >>> 16) & 0xFF] ^ TABLES[4][low >>> 24]
+                    ^ TABLES[3][input[i + 4] & 0xFF] ^ TABLES[2][input[i + 5] & 0xFF]
+                    ^ TABLES[1][input[i + 6] & 0xFF] ^ TABLES[0][input[i + 7] & 0xFF];
+        }
+        for (; i < end; i++) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ input[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        int value = ~crc;
+        engineReset();
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    @Override
+    protected void engineReset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * @return The tables giving the checksum of a byte followed by 0 to 7
+     * zero bytes.
+     */
+    private static int[][] tables() {
+        int[][] tables = new int[8][256];
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+            }
+            tables[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int t = 1; t < 8; t++) {
+                int previous = tables[t - 1][n];
+                tables[t][n] = (previous >>> 8) ^ tables[0][previous & 0xFF];
+            }
+        }
+        return tables;
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Decrypts stored content from one channel into another a block at a time.
+ *
+ * The blocks are borrowed from a {@link BufferArena}, if one is given, so
+ * that an off-heap arena's direct chunks carry data read from a file or
+ * written to a socket without copying them through the heap. Otherwise they
+ * are allocated for each transfer, no larger than the content, so that
+ * nothing is held between transfers.
+ *
+ * Content is expected in the form written by
+ * {@link Crypto#encrypt(java.io.OutputStream, SecretKey)}: the
+ * initialisation vector, followed by the ciphertext.
+ */
+final class Decryptor {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The most bytes read and decrypted at a time, when there is no arena.
+     */
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    // ----------------------------------------------------------- Constructors
+
+    private Decryptor() {
+        // Static methods only
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Decrypts everything that can be read from the source into the target.
+     * Neither channel is closed.
+     *
+     * @param source The encrypted content.
+     * @param key    The key the content was encrypted with.
+     * @param target The channel to receive the cleartext.
+     * @param arena  The arena from which to borrow blocks, or
+     *               <code>null</code> to allocate them.
+     * @param size   The expected size of the cleartext, or zero if unknown.
+     * @return The number of cleartext bytes written.
+     * @throws IOException if a channel cannot be read or written, or the
+     *                     content cannot be decrypted.
+     */
+    static long transfer(ReadableByteChannel source, SecretKey key, WritableByteChannel target,
+                         BufferArena arena, long size) throws IOException {
+        Cipher cipher = newCipher(source, key);
+        ByteBuffer in;
+        ByteBuffer out;
+        if (arena != null) {
+            in = arena.allocate();
+            out = arena.allocate();
+        } else {
+            // One more byte than expected, so that the end is found in one pass
+            int blockSize = size > 0 && size < BLOCK_SIZE ? (int) size + 1 : BLOCK_SIZE;
+            in = ByteBuffer.allocate(blockSize);
+            out = ByteBuffer.allocate(blockSize);
+        }
+        try {
+            return transfer(cipher, source, in, out, target);
+        } finally {
+            if (arena != null) {
+                arena.release(in);
+                arena.release(out);
+            }
+        }
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Decrypts everything that can be read from the source into the target,
+     * through the given buffers. The cipher is a stream cipher, so the output
+     * buffer need be no larger than the input buffer.
+     *
+     * @return The number of cleartext bytes written.
+     */
+    private static long transfer(Cipher cipher, ReadableByteChannel source, ByteBuffer in, ByteBuffer out,
+                                 WritableByteChannel target) throws IOException {
+        long total = 0;
+        try {
+            while (true) {
+                in.clear();
+                if (source.read(in) < 0) {
+                    break;
+                }
+                in.flip();
+                out.clear();
+                cipher.update(in, out);
+                total += drain(out, target);
+            }
+            in.clear();
+            in.flip();
+            out.clear();
+            cipher.doFinal(in, out);
+            total += drain(out, target);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt stored data", e);
+        }
+        return total;
+    }
+
+    /**
+     * Reads the initialisation vector from the source and returns a cipher
+     * ready to decrypt what follows.
+     */
+    private static Cipher newCipher(ReadableByteChannel source, SecretKey key) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(Crypto.CIPHER_NAME);
+            ByteBuffer iv = ByteBuffer.allocate(cipher.getBlockSize());
+            while (iv.hasRemaining()) {
+                if (source.read(iv) < 0) {
+                    throw new EOFException("Stored data are too short to contain an initialisation vector");
+                }
+            }
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv.array()));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to initialise decryption", e);
+        }
+    }
+
+    /**
+     * Writes the contents of the buffer to the target.
+     *
+     * @return The number of bytes written.
+     */
+    private static int drain(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        buffer.flip();
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return size;
+    }
+}
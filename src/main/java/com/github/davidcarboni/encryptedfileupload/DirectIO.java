@@ -0,0 +1,357 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams that read and write files without going through the page cache,
+ * so that very large uploads, which are written once and read once, do not
+ * evict data that other parts of the application are using.
+ *
+ * This relies on {@code com.sun.nio.file.ExtendedOpenOption.DIRECT}, which
+ * is available from Java 10 on platforms such as Linux. It is looked up at
+ * runtime so that this library can still target Java 7. Where it is not
+ * available, or the filesystem refuses it, ordinary file streams are used.
+ *
+ * Direct I/O requires buffers, file positions and transfer sizes to be
+ * aligned to the filesystem block size. Writes are therefore collected in an
+ * aligned buffer, the final block is padded, and the file is then truncated
+ * back to the number of bytes actually written.
+ */
+final class DirectIO {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The block size assumed if the filesystem does not report one.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * The size of the aligned buffer used by each stream.
+     */
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The {@code DIRECT} open option, or <code>null</code> if unavailable.
+     */
+    private static final OpenOption DIRECT = findDirectOption();
+
+    /**
+     * {@code ByteBuffer.alignedSlice(int)}, available from Java 9.
+     */
+    private static final Method ALIGNED_SLICE = findMethod(ByteBuffer.class, "alignedSlice", int.class);
+
+    /**
+     * {@code FileStore.getBlockSize()}, available from Java 10.
+     */
+    private static final Method GET_BLOCK_SIZE = findMethod(FileStore.class, "getBlockSize");
+
+    // ----------------------------------------------------------- Constructors
+
+    private DirectIO() {
+        // Static methods only
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * @return <code>true</code> if this JVM supports direct I/O.
+     */
+    static boolean isSupported() {
+        return DIRECT != null && ALIGNED_SLICE != null;
+    }
+
+    /**
+     * Opens the given file for writing, bypassing the page cache if possible.
+     *
+     * @param file The file to write. It is created or truncated.
+     * @return An output stream for the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    static OutputStream newOutputStream(File file) throws IOException {
+        if (isSupported()) {
+            int blockSize = getBlockSize(file.getAbsoluteFile().getParentFile());
+            FileChannel channel = open(file, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, DIRECT);
+            if (channel != null) {
+                return new DirectOutputStream(channel, blockSize);
+            }
+        }
+        return new FileOutputStream(file);
+    }
+
+    /**
+     * Opens the given file for reading, bypassing the page cache if possible.
+     *
+     * @param file The file to read.
+     * @return An input stream for the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    static InputStream newInputStream(File file) throws IOException {
+        if (isSupported()) {
+            int blockSize = getBlockSize(file);
+            FileChannel channel = open(file, StandardOpenOption.READ, DIRECT);
+            if (channel != null) {
+                return new DirectInputStream(channel, blockSize);
+            }
+        }
+        return new FileInputStream(file);
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Opens a channel with the given options.
+     *
+     * @return The channel, or <code>null</code> if it cannot be opened. Some
+     * filesystems, such as tmpfs, reject direct I/O; if the failure has
+     * another cause, the caller's fallback will report it.
+     */
+    private static FileChannel open(File file, OpenOption... options) {
+        try {
+            return FileChannel.open(file.toPath(), options);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The block size of the filesystem holding the given file.
+     */
+    private static int getBlockSize(File file) {
+        if (GET_BLOCK_SIZE != null && file != null) {
+            try {
+                FileStore store = Files.getFileStore(file.toPath());
+                long size = (Long) GET_BLOCK_SIZE.invoke(store);
+                if (size > 0 && size <= BUFFER_SIZE && Long.bitCount(size) == 1) {
+                    return (int) size;
+                }
+            } catch (IOException e) {
+                // Use the default
+            } catch (IllegalAccessException e) {
+                // Use the default
+            } catch (InvocationTargetException e) {
+                // Use the default
+            }
+        }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Allocates a direct buffer whose address is aligned to the block size.
+     */
+    private static ByteBuffer newAlignedBuffer(int blockSize) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocateDirect(BUFFER_SIZE + blockSize);
+        try {
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(raw, blockSize);
+            aligned.limit(BUFFER_SIZE);
+            return aligned.slice();
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to allocate an aligned buffer", e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Unable to allocate an aligned buffer", e.getCause());
+        }
+    }
+
+    private static OpenOption findDirectOption() {
+        try {
+            Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object constant : type.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) constant).name())) {
+                    return (OpenOption) constant;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // Not available on this JVM
+        }
+        return null;
+    }
+
+    private static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * Writes whole aligned buffers, padding the last block and truncating
+     * the file back to its true length on close.
+     */
+    private static final class DirectOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int blockSize;
+        private long length;
+        private boolean closed;
+
+        DirectOutputStream(FileChannel channel, int blockSize) throws IOException {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            try {
+                this.buffer = newAlignedBuffer(blockSize);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Does nothing: only whole blocks can be written, so data are held
+         * until the buffer is full or the stream is closed.
+         */
+        @Override
+        public void flush() {
+            // See above
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                int pending = buffer.position();
+                if (pending > 0) {
+                    int padded = (pending + blockSize - 1) / blockSize * blockSize;
+                    while (buffer.position() < padded) {
+                        buffer.put((byte) 0);
+                    }
+                    buffer.flip();
+                    writeFully();
+                    channel.truncate(length + pending);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            int size = buffer.remaining();
+            writeFully();
+            length += size;
+            buffer.clear();
+        }
+
+        private void writeFully() throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads whole aligned buffers from aligned positions.
+     */
+    private static final class DirectInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int blockSize;
+        private final long size;
+        private long position;
+
+        DirectInputStream(FileChannel channel, int blockSize) throws IOException {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            try {
+                this.size = channel.size();
+                this.buffer = newAlignedBuffer(blockSize);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private boolean fill() throws IOException {
+            if (position >= size) {
+                return false;
+            }
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return false;
+            }
+            position += read;
+            if (position < size && read % blockSize != 0) {
+                throw new IOException("Unaligned read from direct channel");
+            }
+            buffer.flip();
+            return true;
+        }
+    }
+}
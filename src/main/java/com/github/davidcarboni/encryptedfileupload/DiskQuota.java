@@ -0,0 +1,263 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the number of bytes that items may hold on disk in a
+ * repository.
+ *
+ * Each item reserves the bytes it writes to disk as it writes them, and
+ * gives them back when it is deleted, so concurrent uploads cannot fill the
+ * volume between them. When a write would exceed the quota, the
+ * {@link Policy} decides what happens: the writer waits for space, the
+ * upload is rejected with a {@link DiskQuotaExceededException}, or the
+ * item is written to an overflow repository instead.
+ *
+ * Factories that share a repository should share its quota. The bytes
+ * counted are the bytes written to an item, so the encrypted files are
+ * slightly larger.
+ */
+public class DiskQuota {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * What happens when a write would exceed the quota.
+     */
+    public enum Policy {
+        /**
+         * Wait for space to be freed, up to the block timeout, then reject.
+         */
+        BLOCK,
+        /**
+         * Reject the upload.
+         */
+        REJECT,
+        /**
+         * Write items that have not yet reached disk to the overflow
+         * repository, and reject items that already have. This applies to
+         * items stored in their own temporary files; items using a
+         * {@link TempFilePool} or {@link SegmentStore} are rejected.
+         */
+        REDIRECT
+    }
+
+    /**
+     * The default time to wait for space, in milliseconds.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 30000;
+
+    // ----------------------------------------------------- Instance Variables
+
+    private final long maxBytes;
+    private final Policy policy;
+    private final long blockTimeout;
+    private final File overflowRepository;
+
+    /**
+     * The bytes currently reserved.
+     */
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * The most bytes that have been reserved at once.
+     */
+    private final AtomicLong peakBytes = new AtomicLong();
+
+    /**
+     * Writers wait on this for space to be freed.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The number of writers waiting, changed while holding the lock.
+     */
+    private volatile int waiters;
+
+    private final AtomicLong refusals = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong redirects = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a quota that blocks for the default time or rejects.
+     *
+     * @param maxBytes The most bytes items may hold on disk.
+     * @param policy   {@link Policy#BLOCK} or {@link Policy#REJECT}.
+     */
+    public DiskQuota(long maxBytes, Policy policy) {
+        this(maxBytes, policy, DEFAULT_BLOCK_TIMEOUT, null);
+    }
+
+    /**
+     * Constructs a quota.
+     *
+     * @param maxBytes           The most bytes items may hold on disk.
+     * @param policy             What happens when a write would exceed it.
+     * @param blockTimeout       How long a writer waits for space with
+     *                           {@link Policy#BLOCK}, in milliseconds.
+     * @param overflowRepository Where items are written instead with
+     *                           {@link Policy#REDIRECT}.
+     */
+    public DiskQuota(long maxBytes, Policy policy, long blockTimeout, File overflowRepository) {
+        if (maxBytes < 0 || blockTimeout < 0 || policy == null) {
+            throw new IllegalArgumentException("Invalid quota, policy or timeout");
+        }
+        if (policy == Policy.REDIRECT && overflowRepository == null) {
+            throw new IllegalArgumentException("An overflow repository is needed to redirect");
+        }
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+        this.overflowRepository = overflowRepository;
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The most bytes items may hold on disk.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return What happens when a write would exceed the quota.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return How long a writer waits for space, in milliseconds.
+     */
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * @return Where items are redirected, or <code>null</code>.
+     */
+    public File getOverflowRepository() {
+        return overflowRepository;
+    }
+
+    /**
+     * @return The bytes items currently hold on disk.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return The most bytes items have held on disk at once.
+     */
+    public long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    /**
+     * @return The number of writes refused.
+     */
+    public long getRefusalCount() {
+        return refusals.get();
+    }
+
+    /**
+     * @return The number of writes that waited for space and got it.
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /**
+     * @return The number of items written to the overflow repository.
+     */
+    public long getRedirectCount() {
+        return redirects.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Reserves disk space, waiting for it if the policy is to block.
+     *
+     * @param bytes The number of bytes to reserve.
+     * @return <code>true</code> if the bytes were reserved.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    boolean reserve(long bytes) throws InterruptedIOException {
+        if (tryReserve(bytes)) {
+            return true;
+        }
+        if (policy != Policy.BLOCK) {
+            refusals.incrementAndGet();
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (!tryReserve(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        refusals.incrementAndGet();
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                waits.incrementAndGet();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for disk quota");
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Gives back disk space, waking any writers waiting for it.
+     *
+     * @param bytes The number of bytes to give back.
+     */
+    void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Counts an item written to the overflow repository.
+     */
+    void redirected() {
+        redirects.incrementAndGet();
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    private boolean tryReserve(long bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            long update = used + bytes;
+            if (update > maxBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, update)) {
+                long peak;
+                while ((peak = peakBytes.get()) < update && !peakBytes.compareAndSet(peak, update)) {
+                    // Retry
+                }
+                return true;
+            }
+        }
+    }
+}
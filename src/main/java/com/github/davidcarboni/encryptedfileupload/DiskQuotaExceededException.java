@@ -0,0 +1,57 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.fileupload.FileUploadException;
+
+/**
+ * Thrown when an item cannot be written to disk because the
+ * {@link DiskQuota} of its repository is used up.
+ *
+ * While a request is being parsed, this is thrown from
+ * <code>parseRequest</code> itself; when writing to an item directly, it is
+ * the cause of the {@link org.apache.commons.fileupload.FileUploadBase.FileUploadIOException}
+ * thrown by the item's output stream.
+ */
+public class DiskQuotaExceededException extends FileUploadException {
+
+    /**
+     * The exceptions UID, for serializing an instance.
+     */
+    private static final long serialVersionUID = 4517325614939876431L;
+
+    /**
+     * The quota, in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * The bytes that could not be written.
+     */
+    private final long requestedBytes;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param message        The detail message.
+     * @param maxBytes       The quota, in bytes.
+     * @param requestedBytes The number of bytes that could not be written.
+     */
+    public DiskQuotaExceededException(String message, long maxBytes, long requestedBytes) {
+        super(message);
+        this.maxBytes = maxBytes;
+        this.requestedBytes = requestedBytes;
+    }
+
+    /**
+     * @return The quota, in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of bytes that could not be written.
+     */
+    public long getRequestedBytes() {
+        return requestedBytes;
+    }
+}
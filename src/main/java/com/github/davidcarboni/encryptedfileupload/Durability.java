@@ -0,0 +1,28 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+/**
+ * Policies for forcing the encrypted data of items that exceed the size
+ * threshold to disk.
+ */
+public enum Durability {
+
+    /**
+     * Data are never forced to disk. This is the default: temporary files
+     * are normally discarded when the request ends, so there is nothing to
+     * be gained by paying for an fsync.
+     */
+    NONE,
+
+    /**
+     * Data are forced to disk before the item's output stream finishes
+     * closing. With a {@link GroupCommit} service, concurrent items are
+     * forced together in batches.
+     */
+    ON_CLOSE,
+
+    /**
+     * Data are forced to disk in the background, within the period of the
+     * {@link GroupCommit} service, after the item's output stream is closed.
+     */
+    PERIODIC
+}
@@ -1,12 +1,27 @@
 package com.github.davidcarboni.encryptedfileupload;
 
 import com.github.davidcarboni.cryptolite.Crypto;
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.ClosedOutputStream;
 import org.apache.commons.io.output.ThresholdingOutputStream;
 
 import javax.crypto.SecretKey;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * This class adds encryption if data are written to disk.
@@ -24,7 +39,50 @@ public class EncryptedDeferredOutputStream
      * The output stream to which data will be written prior to the theshold
      * being reached.
      */
-    private ByteArrayOutputStream memoryOutputStream;
+    private volatile ChunkBuffer memoryOutputStream;
+
+
+    /**
+     * The arena from which the memory tier borrows its chunks, if any.
+     */
+    private BufferArena bufferArena;
+
+
+    /**
+     * The expected size of the data, or zero if unknown.
+     */
+    private int sizeHint;
+
+
+    /**
+     * The budget against which data held in memory are reserved, if any.
+     */
+    private MemoryBudget memoryBudget;
+
+
+    /**
+     * The model to which the size of the data is reported on close, if any.
+     */
+    private AdaptiveThreshold adaptiveThreshold;
+
+
+    /**
+     * The partition of the adaptive threshold model to report to.
+     */
+    private String adaptiveKey;
+
+
+    /**
+     * The number of bytes reserved against the memory budget.
+     */
+    private long reserved;
+
+
+    /**
+     * True once output has been switched to disk, whether because the
+     * threshold was reached or because the memory budget was in use.
+     */
+    private volatile boolean spilled;
 
 
     /**
@@ -36,9 +94,10 @@ public class EncryptedDeferredOutputStream
 
 
     /**
-     * The encryption key to use for this stream.
+     * The encryption key to use for this stream, or <code>null</code> once
+     * the stream has been deleted.
      */
-    private final SecretKey key;
+    private volatile SecretKey key;
 
 
     /**
@@ -61,11 +120,123 @@ public class EncryptedDeferredOutputStream
      */
     private final File directory;
 
+    /**
+     * The pool from which the output file is taken, if any.
+     */
+    private final TempFilePool tempFilePool;
+
+    /**
+     * The number of readers open on a pooled output file. While there are
+     * any, the file is unlinked on delete rather than truncated and reused.
+     */
+    private int storedReaders;
+
+    /**
+     * The store in which an extent will be written if the threshold is exceeded.
+     */
+    private final SegmentStore segmentStore;
+
+    /**
+     * The extent to which output is directed once the threshold is exceeded,
+     * if a segment store is used.
+     */
+    private SegmentStore.Extent extent;
+
+    /**
+     * Whether the output file should be written and read without going
+     * through the page cache.
+     */
+    private boolean directIO;
+
+    /**
+     * The size below which the output file uses the page cache despite
+     * direct I/O.
+     */
+    private long directIOMinSize = EncryptedFileItemFactory.DEFAULT_DIRECT_IO_MIN_SIZE;
+
+    /**
+     * Whether the output file was written, and is read, with direct I/O.
+     */
+    private boolean storedDirect;
+
+    /**
+     * The expected size of the data, even if above the threshold.
+     */
+    private long declaredSize;
+
+    /**
+     * When data written to disk are forced to disk.
+     */
+    private Durability durability = Durability.NONE;
+
+    /**
+     * The service that forces data to disk in batches, if any.
+     */
+    private GroupCommit groupCommit;
+
+    /**
+     * The reaper that unlinks the output file, if any.
+     */
+    private TempFileReaper tempFileReaper;
+
+    /**
+     * The quota on bytes written to disk, if any.
+     */
+    private DiskQuota diskQuota;
+
+    /**
+     * The bytes reserved against the disk quota.
+     */
+    private long diskReserved;
+
+    /**
+     * True if the data are written to the quota's overflow repository, to
+     * which the quota does not apply.
+     */
+    private boolean redirected;
+
+    /**
+     * The service that expires the data written to disk, if any.
+     */
+    private ItemExpiry itemExpiry;
+
+    /**
+     * The scheduled expiry, once the data have been written to disk.
+     */
+    private ScheduledFuture<?> expiry;
+
+    /**
+     * True once the data have been removed by the item expiry.
+     */
+    private volatile boolean expired;
+
+    /**
+     * True if the stream was deleted before it was closed.
+     */
+    private volatile boolean aborted;
+
+    /**
+     * The registration through which this stream reports its data, if any.
+     */
+    private ItemRegistry.Entry registryEntry;
+
+    /**
+     * The digests computed over the data as they are written, if any, and
+     * their values once the stream is closed.
+     */
+    private MessageDigest[] digests;
+    private volatile byte[][] digestValues;
+
+    /**
+     * The cache that may hold the decrypted data, if any.
+     */
+    private PlaintextCache plaintextCache;
+
 
     /**
      * True when close() has been called successfully.
      */
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     // ----------------------------------------------------------- Constructors
 
@@ -79,7 +250,41 @@ public class EncryptedDeferredOutputStream
      * @param key        The encryption key to use.
      */
     public EncryptedDeferredOutputStream(int threshold, File outputFile, SecretKey key) {
-        this(threshold, outputFile, null, null, null, key);
+        this(threshold, outputFile, null, null, null, null, null, key);
+    }
+
+
+    /**
+     * Constructs an instance of this class which will trigger an event at the
+     * specified threshold, and save data to a file taken from the given pool
+     * beyond that point.
+     *
+     * @param threshold    The number of bytes at which to trigger an event.
+     * @param tempFilePool The pool from which to take the file.
+     * @param key          The encryption key to use.
+     */
+    public EncryptedDeferredOutputStream(int threshold, TempFilePool tempFilePool, SecretKey key) {
+        this(threshold, null, null, null, null, tempFilePool, null, key);
+        if (tempFilePool == null) {
+            throw new IllegalArgumentException("Temporary file pool is missing");
+        }
+    }
+
+
+    /**
+     * Constructs an instance of this class which will trigger an event at the
+     * specified threshold, and save data to an extent in the given segment
+     * store beyond that point.
+     *
+     * @param threshold    The number of bytes at which to trigger an event.
+     * @param segmentStore The store in which to write the extent.
+     * @param key          The encryption key to use.
+     */
+    public EncryptedDeferredOutputStream(int threshold, SegmentStore segmentStore, SecretKey key) {
+        this(threshold, null, null, null, null, null, segmentStore, key);
+        if (segmentStore == null) {
+            throw new IllegalArgumentException("Segment store is missing");
+        }
     }
 
 
@@ -95,7 +300,7 @@ public class EncryptedDeferredOutputStream
      * @since 1.4
      */
     public EncryptedDeferredOutputStream(int threshold, String prefix, String suffix, File directory, SecretKey key) {
-        this(threshold, null, prefix, suffix, directory, key);
+        this(threshold, null, prefix, suffix, directory, null, null, key);
         if (prefix == null) {
             throw new IllegalArgumentException("Temporary file prefix is missing");
         }
@@ -110,17 +315,22 @@ public class EncryptedDeferredOutputStream
      * @param prefix     Prefix to use for the temporary file.
      * @param suffix     Suffix to use for the temporary file.
      * @param directory  Temporary file directory.
+     * @param tempFilePool The pool from which to take the file.
+     * @param segmentStore The store in which to write an extent.
      * @param key        The encryption key to use.
      */
-    private EncryptedDeferredOutputStream(int threshold, File outputFile, String prefix, String suffix, File directory, SecretKey key) {
+    private EncryptedDeferredOutputStream(int threshold, File outputFile, String prefix, String suffix, File directory,
+                                          TempFilePool tempFilePool, SegmentStore segmentStore, SecretKey key) {
         super(threshold);
         this.outputFile = outputFile;
 
-        memoryOutputStream = new ByteArrayOutputStream();
+        memoryOutputStream = new ChunkBuffer(null, 0);
         currentOutputStream = memoryOutputStream;
         this.prefix = prefix;
         this.suffix = suffix;
         this.directory = directory;
+        this.tempFilePool = tempFilePool;
+        this.segmentStore = segmentStore;
         this.key = key;
     }
 
@@ -128,6 +338,59 @@ public class EncryptedDeferredOutputStream
     // --------------------------------------- ThresholdingOutputStream methods
 
 
+    /**
+     * Writes the specified byte to this output stream, and adds it to the
+     * digests.
+     *
+     * @param b The byte to be written.
+     * @exception IOException if an error occurs.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        super.write(b);
+        if (digests != null) {
+            for (MessageDigest digest : digests) {
+                digest.update((byte) b);
+            }
+        }
+    }
+
+
+    /**
+     * Writes <code>b.length</code> bytes from the specified byte array to this
+     * output stream, and adds them to the digests.
+     *
+     * @param b The array of bytes to be written.
+     * @exception IOException if an error occurs.
+     */
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+
+    /**
+     * Writes <code>len</code> bytes from the specified byte array starting at
+     * offset <code>off</code> to this output stream, and adds them to the
+     * digests, so that the data are digested in the same pass as they are
+     * stored.
+     *
+     * @param b   The byte array from which the data will be written.
+     * @param off The start offset in the byte array.
+     * @param len The number of bytes to write.
+     * @exception IOException if an error occurs.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        if (digests != null) {
+            for (MessageDigest digest : digests) {
+                digest.update(b, off, len);
+            }
+        }
+    }
+
+
     /**
      * Returns the current output stream. This may be memory based or disk
      * based, depending on the current state with respect to the threshold.
@@ -142,6 +405,37 @@ public class EncryptedDeferredOutputStream
     }
 
 
+    /**
+     * Checks to see if writing the specified number of bytes would cause the
+     * configured threshold to be exceeded. If not, and a memory budget is
+     * set, the bytes are reserved against it; if the budget is in use, the
+     * stream switches to disk now rather than at the threshold.
+     *
+     * @param count The number of bytes about to be written.
+     *
+     * @exception IOException if an error occurs.
+     */
+    @Override
+    protected void checkThreshold(int count) throws IOException {
+        // Fail fast, rather than write to released buffers or a closed file:
+        liveKey();
+        if (memoryBudget != null && !spilled && count > 0 && getByteCount() + count <= getThreshold()) {
+            if (memoryBudget.reserve(count)) {
+                reserved += count;
+            } else {
+                thresholdReached();
+            }
+        }
+        if (diskQuota != null && count > 0 && (spilled || getByteCount() + count > getThreshold())) {
+            reserveDisk(count);
+        }
+        super.checkThreshold(count);
+        if (registryEntry != null) {
+            registryEntry.written(count);
+        }
+    }
+
+
     /**
      * Switches the underlying output stream from a memory based stream to one
      * that is backed by disk. This is the point at which we realise that too
@@ -152,13 +446,20 @@ public class EncryptedDeferredOutputStream
      */
     @Override
     protected void thresholdReached() throws IOException {
-        if (prefix != null) {
-            outputFile = File.createTempFile(prefix, suffix, directory);
+        if (spilled) {
+            return;
         }
-        OutputStream fos = new Crypto().encrypt(new FileOutputStream(outputFile), key);
+        reserveDisk(memoryOutputStream.size());
+        OutputStream fos = openDiskStream();
         memoryOutputStream.writeTo(fos);
         currentOutputStream = fos;
+        spilled = true;
+        memoryOutputStream.release();
         memoryOutputStream = null;
+        releaseReservation();
+        if (registryEntry != null) {
+            registryEntry.spilled();
+        }
     }
 
 
@@ -173,21 +474,66 @@ public class EncryptedDeferredOutputStream
      *         <code>false</code> otherwise.
      */
     public boolean isInMemory() {
-        return !isThresholdExceeded();
+        return !spilled;
     }
 
 
     /**
      * Returns the data for this output stream as an array of bytes, assuming
      * that the data has been retained in memory. If the data was written to
-     * disk, this method returns <code>null</code>.
+     * disk, this method returns <code>null</code>. If the data fill a single
+     * buffer exactly, as when a size hint was right, that buffer is returned
+     * rather than a copy.
      *
      * @return The data for this output stream, or <code>null</code> if no such
      * data is available.
      */
     public byte[] getData() {
-        if (memoryOutputStream != null) {
-            return memoryOutputStream.toByteArray();
+        ChunkBuffer data = memoryOutputStream;
+        if (data != null) {
+            return data.toByteArray();
+        }
+        return null;
+    }
+
+
+    /**
+     * Determines whether this stream has been closed with its data still in
+     * memory, so that they could be moved to disk by {@link #demote()}.
+     *
+     * @return <code>true</code> if the data could be demoted.
+     */
+    boolean isDemotable() {
+        return closed && !spilled && memoryOutputStream != null;
+    }
+
+
+    /**
+     * Determines whether this stream has been closed and its data moved to
+     * disk or deleted, so that they will not be held in memory again.
+     *
+     * @return <code>true</code> if the data are no longer in memory.
+     */
+    boolean isSettled() {
+        return closed && (spilled || memoryOutputStream == null);
+    }
+
+
+    /**
+     * Returns read-only views of the data for this output stream, one per
+     * buffer, assuming that the data has been retained in memory. The data
+     * are not copied. Buffers whose views have been handed out are not
+     * returned to the arena when the stream is deleted, so the views never
+     * see another stream's data. Streams of the data do not have this
+     * cost, since their buffers are returned once they have been closed.
+     *
+     * @return The data for this output stream, or <code>null</code> if no such
+     * data is available.
+     */
+    public List<ByteBuffer> getBuffers() {
+        ChunkBuffer data = memoryOutputStream;
+        if (data != null) {
+            return data.asReadOnlyBuffers();
         }
         return null;
     }
@@ -204,6 +550,11 @@ public class EncryptedDeferredOutputStream
      * then the temporary file created once the threshold is reached is returned
      * If the threshold was not reached then <code>null</code> is returned.
      *
+     * If a temporary file pool is used then the file taken from the pool is
+     * returned, until the stream is deleted.
+     *
+     * If a segment store is used then <code>null</code> is returned.
+     *
      * @return The file for this output stream, or <code>null</code> if no such
      * file exists.
      */
@@ -213,42 +564,968 @@ public class EncryptedDeferredOutputStream
 
 
     /**
-     * Closes underlying output stream, and mark this as closed
+     * Returns the pool from which the output file is taken, if any.
      *
-     * @exception IOException if an error occurs.
+     * @return The temporary file pool, or <code>null</code>.
      */
-    @Override
-    public void close() throws IOException {
-        super.close();
-        closed = true;
+    public TempFilePool getTempFilePool() {
+        return tempFilePool;
     }
 
 
     /**
-     * Writes the data from this output stream to the specified output stream,
-     * after it has been closed.
+     * Returns the store in which data are written beyond the threshold, if any.
      *
-     * @param out output stream to write to.
-     * @exception IOException if this stream is not yet closed or an error occurs.
+     * @return The segment store, or <code>null</code>.
      */
-    public void writeTo(OutputStream out) throws IOException {
-        // we may only need to check if this is closed if we are working with a file
-        // but we should force the habit of closing wether we are working with
-        // a file or memory.
-        if (!closed) {
-            throw new IOException("Stream not closed");
+    public SegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+
+    /**
+     * Returns the arena from which the memory tier borrows its chunks, if any.
+     *
+     * @return The buffer arena, or <code>null</code>.
+     */
+    public BufferArena getBufferArena() {
+        return bufferArena;
+    }
+
+
+    /**
+     * Sets the arena from which the memory tier borrows its chunks. Chunks
+     * are returned to the arena when the threshold is reached or the stream
+     * is deleted. If the arena allocates off the heap, data below the
+     * threshold are held in direct memory. This must be set before anything
+     * is written.
+     *
+     * @param bufferArena The buffer arena, or <code>null</code> to allocate
+     *                    buffers for this stream alone.
+     * @exception IllegalStateException if data have already been written.
+     */
+    public void setBufferArena(BufferArena bufferArena) {
+        if (getByteCount() > 0) {
+            throw new IllegalStateException("Data have already been written to this stream");
         }
+        this.bufferArena = bufferArena;
+        memoryOutputStream = new ChunkBuffer(bufferArena, sizeHint);
+        currentOutputStream = memoryOutputStream;
+    }
 
-        if (isInMemory()) {
-            memoryOutputStream.writeTo(out);
+
+    /**
+     * Returns the expected size of the data.
+     *
+     * @return The size hint, or zero if the size is unknown.
+     */
+    public int getSizeHint() {
+        return sizeHint;
+    }
+
+
+    /**
+     * Sets the expected size of the data, such as a size declared by a
+     * Content-Length header. If it does not exceed the threshold, and no
+     * buffer arena is set, the memory tier starts with one buffer of exactly
+     * this size, so that data of the expected size are written once and
+     * {@link #getData()} returns them without copying. Sizes above the
+     * threshold only decide whether direct I/O is used. This must be set
+     * before anything is written.
+     *
+     * @param sizeHint The expected size, in bytes, or zero if unknown.
+     * @exception IllegalStateException if data have already been written.
+     */
+    public void setSizeHint(long sizeHint) {
+        if (getByteCount() > 0) {
+            throw new IllegalStateException("Data have already been written to this stream");
         }
-        else
-        {
-            InputStream fis = new Crypto().encrypt(new FileInputStream(outputFile), key);
+        this.declaredSize = Math.max(0, sizeHint);
+        this.sizeHint = sizeHint > 0 && sizeHint <= getThreshold() ? (int) sizeHint : 0;
+        memoryOutputStream = new ChunkBuffer(bufferArena, this.sizeHint);
+        currentOutputStream = memoryOutputStream;
+    }
+
+
+    /**
+     * Sets the digests to compute over the data as they are written, such
+     * as "SHA-256" or "CRC32C", so that they are available once the stream
+     * is closed without reading the data again. This must be set before
+     * anything is written.
+     *
+     * @param algorithms The names of the digest algorithms.
+     * @exception IllegalStateException if data have already been written.
+     * @exception IllegalArgumentException if an algorithm is not available.
+     */
+    public void setDigestAlgorithms(String... algorithms) {
+        if (getByteCount() > 0) {
+            throw new IllegalStateException("Data have already been written to this stream");
+        }
+        if (algorithms == null || algorithms.length == 0) {
+            digests = null;
+            return;
+        }
+        MessageDigest[] created = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            created[i] = newDigest(algorithms[i]);
+        }
+        digests = created;
+    }
+
+
+    /**
+     * Returns a digest of the data written to this stream, computed as they
+     * were written.
+     *
+     * @param algorithm The name of the digest algorithm.
+     * @return The digest, or <code>null</code> if the algorithm was not one
+     * set with {@link #setDigestAlgorithms(String...)}.
+     * @exception IllegalStateException if the stream is not yet closed.
+     */
+    public byte[] getDigest(String algorithm) {
+        if (digests == null) {
+            return null;
+        }
+        byte[][] values = digestValues;
+        if (values == null) {
+            throw new IllegalStateException("Stream not closed");
+        }
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i].getAlgorithm().equalsIgnoreCase(algorithm)) {
+                return values[i].clone();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Creates a digest, including "CRC32C", which the JDK does not provide
+     * as a digest.
+     *
+     * @param algorithm The name of the digest algorithm.
+     * @return A new digest.
+     * @exception IllegalArgumentException if the algorithm is not available.
+     */
+    static MessageDigest newDigest(String algorithm) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Digest algorithm is missing");
+        }
+        if (Crc32c.ALGORITHM.equalsIgnoreCase(algorithm)) {
+            return new Crc32c();
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Digest algorithm not available: " + algorithm, e);
+        }
+    }
+
+
+    /**
+     * Returns the budget against which data held in memory are reserved,
+     * if any.
+     *
+     * @return The memory budget, or <code>null</code>.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+
+    /**
+     * Sets the budget against which data held in memory are reserved. Once
+     * the budget is in use, the stream switches to disk before reaching its
+     * threshold. The reservation is given back when the stream switches to
+     * disk or is deleted. This must be set before anything is written.
+     *
+     * @param memoryBudget The memory budget, or <code>null</code> for none.
+     * @exception IllegalStateException if data have already been written.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        if (getByteCount() > 0) {
+            throw new IllegalStateException("Data have already been written to this stream");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+
+    /**
+     * Returns the model to which the size of the data is reported on close,
+     * if any.
+     *
+     * @return The adaptive threshold, or <code>null</code>.
+     */
+    public AdaptiveThreshold getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
+
+    /**
+     * Sets the model to which the size of the data is reported when the
+     * stream is closed, so that thresholds of later streams can follow the
+     * sizes seen.
+     *
+     * @param adaptiveThreshold The adaptive threshold, or <code>null</code>.
+     * @param key               The partition to report to, as returned by
+     *                          {@link AdaptiveThreshold#key(String, String)},
+     *                          or <code>null</code>.
+     */
+    public void setAdaptiveThreshold(AdaptiveThreshold adaptiveThreshold, String key) {
+        this.adaptiveThreshold = adaptiveThreshold;
+        this.adaptiveKey = key;
+    }
+
+
+    /**
+     * Determines whether the output file is written and read bypassing the
+     * page cache.
+     *
+     * @return <code>true</code> if direct I/O has been requested.
+     */
+    public boolean isDirectIO() {
+        return directIO;
+    }
+
+
+    /**
+     * Requests that the output file is written and read bypassing the page
+     * cache, where the JVM and filesystem support it. This is intended for
+     * very large uploads that are written once and read once, so it only
+     * applies to files of at least {@link #getDirectIOMinSize()} bytes. It
+     * has no effect when a segment store is used, and must be set before the
+     * threshold is reached.
+     *
+     * @param directIO <code>true</code> to use direct I/O.
+     */
+    public void setDirectIO(boolean directIO) {
+        this.directIO = directIO;
+    }
+
+
+    /**
+     * Returns the size below which the output file uses the page cache even
+     * when direct I/O is requested.
+     *
+     * @return The minimum size, in bytes.
+     */
+    public long getDirectIOMinSize() {
+        return directIOMinSize;
+    }
+
+
+    /**
+     * Sets the size below which the output file uses the page cache even
+     * when direct I/O is requested. The stream is measured by its size hint,
+     * if one was set, or else by the bytes written when it goes to disk.
+     *
+     * @param directIOMinSize The minimum size, in bytes, or zero for direct
+     *                        I/O whatever the size.
+     */
+    public void setDirectIOMinSize(long directIOMinSize) {
+        this.directIOMinSize = directIOMinSize;
+    }
+
+
+    /**
+     * @return <code>true</code> if the output file was written with direct
+     * I/O, rather than through the page cache.
+     */
+    boolean isStoredDirect() {
+        return storedDirect;
+    }
+
+
+    /**
+     * Returns the policy for forcing data written to disk to disk.
+     *
+     * @return The durability policy.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+
+    /**
+     * Sets the policy for forcing data written to disk to disk. With
+     * {@link Durability#ON_CLOSE}, {@link #close()} returns once the data
+     * have been forced, in a batch if a group commit service is given, or
+     * directly otherwise. {@link Durability#PERIODIC} needs a group commit
+     * service; without one, data are forced on close.
+     *
+     * @param durability  The durability policy.
+     * @param groupCommit The service that forces data in batches, or
+     *                    <code>null</code>.
+     */
+    public void setDurability(Durability durability, GroupCommit groupCommit) {
+        this.durability = durability == null ? Durability.NONE : durability;
+        this.groupCommit = groupCommit;
+    }
+
+
+    /**
+     * Sets the reaper that unlinks the output file in the background once
+     * this stream is deleted. It has no effect when a temporary file pool or
+     * segment store is used.
+     *
+     * @param tempFileReaper The reaper, or <code>null</code> to unlink the
+     *                       file on the thread that deletes the stream.
+     */
+    public void setTempFileReaper(TempFileReaper tempFileReaper) {
+        this.tempFileReaper = tempFileReaper;
+    }
+
+
+    /**
+     * Sets the quota on bytes written to disk, which this stream reserves
+     * against as it writes. It must be set before the threshold is reached.
+     *
+     * @param diskQuota The quota, or <code>null</code> for none.
+     */
+    public void setDiskQuota(DiskQuota diskQuota) {
+        this.diskQuota = diskQuota;
+    }
+
+
+    /**
+     * Sets the service that reclaims the data written to disk by this
+     * stream, if it has not been deleted within the maximum lifetime after
+     * it is closed.
+     *
+     * @param itemExpiry The expiry service, or <code>null</code> for none.
+     */
+    public void setItemExpiry(ItemExpiry itemExpiry) {
+        this.itemExpiry = itemExpiry;
+    }
+
+
+    /**
+     * Sets the registration through which this stream reports the bytes it
+     * holds, and when it spills to disk or is deleted.
+     *
+     * @param registryEntry The registration, or <code>null</code> for none.
+     */
+    void setRegistryEntry(ItemRegistry.Entry registryEntry) {
+        this.registryEntry = registryEntry;
+    }
+
+
+    /**
+     * Sets the cache in which the decrypted data may be held, so that they
+     * are removed from it when this stream is deleted, whether explicitly,
+     * by the item expiry or by the item cleaner.
+     *
+     * @param plaintextCache The cache, or <code>null</code> for none.
+     */
+    void setPlaintextCache(PlaintextCache plaintextCache) {
+        this.plaintextCache = plaintextCache;
+    }
+
+
+    /**
+     * @return The cache in which the decrypted data may be held, or
+     * <code>null</code>.
+     */
+    PlaintextCache getPlaintextCache() {
+        return plaintextCache;
+    }
+
+
+    /**
+     * Returns whether the data of this stream have been deleted, or expired.
+     *
+     * @return <code>true</code> once the key has been destroyed.
+     */
+    boolean isDeleted() {
+        return key == null;
+    }
+
+
+    /**
+     * Returns whether this stream was deleted before it was closed, such as
+     * when an upload fails part-way. Further writes then fail.
+     *
+     * @return <code>true</code> if the stream was aborted.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+
+    /**
+     * Returns whether the data of this stream have been removed because the
+     * maximum lifetime passed.
+     *
+     * @return <code>true</code> if the stream has expired.
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+
+    /**
+     * Closes underlying output stream, and mark this as closed. Data written
+     * to disk are then forced to disk according to the durability policy.
+     *
+     * @exception IOException if an error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        super.close();
+        closed = true;
+        if (digests != null) {
+            byte[][] values = new byte[digests.length][];
+            for (int i = 0; i < digests.length; i++) {
+                values[i] = digests[i].digest();
+            }
+            digestValues = values;
+        }
+        if (adaptiveThreshold != null) {
+            adaptiveThreshold.record(adaptiveKey, getByteCount());
+        }
+        if (!isInMemory()) {
+            forceStored();
+            scheduleExpiry();
+        }
+    }
+
+
+    /**
+     * Moves data held in memory by a closed stream to disk, encrypting them
+     * as they are written, so that the memory can be reclaimed under heap
+     * pressure. Buffers borrowed from an arena are not reused, since views
+     * of them may still be reachable; they are left to the garbage collector.
+     *
+     * @return <code>true</code> if the data were moved; <code>false</code>
+     * if the stream is still open, already on disk, or deleted.
+     * @exception IOException if the data cannot be written. They are then
+     * left in memory.
+     */
+    synchronized boolean demote() throws IOException {
+        ChunkBuffer data = memoryOutputStream;
+        if (!closed || spilled || data == null) {
+            return false;
+        }
+        reserveDisk(data.size());
+        OutputStream fos;
+        try {
+            fos = openDiskStream();
+        } catch (IOException e) {
+            discardDemotion();
+            throw e;
+        }
+        try {
+            data.writeTo(fos);
+            fos.close();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fos);
+            discardDemotion();
+            throw e;
+        }
+        currentOutputStream = fos;
+        spilled = true;
+        memoryOutputStream = null;
+        data.forget();
+        releaseReservation();
+        if (registryEntry != null) {
+            registryEntry.spilled();
+        }
+        forceStored();
+        scheduleExpiry();
+        return true;
+    }
+
+
+    /**
+     * Removes any data this stream has written. Data held in memory are
+     * discarded, returning their chunks to the buffer arena. A pooled file is
+     * returned to its pool, and forgotten so that it cannot be read through
+     * this stream once another item has taken it. An extent is deleted from
+     * its segment store.
+     */
+    synchronized void delete() {
+        delete(null);
+    }
+
+
+    /**
+     * Removes any data this stream has written, as {@link #delete()} does,
+     * and destroys the key. A temporary file that would be unlinked is
+     * added to the given collection instead, so that the caller can unlink
+     * a batch of files at once.
+     *
+     * @param unlinks Files to unlink, or <code>null</code> to unlink the
+     *                file now.
+     */
+    synchronized void delete(Collection<File> unlinks) {
+        if (!closed && key != null) {
+            aborted = true;
+        }
+        if (isInMemory()) {
+            if (memoryOutputStream != null) {
+                memoryOutputStream.release();
+                memoryOutputStream = null;
+                // Let the buffer go, so that streams still reading it are
+                // the only thing keeping its lent chunks from the arena:
+                currentOutputStream = ClosedOutputStream.CLOSED_OUTPUT_STREAM;
+            }
+            releaseReservation();
+            // Space may have been reserved for a spill that failed:
+            releaseDiskReservation();
+            closed = true;
+        } else {
+            if (!closed) {
+                IOUtils.closeQuietly(currentOutputStream);
+                closed = true;
+            }
+            deleteStored(unlinks);
+        }
+        destroyKey();
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        if (registryEntry != null) {
+            registryEntry.remove();
+        }
+        // After the key is destroyed, so that a reader caching the data
+        // concurrently sees that they have been deleted:
+        if (plaintextCache != null) {
+            plaintextCache.invalidate(this);
+        }
+    }
+
+
+    /**
+     * Removes the data written to disk, as {@link #delete()} does, because
+     * the maximum lifetime has passed.
+     *
+     * @return <code>true</code> if the data were removed; <code>false</code>
+     * if they are held in memory or have already been deleted.
+     */
+    synchronized boolean expire() {
+        if (isInMemory() || key == null) {
+            return false;
+        }
+        expired = true;
+        expiry = null;
+        delete(null);
+        return true;
+    }
+
+
+    /**
+     * Discards data held in memory by a stream that is being garbage
+     * collected without having been deleted. Buffers borrowed from an arena
+     * are counted as leaked there, rather than reused.
+     */
+    synchronized void abandon() {
+        if (memoryOutputStream != null) {
+            memoryOutputStream.abandon();
+            memoryOutputStream = null;
+        }
+        releaseReservation();
+        if (registryEntry != null) {
+            registryEntry.remove();
+        }
+    }
+
+
+    /**
+     * Writes the data from this output stream to the specified output stream,
+     * after it has been closed. Data written to disk are decrypted.
+     *
+     * @param out output stream to write to.
+     * @exception IOException if this stream is not yet closed or an error occurs.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        // we may only need to check if this is closed if we are working with a file
+        // but we should force the habit of closing wether we are working with
+        // a file or memory.
+        if (!closed) {
+            throw new IOException("Stream not closed");
+        }
+
+        if (isInMemory()) {
+            memoryData().writeTo(out);
+        }
+        else
+        {
+            transferStored(Channels.newChannel(out));
+        }
+    }
+
+
+    /**
+     * Writes the data from this output stream to the specified channel,
+     * after it has been closed. Data written to disk are decrypted in large
+     * blocks using direct buffers, and written straight into the channel,
+     * which should be in blocking mode. The channel is not closed.
+     *
+     * @param channel channel to write to.
+     * @return The number of bytes written.
+     * @exception IOException if this stream is not yet closed or an error occurs.
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        if (!closed) {
+            throw new IOException("Stream not closed");
+        }
+
+        if (isInMemory()) {
+            return memoryData().writeTo(channel);
+        }
+        return transferStored(channel);
+    }
+
+
+    /**
+     * Opens the data retained in memory by this stream for reading, without
+     * copying them.
+     *
+     * @return A stream of the data.
+     * @exception IOException if the data have been deleted.
+     */
+    InputStream openData() throws IOException {
+        ChunkBuffer data = memoryOutputStream;
+        if (data == null && spilled) {
+            // Demoted since the caller checked
+            return openDecrypted();
+        }
+        return memoryData().openInputStream();
+    }
+
+
+    /**
+     * Opens the data written to disk by this stream for reading, decrypting
+     * them as they are read.
+     *
+     * @return A stream of the cleartext data.
+     * @exception IOException if the data have been deleted or cannot be read.
+     */
+    InputStream openDecrypted() throws IOException {
+        SecretKey key = liveKey();
+        return new Crypto().decrypt(openStored(), key);
+    }
+
+
+    /**
+     * Opens the disk storage to which data beyond the memory tier are
+     * written, encrypting them as they are written.
+     *
+     * @return The encrypting stream.
+     * @exception IOException if the storage cannot be opened.
+     */
+    private OutputStream openDiskStream() throws IOException {
+        OutputStream target;
+        if (segmentStore != null) {
+            extent = segmentStore.newExtent();
+            target = extent.openOutputStream();
+        } else {
+            if (tempFilePool != null) {
+                outputFile = tempFilePool.acquire();
+            } else if (prefix != null) {
+                outputFile = File.createTempFile(prefix, suffix, directory);
+            }
+            // Before the file exists, so that a sweeper never sees it unowned:
+            OrphanSweeper.claim(outputFile.getAbsoluteFile().getParentFile());
+            storedDirect = directIO && Math.max(declaredSize, getByteCount()) >= directIOMinSize;
+            target = storedDirect ? DirectIO.newOutputStream(outputFile) : new FileOutputStream(outputFile);
+        }
+        return new Crypto().encrypt(target, liveKey());
+    }
+
+
+    /**
+     * Forces data written to disk to disk, according to the durability policy.
+     *
+     * @exception IOException if the data cannot be forced.
+     */
+    private void forceStored() throws IOException {
+        if (durability == Durability.NONE) {
+            return;
+        }
+        List<File> files = extent != null ? extent.getFiles() : Collections.singletonList(outputFile);
+        if (groupCommit == null) {
+            GroupCommit.force(files);
+        } else if (durability == Durability.PERIODIC) {
+            groupCommit.schedule(files);
+        } else {
+            groupCommit.commit(files);
+        }
+    }
+
+
+    /**
+     * Removes what a failed {@link #demote()} wrote to disk. The stream is
+     * still live, so this is done now rather than by the reaper, which stays
+     * set for when the stream is deleted, and the stream is given a fresh
+     * file name so that another attempt does not find a partial file there.
+     */
+    private void discardDemotion() {
+        releaseDiskReservation();
+        if (extent != null) {
+            extent.delete();
+            extent = null;
+        } else if (outputFile != null) {
+            if (tempFilePool != null) {
+                // Nothing can be reading a file that was never complete
+                tempFilePool.release(outputFile);
+                outputFile = null;
+            } else {
+                outputFile.delete();
+                outputFile = prefix != null ? null : EncryptedFileItem.newTempFile(outputFile.getParentFile());
+            }
+        }
+    }
+
+
+    /**
+     * Removes the data written to disk.
+     */
+    private void deleteStored(Collection<File> unlinks) {
+        releaseDiskReservation();
+        if (extent != null) {
+            extent.delete();
+        } else if (outputFile == null) {
+            return;
+        } else if (tempFilePool != null) {
+            if (storedReaders > 0) {
+                // Truncating or reusing the file would corrupt what is read
+                tempFilePool.discard(outputFile);
+            } else {
+                tempFilePool.release(outputFile);
+            }
+            outputFile = null;
+        } else if (unlinks != null) {
+            unlinks.add(outputFile);
+            tempFileReaper = null;
+        } else if (tempFileReaper != null) {
+            // Queue the file once; a later delete finds nothing to do
+            tempFileReaper.delete(outputFile);
+            tempFileReaper = null;
+        } else if (outputFile.exists()) {
+            outputFile.delete();
+        }
+    }
+
+
+    /**
+     * Destroys the key, if the JCE provider supports it, and forgets it, so
+     * that nothing written under it can be decrypted through this stream.
+     */
+    private void destroyKey() {
+        SecretKey destroyed = key;
+        key = null;
+        if (destroyed instanceof Destroyable) {
+            try {
+                ((Destroyable) destroyed).destroy();
+            } catch (DestroyFailedException e) {
+                // Not supported by the provider; the key is forgotten anyway
+            }
+        }
+    }
+
+
+    /**
+     * Returns the key, unless the stream has been deleted.
+     *
+     * @return The key.
+     * @exception IOException if the stream has been deleted.
+     */
+    private SecretKey liveKey() throws IOException {
+        SecretKey result = key;
+        if (result == null) {
+            throw new IOException(aborted ? "This stream has been aborted"
+                    : expired ? "The data for this stream have expired"
+                    : "The data for this stream have been deleted");
+        }
+        return result;
+    }
+
+
+    /**
+     * Reserves disk space for bytes about to be written to disk. If the
+     * quota is used up and redirects, data that have not yet reached disk
+     * are written to the overflow repository instead.
+     *
+     * @param bytes The number of bytes.
+     * @exception IOException wrapping a {@link DiskQuotaExceededException}
+     * if the space cannot be reserved.
+     */
+    private void reserveDisk(long bytes) throws IOException {
+        if (diskQuota == null || redirected || bytes <= 0) {
+            return;
+        }
+        if (diskQuota.reserve(bytes)) {
+            diskReserved += bytes;
+            return;
+        }
+        if (diskQuota.getPolicy() == DiskQuota.Policy.REDIRECT && !spilled && extent == null
+                && segmentStore == null && tempFilePool == null && outputFile != null) {
+            outputFile = new File(diskQuota.getOverflowRepository(), outputFile.getName());
+            redirected = true;
+            diskQuota.redirected();
+            return;
+        }
+        throw new FileUploadBase.FileUploadIOException(new DiskQuotaExceededException(
+                String.format("Disk quota of %d bytes exceeded; %d bytes in use",
+                        diskQuota.getMaxBytes(), diskQuota.getUsedBytes()),
+                diskQuota.getMaxBytes(), bytes));
+    }
+
+
+    /**
+     * Gives back any disk space reserved against the quota.
+     */
+    private void releaseDiskReservation() {
+        if (diskReserved > 0) {
+            diskQuota.release(diskReserved);
+            diskReserved = 0;
+        }
+    }
+
+
+    /**
+     * Schedules the data written to disk for expiry, if an expiry service
+     * is set.
+     */
+    private synchronized void scheduleExpiry() {
+        if (itemExpiry != null && expiry == null && key != null) {
+            expiry = itemExpiry.schedule(this);
+        }
+    }
+
+
+    /**
+     * Gives back any memory reserved against the budget.
+     */
+    private void releaseReservation() {
+        if (reserved > 0) {
+            memoryBudget.release(reserved);
+            reserved = 0;
+        }
+    }
+
+
+    /**
+     * Returns the data held in memory.
+     *
+     * @return The memory tier.
+     * @exception IOException if the data have been deleted.
+     */
+    private ChunkBuffer memoryData() throws IOException {
+        ChunkBuffer data = memoryOutputStream;
+        if (data == null) {
+            throw new IOException("The data for this stream have been deleted");
+        }
+        return data;
+    }
+
+
+    /**
+     * Decrypts the data written to disk by this stream into the given channel.
+     *
+     * @param channel channel to write to.
+     * @return The number of bytes written.
+     * @exception IOException if the data have been deleted or cannot be read.
+     */
+    private long transferStored(WritableByteChannel channel) throws IOException {
+        SecretKey key = liveKey();
+        ReadableByteChannel source = openStoredChannel();
+        try {
+            return Decryptor.transfer(source, key, channel, bufferArena, getByteCount());
+        } finally {
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+
+    /**
+     * Opens the encrypted data written to disk by this stream as a channel.
+     *
+     * @return A channel of the ciphertext.
+     * @exception IOException if the data have been deleted or cannot be read.
+     */
+    private ReadableByteChannel openStoredChannel() throws IOException {
+        if (extent != null) {
+            return extent.openChannel();
+        }
+        if (tempFilePool != null) {
+            return Channels.newChannel(openStored());
+        }
+        if (outputFile == null) {
+            throw new FileNotFoundException("The data for this stream have been deleted");
+        }
+        if (storedDirect) {
+            return Channels.newChannel(DirectIO.newInputStream(outputFile));
+        }
+        return FileChannel.open(outputFile.toPath(), StandardOpenOption.READ);
+    }
+
+
+    /**
+     * Opens the encrypted data written to disk by this stream.
+     *
+     * @return A stream of the ciphertext.
+     * @exception IOException if the data have been deleted or cannot be read.
+     */
+    private InputStream openStored() throws IOException {
+        if (extent != null) {
+            return Channels.newInputStream(extent.openChannel());
+        }
+        if (tempFilePool != null) {
+            synchronized (this) {
+                if (outputFile == null) {
+                    throw new FileNotFoundException("The data for this stream have been deleted");
+                }
+                InputStream in = storedDirect ? DirectIO.newInputStream(outputFile) : new FileInputStream(outputFile);
+                storedReaders++;
+                return new PooledFileInputStream(in);
+            }
+        }
+        if (outputFile == null) {
+            throw new FileNotFoundException("The data for this stream have been deleted");
+        }
+        return storedDirect ? DirectIO.newInputStream(outputFile) : new FileInputStream(outputFile);
+    }
+
+
+    /**
+     * Counts a reader of a pooled output file as closed.
+     */
+    private synchronized void storedReaderClosed() {
+        storedReaders--;
+    }
+
+
+    // ---------------------------------------------------------- Inner classes
+
+
+    /**
+     * Reads a pooled output file, which is not returned to the pool while
+     * this stream is open.
+     */
+    private final class PooledFileInputStream extends FilterInputStream {
+
+        private boolean closed;
+
+        PooledFileInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
             try {
-                IOUtils.copy(fis, out);
+                super.close();
             } finally {
-                IOUtils.closeQuietly(fis);
+                storedReaderClosed();
             }
         }
     }
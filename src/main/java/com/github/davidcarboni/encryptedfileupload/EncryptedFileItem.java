@@ -1,16 +1,22 @@
 package com.github.davidcarboni.encryptedfileupload;
 
-import com.github.davidcarboni.cryptolite.Crypto;
 import com.github.davidcarboni.cryptolite.Keys;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemHeaders;
-import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.ParameterParser;
 import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.IOUtils;
 
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -40,7 +46,7 @@ public class EncryptedFileItem
     /**
      * UID used in unique file name generation.
      */
-    private static final String UID =
+    static final String UID =
             UUID.randomUUID().toString().replace('-', '_');
 
     /**
@@ -89,13 +95,35 @@ public class EncryptedFileItem
     /**
      * Cached contents of the file.
      */
-    private byte[] cachedContent;
+    private volatile byte[] cachedContent;
+
+    /**
+     * The charset parsed from the content type, once parsed.
+     */
+    private transient String charSet;
+
+    /**
+     * Whether the content type has been parsed for a charset.
+     */
+    private transient boolean charSetParsed;
+
+    /**
+     * The contents decoded as a string, as a pair of the charset name and
+     * the string, if the contents are held in memory.
+     */
+    private transient volatile String[] cachedString;
 
     /**
      * Output stream for this item.
      */
     private transient EncryptedDeferredOutputStream dfos;
 
+    /**
+     * Releases the storage of this item if it is collected without being
+     * deleted.
+     */
+    private transient ItemCleaner.Cleanup cleanup;
+
     /**
      * The temporary file to use.
      */
@@ -117,6 +145,12 @@ public class EncryptedFileItem
      */
     private String defaultCharset = DEFAULT_CHARSET;
 
+    /**
+     * The factory that created this item, if any, which provides shared
+     * resources such as the temporary file pool.
+     */
+    private final transient EncryptedFileItemFactory factory;
+
     // ----------------------------------------------------------- Constructors
 
     /**
@@ -139,6 +173,31 @@ public class EncryptedFileItem
     public EncryptedFileItem(String fieldName,
                              String contentType, boolean isFormField, String fileName,
                              int sizeThreshold, File repository) {
+        this(fieldName, contentType, isFormField, fileName, sizeThreshold, repository, null);
+    }
+
+    /**
+     * Constructs a new <code>EncryptedFileItem</code> instance which uses the
+     * shared resources of the given factory.
+     *
+     * @param fieldName     The name of the form field.
+     * @param contentType   The content type passed by the browser or
+     *                      <code>null</code> if not specified.
+     * @param isFormField   Whether or not this item is a plain form field, as
+     *                      opposed to a file upload.
+     * @param fileName      The original filename in the user's filesystem, or
+     *                      <code>null</code> if not specified.
+     * @param sizeThreshold The threshold, in bytes, below which items will be
+     *                      retained in memory and above which they will be
+     *                      stored as a file.
+     * @param repository    The data repository, which is the directory in
+     *                      which files will be created, should the item size
+     *                      exceed the threshold.
+     * @param factory       The factory creating this item, or <code>null</code>.
+     */
+    EncryptedFileItem(String fieldName,
+                      String contentType, boolean isFormField, String fileName,
+                      int sizeThreshold, File repository, EncryptedFileItemFactory factory) {
         this.fieldName = fieldName;
         this.contentType = contentType;
         this.isFormField = isFormField;
@@ -146,6 +205,7 @@ public class EncryptedFileItem
         this.sizeThreshold = sizeThreshold;
         this.repository = repository;
         this.key = Keys.newSecretKey();
+        this.factory = factory;
     }
 
     // ------------------------------- Methods from javax.activation.DataSource
@@ -154,19 +214,30 @@ public class EncryptedFileItem
      * Returns an {@link java.io.InputStream InputStream} that can be
      * used to retrieve the contents of the file.
      *
+     * Contents held in memory are read straight from the item's buffers,
+     * rather than from a copy. A stream opened before the item is deleted
+     * goes on reading the contents it was opened on, since the buffers of
+     * a deleted item are not reused until every stream reading them has
+     * been closed, read to the end or garbage collected. Opening a stream
+     * after the item has been deleted fails.
+     *
      * @return An {@link java.io.InputStream InputStream} that can be
      * used to retrieve the contents of the file.
      *
-     * @throws IOException if an error occurs.
+     * @throws IOException if an error occurs, or the item has been deleted.
      */
     public InputStream getInputStream()
             throws IOException {
         if (!isInMemory()) {
-            return new Crypto().decrypt(new FileInputStream(dfos.getFile()), key);
+            byte[] plaintext = getCachedPlaintext();
+            if (plaintext != null) {
+                return new ByteArrayInputStream(plaintext);
+            }
+            return new ItemInputStream(dfos.openDecrypted());
         }
 
         if (cachedContent == null) {
-            cachedContent = dfos.getData();
+            return new ItemInputStream(dfos.openData());
         }
         return new ByteArrayInputStream(cachedContent);
     }
@@ -190,11 +261,25 @@ public class EncryptedFileItem
      * not defined.
      */
     public String getCharSet() {
-        ParameterParser parser = new ParameterParser();
-        parser.setLowerCaseNames(true);
-        // Parameter parser can handle null input
-        Map<String, String> params = parser.parse(getContentType(), ';');
-        return params.get("charset");
+        if (!charSetParsed) {
+            charSet = parseCharSet(getContentType());
+            charSetParsed = true;
+        }
+        return charSet;
+    }
+
+    /**
+     * Returns a {@link java.io.Reader Reader} of the contents of the file,
+     * decoded with the charset passed by the agent, or the default charset.
+     * The contents are decrypted and decoded as they are read, so large text
+     * parts need not be held in memory as bytes or as a string.
+     *
+     * @return A reader of the contents of the file.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public Reader getReader() throws IOException {
+        return newReader(getInputStream(), getCharSet(), defaultCharset);
     }
 
     /**
@@ -236,11 +321,10 @@ public class EncryptedFileItem
             return size;
         } else if (cachedContent != null) {
             return cachedContent.length;
-        } else if (dfos.isInMemory()) {
-            return dfos.getData().length;
         } else {
             // Use the count of bytes written, rather than the file size (as DiskFileItem does)
-            // because encrypted file size will differ from cleartext size:
+            // because encrypted file size will differ from cleartext size,
+            // and data in memory need not be copied to be counted:
             return dfos.getByteCount();
         }
     }
@@ -255,17 +339,32 @@ public class EncryptedFileItem
      */
     public byte[] get() {
         if (isInMemory()) {
-            if (cachedContent == null && dfos != null) {
-                cachedContent = dfos.getData();
+            byte[] content = cachedContent;
+            if (content == null && dfos != null) {
+                content = dfos.getData();
+                cachedContent = content;
+            }
+            if (content != null || dfos == null || dfos.isInMemory()) {
+                return content;
+            }
+            // Moved to disk since isInMemory() was checked
+        }
+
+        try {
+            byte[] plaintext = getCachedPlaintext();
+            if (plaintext != null) {
+                // The cached array is shared with other readers:
+                return plaintext.clone();
             }
-            return cachedContent;
+        } catch (IOException e) {
+            return null;
         }
 
         byte[] fileData = new byte[(int) getSize()];
         InputStream fis = null;
 
         try {
-            fis = new Crypto().decrypt(new FileInputStream(dfos.getFile()), key);
+            fis = dfos.openDecrypted();
             IOUtils.readFully(fis, fileData);
         } catch (IOException e) {
             fileData = null;
@@ -278,40 +377,61 @@ public class EncryptedFileItem
 
     /**
      * Returns the contents of the file as a String, using the specified
-     * encoding.  This method uses {@link #get()} to retrieve the
-     * contents of the file.
+     * encoding. Contents held in memory are decoded once and the string is
+     * cached; contents on disk are decoded as they are decrypted, without
+     * first being read into an array.
      *
      * @param charset The charset to use.
      *
-     * @return The contents of the file, as a string.
+     * @return The contents of the file, as a string, or {@code null} if the
+     * contents cannot be read.
      *
      * @throws UnsupportedEncodingException if the requested character
      *                                      encoding is not available.
      */
     public String getString(final String charset)
             throws UnsupportedEncodingException {
-        return new String(get(), charset);
+        String[] cached = cachedString;
+        if (cached != null && cached[0].equals(charset)) {
+            return cached[1];
+        }
+        if (isInMemory()) {
+            String result = new String(get(), charset);
+            cachedString = new String[]{charset, result};
+            return result;
+        }
+        // Decode as the contents are decrypted, rather than via get():
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(getInputStream(), charset);
+            return read(reader, getSize());
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
     }
 
     /**
-     * Returns the contents of the file as a String, using the default
-     * character encoding.  This method uses {@link #get()} to retrieve the
-     * contents of the file.
+     * Returns the contents of the file as a String, using the charset passed
+     * by the agent, or the default character encoding.  This method uses
+     * {@link #getString(String)} to retrieve the contents of the file.
      *
      * <b>TODO</b> Consider making this method throw UnsupportedEncodingException.
      *
      * @return The contents of the file, as a string.
      */
     public String getString() {
-        byte[] rawdata = get();
         String charset = getCharSet();
         if (charset == null) {
             charset = defaultCharset;
         }
         try {
-            return new String(rawdata, charset);
+            return getString(charset);
         } catch (UnsupportedEncodingException e) {
-            return new String(rawdata);
+            return new String(get());
         }
     }
 
@@ -321,14 +441,9 @@ public class EncryptedFileItem
      * disk in a temporary location. They just want to write the uploaded item
      * to a file.
      * <p>
-     * This implementation first attempts to rename the uploaded item to the
-     * specified destination file, if the item was originally written to disk.
-     * Otherwise, the data will be copied to the specified file.
-     * <p>
-     * This method is only guaranteed to work <em>once</em>, the first time it
-     * is invoked for a particular item. This is because, in the event that the
-     * method renames a temporary file, that file will no longer be available
-     * to copy or rename again at a later time.
+     * The uploaded item is held encrypted if it was written to disk, so
+     * rather than renaming the temporary file, this implementation always
+     * decrypts the data into the specified file.
      *
      * @param file The <code>File</code> into which the uploaded item should
      *             be stored.
@@ -336,44 +451,76 @@ public class EncryptedFileItem
      * @throws Exception if an error occurs.
      */
     public void write(File file) throws Exception {
+        /*
+         * If the uploaded file is encrypted on disk
+         * in a temporary location, or in a segment store,
+         * it is decrypted into the desired file.
+         */
+        FileOutputStream fout = null;
+        try {
+            fout = new FileOutputStream(file);
+            writeTo(fout.getChannel());
+            fout.close();
+        } finally {
+            IOUtils.closeQuietly(fout);
+        }
+    }
+
+    /**
+     * Writes the contents of the item to the given channel, such as a socket,
+     * a pipe or another file. Content stored on disk is decrypted in large
+     * blocks straight into the channel, rather than being copied through
+     * {@link #getInputStream()} and a heap buffer. The channel is not closed.
+     *
+     * @param channel The channel to write to, which should be in blocking mode.
+     *
+     * @return The number of bytes written.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
         if (isInMemory()) {
-            FileOutputStream fout = null;
-            try {
-                fout = new FileOutputStream(file);
-                fout.write(get());
-                fout.close();
-            } finally {
-            	IOUtils.closeQuietly(fout);
+            List<ByteBuffer> buffers = getBuffers();
+            if (buffers == null) {
+                throw new IOException("The data for this item have been deleted");
             }
-        } else {
-            File outputFile = getStoreLocation();
-            if (outputFile != null) {
-                // Save the length of the file
-                size = outputFile.length();
-                /*
-                 * The uploaded file is encrypted on disk
-                 * in a temporary location so must be decrypted
-                 * into the desired file.
-                 */
-                InputStream in = null;
-                OutputStream out = null;
-                try {
-                    in = new Crypto().decrypt(new FileInputStream(outputFile), key);
-                    out = new FileOutputStream(file);
-                    IOUtils.copy(in, out);
-                } finally {
-                    IOUtils.closeQuietly(in);
-                    IOUtils.closeQuietly(out);
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                total += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
                 }
-            } else {
-                /*
-                 * For whatever reason we cannot write the
-                 * file to disk.
-                 */
-                throw new FileUploadException(
-                        "Cannot write uploaded file to disk!");
             }
+            return total;
+        }
+        byte[] plaintext = getCachedPlaintext();
+        if (plaintext != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return plaintext.length;
         }
+        return dfos.writeTo(channel);
+    }
+
+    /**
+     * Returns read-only views of the contents of the item, if they are held
+     * in memory, without copying them. The views share the item's buffers,
+     * which are then not reused when the item is deleted, so views taken
+     * before the item is deleted go on reading its contents.
+     *
+     * @return The contents of the item, in order, or <code>null</code> if
+     * they are held on disk or have been deleted.
+     */
+    public List<ByteBuffer> getBuffers() {
+        if (cachedContent != null) {
+            return Collections.singletonList(ByteBuffer.wrap(cachedContent).asReadOnlyBuffer());
+        }
+        if (dfos == null || !dfos.isInMemory()) {
+            return null;
+        }
+        return dfos.getBuffers();
     }
 
     /**
@@ -382,13 +529,48 @@ public class EncryptedFileItem
      * automatically when the <code>FileItem</code> instance is garbage
      * collected, this method can be used to ensure that this is done at an
      * earlier time, thus preserving system resources.
+     * <p>
+     * If the item is still being written, the upload is aborted, as by
+     * {@link #abort()}.
      */
     public void delete() {
-        cachedContent = null;
-        File outputFile = getStoreLocation();
-        if (outputFile != null && !isInMemory() && outputFile.exists()) {
-            outputFile.delete();
-        }
+        delete(null);
+    }
+
+    /**
+     * Aborts an upload in progress, such as when the client disconnects.
+     * Buffers go back to the arena and budget straight away, the key is
+     * destroyed, the temporary file is queued for deletion, and any further
+     * write to the item's output stream fails with an
+     * {@link IOException}. Calling this on a complete item deletes it.
+     */
+    public void abort() {
+        delete(null);
+    }
+
+    /**
+     * Returns whether this item was deleted before it was completely
+     * written.
+     *
+     * @return <code>true</code> if the upload was aborted.
+     */
+    public boolean isAborted() {
+        return dfos != null && dfos.isAborted();
+    }
+
+    /**
+     * Returns a digest of the contents of the file, computed as they were
+     * uploaded, so that the file need not be read and decrypted again. The
+     * algorithms are chosen with
+     * {@link EncryptedFileItemFactory#setDigestAlgorithms(String...)}.
+     *
+     * @param algorithm The name of the digest algorithm, such as "SHA-256"
+     *                  or "CRC32C".
+     * @return The digest, or <code>null</code> if it was not computed.
+     * @exception IllegalStateException if the item is not yet complete.
+     */
+    public byte[] getDigest(String algorithm) {
+        return dfos == null ? null : dfos.getDigest(algorithm);
     }
 
     /**
@@ -447,6 +629,10 @@ public class EncryptedFileItem
     /**
      * Returns an {@link java.io.OutputStream OutputStream} that can
      * be used for storing the contents of the file.
+     * <p>
+     * If headers declaring a Content-Length have been set by then, and the
+     * length does not exceed the threshold, the contents are held in one
+     * buffer of that size, which {@link #get()} returns without copying.
      *
      * @return An {@link java.io.OutputStream OutputStream} that can be used
      *         for storing the contents of the file.
@@ -456,8 +642,42 @@ public class EncryptedFileItem
     public OutputStream getOutputStream()
             throws IOException {
         if (dfos == null) {
-            File outputFile = getTempFile();
-            dfos = new EncryptedDeferredOutputStream(sizeThreshold, outputFile, key);
+            SegmentStore segmentStore = factory == null ? null : factory.getSegmentStore();
+            TempFilePool tempFilePool = factory == null ? null : factory.getTempFilePool();
+            if (segmentStore != null) {
+                dfos = new EncryptedDeferredOutputStream(sizeThreshold, segmentStore, key);
+            } else if (tempFilePool != null) {
+                dfos = new EncryptedDeferredOutputStream(sizeThreshold, tempFilePool, key);
+            } else {
+                File outputFile = getTempFile();
+                dfos = new EncryptedDeferredOutputStream(sizeThreshold, outputFile, key);
+            }
+            long declaredSize = getDeclaredSize();
+            if (declaredSize > 0) {
+                dfos.setSizeHint(declaredSize);
+            }
+            if (factory != null) {
+                dfos.setBufferArena(factory.getBufferArena());
+                dfos.setMemoryBudget(factory.getMemoryBudget());
+                AdaptiveThreshold adaptiveThreshold = factory.getAdaptiveThreshold();
+                if (adaptiveThreshold != null) {
+                    dfos.setAdaptiveThreshold(adaptiveThreshold, adaptiveThreshold.key(contentType, fieldName));
+                }
+                dfos.setDirectIO(factory.isDirectIO());
+                dfos.setDirectIOMinSize(factory.getDirectIOMinSize());
+                dfos.setDurability(factory.getDurability(), factory.getGroupCommit());
+                dfos.setTempFileReaper(factory.getTempFileReaper());
+                dfos.setItemExpiry(factory.getItemExpiry());
+                dfos.setDiskQuota(factory.getDiskQuota());
+                dfos.setDigestAlgorithms(factory.getDigestAlgorithms());
+                dfos.setPlaintextCache(factory.getPlaintextCache());
+                ItemRegistry itemRegistry = factory.getItemRegistry();
+                if (itemRegistry != null) {
+                    dfos.setRegistryEntry(itemRegistry.register(this));
+                }
+            }
+            ItemCleaner itemCleaner = factory == null ? ItemCleaner.getDefault() : factory.getItemCleaner();
+            cleanup = itemCleaner.register(this, dfos);
         }
         return dfos;
     }
@@ -475,7 +695,7 @@ public class EncryptedFileItem
      * volume.
      *
      * @return The data file, or <code>null</code> if the data is stored in
-     * memory.
+     * memory, or in a {@link SegmentStore}.
      */
     public File getStoreLocation() {
         if (dfos == null) {
@@ -489,21 +709,6 @@ public class EncryptedFileItem
 
     // ------------------------------------------------------ Protected methods
 
-    /**
-     * Removes the file contents from the temporary storage.
-     */
-    @Override
-    protected void finalize() {
-        if (dfos == null || dfos.isInMemory()) {
-            return;
-        }
-        File outputFile = dfos.getFile();
-
-        if (outputFile != null && outputFile.exists()) {
-            outputFile.delete();
-        }
-    }
-
     /**
      * Creates and returns a {@link java.io.File File} representing a uniquely
      * named temporary file in the configured repository path. The lifetime of
@@ -512,25 +717,218 @@ public class EncryptedFileItem
      * <p>
      * <b>Note: Subclasses that override this method must ensure that they return the
      * same File each time.</b>
+     * <p>
+     * If the factory provides a {@link TempFilePool}, the file is only taken
+     * from the pool once the threshold is reached, so this method returns
+     * <code>null</code> until then. If the factory provides a
+     * {@link SegmentStore}, there is no file and this method returns
+     * <code>null</code>.
      *
      * @return The {@link java.io.File File} to be used for temporary storage.
      */
     protected File getTempFile() {
         if (tempFile == null) {
-            File tempDir = repository;
-            if (tempDir == null) {
-                tempDir = new File(System.getProperty("java.io.tmpdir"));
+            if (dfos != null && (dfos.getTempFilePool() != null || dfos.getSegmentStore() != null)) {
+                return dfos.getFile();
             }
+            tempFile = newTempFile(repository);
+        }
+        return tempFile;
+    }
 
-            String tempFileName = format("upload_%s_%s.tmp", UID, getUniqueId());
+    // ------------------------------------------------------ Package methods
 
-            tempFile = new File(tempDir, tempFileName);
+    /**
+     * Deletes the underlying storage for this item, as {@link #delete()}
+     * does, and destroys its key. A temporary file that would be unlinked is
+     * added to the given collection instead, so that a batch of files can be
+     * unlinked at once.
+     *
+     * @param unlinks Files to unlink, or <code>null</code> to unlink the
+     *                file now.
+     */
+    void delete(Collection<File> unlinks) {
+        cachedContent = null;
+        cachedString = null;
+        if (dfos != null) {
+            if (cleanup != null) {
+                cleanup.delete(unlinks);
+            } else {
+                dfos.delete(unlinks);
+            }
         }
-        return tempFile;
+    }
+
+    /**
+     * Moves the contents of a completed item from memory to encrypted disk
+     * storage, so that the memory can be reclaimed.
+     *
+     * @return <code>true</code> if the contents were moved.
+     * @throws IOException if the contents cannot be written.
+     */
+    boolean demote() throws IOException {
+        if (dfos == null || !dfos.demote()) {
+            return false;
+        }
+        cachedContent = null;
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the contents of this item are complete
+     * and held in memory, so that they could be moved to disk.
+     */
+    boolean isDemotable() {
+        return dfos != null && dfos.isDemotable();
+    }
+
+    /**
+     * @return <code>true</code> if the contents of this item are complete
+     * and have been moved to disk or deleted.
+     */
+    boolean isSettled() {
+        return dfos != null && dfos.isSettled();
+    }
+
+    /**
+     * Returns a uniquely named temporary file in the given directory. The
+     * file itself is not created.
+     *
+     * @param repository The directory in which to place the file, or
+     *                   <code>null</code> for the system temporary directory.
+     * @return The {@link java.io.File File} to be used for temporary storage.
+     */
+    static File newTempFile(File repository) {
+        File tempDir = repository;
+        if (tempDir == null) {
+            tempDir = new File(System.getProperty("java.io.tmpdir"));
+        }
+
+        String tempFileName = format("upload_%s_%s.tmp", UID, getUniqueId());
+
+        return new File(tempDir, tempFileName);
+    }
+
+    /**
+     * Returns the charset parameter of a content type.
+     *
+     * @param contentType The content type, or <code>null</code>.
+     * @return The charset, or <code>null</code> if not defined.
+     */
+    static String parseCharSet(String contentType) {
+        ParameterParser parser = new ParameterParser();
+        parser.setLowerCaseNames(true);
+        // Parameter parser can handle null input
+        Map<String, String> params = parser.parse(contentType, ';');
+        return params.get("charset");
+    }
+
+    /**
+     * Returns a reader that decodes the given stream as it is read.
+     * Malformed input is replaced, as it is when a String is constructed.
+     *
+     * @param in             The stream to decode.
+     * @param charset        The charset passed by the agent, or
+     *                       <code>null</code>.
+     * @param defaultCharset The charset to use if none was passed, or if
+     *                       the one passed is not supported.
+     * @return The reader.
+     */
+    static Reader newReader(InputStream in, String charset, String defaultCharset) {
+        Charset decoding;
+        try {
+            decoding = Charset.forName(charset == null ? defaultCharset : charset);
+        } catch (IllegalArgumentException e) {
+            // Illegal or unsupported charset name
+            decoding = Charset.forName(defaultCharset);
+        }
+        CharsetDecoder decoder = decoding.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return new InputStreamReader(in, decoder);
+    }
+
+    /**
+     * Reads everything from a reader.
+     *
+     * @param reader The reader.
+     * @param size   The number of bytes being decoded, used to size the result.
+     * @return The text read.
+     * @throws IOException if an error occurs.
+     */
+    static String read(Reader reader, long size) throws IOException {
+        StringBuilder result = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE - 8));
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            result.append(buffer, 0, n);
+        }
+        return result.toString();
     }
 
     // -------------------------------------------------------- Private methods
 
+    /**
+     * Returns the size declared by the Content-Length header of this item.
+     *
+     * @return The declared size, or -1 if no valid size is declared.
+     */
+    private long getDeclaredSize() {
+        if (headers == null) {
+            return -1;
+        }
+        String contentLength = headers.getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the decrypted contents of this item from the factory's
+     * {@link PlaintextCache}. On a miss, the contents are decrypted in full
+     * and added to the cache.
+     *
+     * @return The contents, or <code>null</code> if there is no cache or the
+     * item is too large to cache.
+     *
+     * @throws IOException if the contents cannot be decrypted.
+     */
+    private byte[] getCachedPlaintext() throws IOException {
+        PlaintextCache plaintextCache = dfos.getPlaintextCache();
+        long size = getSize();
+        if (plaintextCache == null || !plaintextCache.accepts(size)) {
+            return null;
+        }
+        if (dfos.isExpired()) {
+            // Don't serve the contents of an expired item from the cache
+            plaintextCache.invalidate(dfos);
+            throw new IOException("The data for this item have expired");
+        }
+        byte[] plaintext = plaintextCache.get(dfos);
+        if (plaintext == null) {
+            plaintext = new byte[(int) size];
+            InputStream in = dfos.openDecrypted();
+            try {
+                IOUtils.readFully(in, plaintext);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            plaintextCache.put(dfos, plaintext);
+            if (dfos.isDeleted()) {
+                // Deleted while decrypting, after the stream invalidated the cache
+                plaintextCache.invalidate(dfos);
+                throw new IOException(dfos.isExpired() ? "The data for this item have expired"
+                        : "The data for this item have been deleted");
+            }
+        }
+        return plaintext;
+    }
+
     /**
      * Returns an identifier that is unique within the class loader used to
      * load this class, but does not have random-like appearance.
@@ -595,4 +993,18 @@ public class EncryptedFileItem
     public void setDefaultCharset(String charset) {
         defaultCharset = charset;
     }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * A stream of the contents of this item, which keeps the item reachable
+     * while it is open, so that the {@link ItemCleaner} does not release the
+     * storage being read.
+     */
+    private final class ItemInputStream extends FilterInputStream {
+
+        ItemInputStream(InputStream in) {
+            super(in);
+        }
+    }
 }
@@ -21,6 +21,12 @@ public class EncryptedFileItemFactory implements FileItemFactory {
      */
     public static final int DEFAULT_SIZE_THRESHOLD = 10240;
 
+    /**
+     * The default size below which files use the page cache even when direct
+     * I/O is enabled.
+     */
+    public static final long DEFAULT_DIRECT_IO_MIN_SIZE = 8 * 1024 * 1024;
+
     // ----------------------------------------------------- Instance Variables
 
     /**
@@ -46,6 +52,114 @@ public class EncryptedFileItemFactory implements FileItemFactory {
      */
     private String defaultCharset = DiskFileItem.DEFAULT_CHARSET;
 
+    /**
+     * <p>The pool of reusable temporary files.</p>
+     * <p>May be null, in which case every item that exceeds the threshold
+     * gets a new file.</p>
+     */
+    private TempFilePool tempFilePool;
+
+    /**
+     * <p>The log-structured store in which items that exceed the threshold
+     * are written.</p>
+     * <p>May be null, in which case each such item is written to its own
+     * file.</p>
+     */
+    private SegmentStore segmentStore;
+
+    /**
+     * Whether files for items that exceed the threshold bypass the page cache.
+     */
+    private boolean directIO;
+
+    /**
+     * The size below which files use the page cache despite direct I/O.
+     */
+    private long directIOMinSize = DEFAULT_DIRECT_IO_MIN_SIZE;
+
+    /**
+     * When data of items that exceed the threshold are forced to disk.
+     */
+    private Durability durability = Durability.NONE;
+
+    /**
+     * <p>The service that forces data to disk in batches.</p>
+     * <p>May be null, in which case each item forces its own data.</p>
+     */
+    private GroupCommit groupCommit;
+
+    /**
+     * <p>The arena from which items borrow buffers while they are in
+     * memory.</p>
+     * <p>May be null, in which case each item allocates its own buffers.</p>
+     */
+    private BufferArena bufferArena;
+
+    /**
+     * <p>The limit on bytes held in memory by all items together.</p>
+     * <p>May be null, in which case only the size threshold applies.</p>
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * <p>The monitor that moves completed items to disk under heap
+     * pressure.</p>
+     * <p>May be null, in which case items stay in memory until deleted.</p>
+     */
+    private MemoryPressureMonitor memoryPressureMonitor;
+
+    /**
+     * <p>The model that chooses the size threshold of each item from the
+     * sizes seen.</p>
+     * <p>May be null, in which case the fixed size threshold applies.</p>
+     */
+    private AdaptiveThreshold adaptiveThreshold;
+
+    /**
+     * Whether plain form fields are created as compact {@link FormFieldItem}s.
+     */
+    private boolean compactFormFields;
+
+    /**
+     * The cache of decrypted contents, if any.
+     */
+    private PlaintextCache plaintextCache;
+
+    /**
+     * The cleaner for items that are not deleted, if any.
+     */
+    private ItemCleaner itemCleaner;
+
+    /**
+     * The reaper that unlinks temporary files, if any.
+     */
+    private TempFileReaper tempFileReaper;
+
+    /**
+     * The sweeper started by this factory, if any.
+     */
+    private OrphanSweeper orphanSweeper;
+
+    /**
+     * The expiry of items on disk, if any.
+     */
+    private ItemExpiry itemExpiry;
+
+    /**
+     * The quota on bytes held on disk, if any.
+     */
+    private DiskQuota diskQuota;
+
+    /**
+     * The registry of live items, if any.
+     */
+    private ItemRegistry itemRegistry = new ItemRegistry();
+
+    /**
+     * The digests computed over items as they are written.
+     */
+    private String[] digestAlgorithms = new String[0];
+
     // ----------------------------------------------------------- Constructors
 
     /**
@@ -137,18 +251,31 @@ public class EncryptedFileItemFactory implements FileItemFactory {
      * @param fileName    The name of the uploaded file, if any, as supplied
      *                    by the browser or other client.
      *
-     * @return The newly created file item.
+     * @return The newly created file item: a {@link FormFieldItem} for a
+     * plain form field without a file name, if compact form fields are
+     * enabled, or an {@link EncryptedFileItem} otherwise.
      */
     public FileItem createItem(String fieldName, String contentType,
                                boolean isFormField, String fileName) {
-        EncryptedFileItem result = new EncryptedFileItem(fieldName, contentType,
-                isFormField, fileName, sizeThreshold, repository);
-        result.setDefaultCharset(defaultCharset);
-        FileCleaningTracker tracker = getFileCleaningTracker();
-        if (tracker != null) {
-            tracker.track(result.getTempFile(), result);
+        int threshold = adaptiveThreshold == null ? sizeThreshold
+                : adaptiveThreshold.getThreshold(contentType, fieldName);
+        if (compactFormFields && isFormField && fileName == null) {
+            FormFieldItem result = new FormFieldItem(fieldName, contentType, threshold, this);
+            result.setDefaultCharset(defaultCharset);
+            return result;
         }
-        return result;
+        return newFileItem(fieldName, contentType, isFormField, fileName, threshold);
+    }
+
+    /**
+     * Creates a group for the items of one request, which deletes them all
+     * when it is closed. Pass the group to the upload parser in place of
+     * this factory.
+     *
+     * @return A new, empty group.
+     */
+    public ItemGroup newItemGroup() {
+        return new ItemGroup(this);
     }
 
     /**
@@ -191,4 +318,495 @@ public class EncryptedFileItemFactory implements FileItemFactory {
     public void setDefaultCharset(String pCharset) {
         defaultCharset = pCharset;
     }
+
+    /**
+     * Returns the pool of reusable temporary files.
+     *
+     * @return An instance of {@link TempFilePool}, or null (default), if
+     * every item that exceeds the threshold gets a new file.
+     */
+    public TempFilePool getTempFilePool() {
+        return tempFilePool;
+    }
+
+    /**
+     * Sets the pool of reusable temporary files. Items created from now on
+     * take their file from the pool once they exceed the size threshold, and
+     * return it when they are deleted. Pooled files are not registered with
+     * the {@link FileCleaningTracker}.
+     *
+     * @param pTempFilePool An instance of {@link TempFilePool}, or null
+     *                      (default), to create a new file for each item.
+     */
+    public void setTempFilePool(TempFilePool pTempFilePool) {
+        tempFilePool = pTempFilePool;
+    }
+
+    /**
+     * Returns the store in which items that exceed the threshold are written.
+     *
+     * @return An instance of {@link SegmentStore}, or null (default), if
+     * each such item is written to its own file.
+     */
+    public SegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+    /**
+     * Sets the store in which items that exceed the threshold are written.
+     * Items created from now on append their encrypted content to the
+     * store's segment files instead of creating a file each, and release
+     * it when they are deleted. A segment store takes precedence over a
+     * {@link TempFilePool}.
+     *
+     * @param pSegmentStore An instance of {@link SegmentStore}, or null
+     *                      (default), to write each item to its own file.
+     */
+    public void setSegmentStore(SegmentStore pSegmentStore) {
+        segmentStore = pSegmentStore;
+    }
+
+    /**
+     * Determines whether files for items that exceed the threshold are
+     * written and read bypassing the page cache.
+     *
+     * @return <code>true</code> if direct I/O is enabled. The default is
+     * <code>false</code>.
+     */
+    public boolean isDirectIO() {
+        return directIO;
+    }
+
+    /**
+     * Enables or disables direct I/O for files of items that exceed the
+     * threshold. Multi-gigabyte uploads are typically written once and read
+     * once, so passing them through the page cache only evicts data that
+     * other requests are using. Direct I/O needs Java 10 or later and a
+     * filesystem that supports it, such as ext4 or xfs on Linux; otherwise
+     * ordinary file I/O is used. Files smaller than
+     * {@link #getDirectIOMinSize()} still use the page cache. It does not
+     * apply to a {@link SegmentStore}.
+     *
+     * @param pDirectIO <code>true</code> to bypass the page cache.
+     */
+    public void setDirectIO(boolean pDirectIO) {
+        directIO = pDirectIO;
+    }
+
+    /**
+     * Returns the size below which files use the page cache even when direct
+     * I/O is enabled.
+     *
+     * @return The minimum size, in bytes. The default is
+     * {@link #DEFAULT_DIRECT_IO_MIN_SIZE}.
+     */
+    public long getDirectIOMinSize() {
+        return directIOMinSize;
+    }
+
+    /**
+     * Sets the size below which files use the page cache even when direct
+     * I/O is enabled, since each direct file costs a large aligned buffer
+     * and loses read-ahead, which only pays off for large uploads. An item
+     * is measured by its declared size, if the request gives one, or else by
+     * the bytes written when it spills to disk.
+     *
+     * @param pDirectIOMinSize The minimum size, in bytes, or zero for every
+     *                         file to use direct I/O.
+     */
+    public void setDirectIOMinSize(long pDirectIOMinSize) {
+        directIOMinSize = pDirectIOMinSize;
+    }
+
+    /**
+     * Returns the policy for forcing data of items that exceed the threshold
+     * to disk.
+     *
+     * @return The durability policy. The default is {@link Durability#NONE}.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets the policy for forcing data of items that exceed the threshold
+     * to disk. {@link Durability#PERIODIC} needs a {@link GroupCommit}
+     * service; without one, data are forced when each item is closed.
+     *
+     * @param pDurability The durability policy, or null for
+     *                    {@link Durability#NONE}.
+     */
+    public void setDurability(Durability pDurability) {
+        durability = pDurability == null ? Durability.NONE : pDurability;
+    }
+
+    /**
+     * Returns the service that forces data to disk in batches.
+     *
+     * @return An instance of {@link GroupCommit}, or null (default), if each
+     * item forces its own data.
+     */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Sets the service that forces data to disk in batches, so that
+     * concurrent uploads share fsync calls rather than each paying for one.
+     *
+     * @param pGroupCommit An instance of {@link GroupCommit}, or null
+     *                     (default), for each item to force its own data.
+     */
+    public void setGroupCommit(GroupCommit pGroupCommit) {
+        groupCommit = pGroupCommit;
+    }
+
+    /**
+     * Returns the arena from which items borrow buffers while they are in
+     * memory.
+     *
+     * @return An instance of {@link BufferArena}, or null (default), if each
+     * item allocates its own buffers.
+     */
+    public BufferArena getBufferArena() {
+        return bufferArena;
+    }
+
+    /**
+     * Sets the arena from which items borrow buffers while they are in
+     * memory. Buffers are returned when an item is deleted or exceeds the
+     * threshold, so that many small uploads reuse the same chunks. An arena
+     * with an off-heap budget keeps the contents of items below the
+     * threshold out of the Java heap.
+     *
+     * @param pBufferArena An instance of {@link BufferArena}, or null
+     *                     (default), for each item to allocate its own buffers.
+     */
+    public void setBufferArena(BufferArena pBufferArena) {
+        bufferArena = pBufferArena;
+    }
+
+    /**
+     * Returns the limit on bytes held in memory by all items together.
+     *
+     * @return An instance of {@link MemoryBudget}, or null (default), if
+     * only the size threshold applies.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the limit on bytes held in memory by all items together. The
+     * size threshold is per item, so a burst of uploads each just below it
+     * can still exhaust the heap; once the budget is in use, new or growing
+     * items are written to encrypted disk storage instead.
+     *
+     * @param pMemoryBudget An instance of {@link MemoryBudget}, or null
+     *                      (default), for only the size threshold to apply.
+     */
+    public void setMemoryBudget(MemoryBudget pMemoryBudget) {
+        memoryBudget = pMemoryBudget;
+    }
+
+    /**
+     * Returns the monitor that moves completed items to disk under heap
+     * pressure.
+     *
+     * @return An instance of {@link MemoryPressureMonitor}, or null
+     * (default), if items stay in memory until deleted.
+     */
+    public MemoryPressureMonitor getMemoryPressureMonitor() {
+        return memoryPressureMonitor;
+    }
+
+    /**
+     * Sets the monitor that moves completed items to disk under heap
+     * pressure. Items created from then on are demoted, largest first, when
+     * a heap memory pool crosses its usage threshold.
+     *
+     * @param pMemoryPressureMonitor An instance of
+     *                               {@link MemoryPressureMonitor}, or null
+     *                               (default), for items to stay in memory.
+     */
+    public void setMemoryPressureMonitor(MemoryPressureMonitor pMemoryPressureMonitor) {
+        memoryPressureMonitor = pMemoryPressureMonitor;
+    }
+
+    /**
+     * Returns the model that chooses the size threshold of each item from
+     * the sizes seen.
+     *
+     * @return An instance of {@link AdaptiveThreshold}, or null (default), if
+     * the fixed size threshold applies.
+     */
+    public AdaptiveThreshold getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
+    /**
+     * Sets the model that chooses the size threshold of each item from the
+     * sizes seen. While it is set, {@link #getSizeThreshold()} is not used
+     * for new items; the model's current threshold and its history show
+     * what is used instead.
+     *
+     * @param pAdaptiveThreshold An instance of {@link AdaptiveThreshold}, or
+     *                           null (default), for the fixed size threshold.
+     */
+    public void setAdaptiveThreshold(AdaptiveThreshold pAdaptiveThreshold) {
+        adaptiveThreshold = pAdaptiveThreshold;
+    }
+
+    /**
+     * Returns whether plain form fields are created as compact items.
+     *
+     * @return <code>true</code> if {@link #createItem} returns a
+     * {@link FormFieldItem} for a form field without a file name, or
+     * <code>false</code> (default) if every item is an
+     * {@link EncryptedFileItem}.
+     */
+    public boolean isCompactFormFields() {
+        return compactFormFields;
+    }
+
+    /**
+     * Sets whether plain form fields are created as compact items. A
+     * {@link FormFieldItem} holds its value in a single array, without an
+     * encryption key, deferred stream, temporary file name or tracker
+     * registration, and only falls back to an {@link EncryptedFileItem} if
+     * the field grows beyond the threshold.
+     *
+     * This is off by default, since callers that cast the items they are
+     * given to {@link EncryptedFileItem} would fail on form fields. Once it
+     * is on, such callers should only rely on {@link FileItem}, or check
+     * for a {@link FormFieldItem} and use its
+     * {@link FormFieldItem#getDelegate() delegate} if it has one.
+     *
+     * @param pCompactFormFields <code>true</code> for plain form fields to be
+     *                           {@link FormFieldItem}s; <code>false</code>
+     *                           for every item to be an
+     *                           {@link EncryptedFileItem}.
+     */
+    public void setCompactFormFields(boolean pCompactFormFields) {
+        compactFormFields = pCompactFormFields;
+    }
+
+    /**
+     * Returns the cache of decrypted contents shared by items stored on disk.
+     *
+     * @return The cache, or <code>null</code> (default) if contents are
+     * decrypted on every read.
+     */
+    public PlaintextCache getPlaintextCache() {
+        return plaintextCache;
+    }
+
+    /**
+     * Sets a cache of decrypted contents, so that items on disk which are
+     * read repeatedly are only decrypted once. The cache holds plaintext in
+     * memory, so it should be sized with that in mind. Items use the cache
+     * set when they were created, and are removed from it when they are
+     * deleted, expire or are collected.
+     *
+     * @param pPlaintextCache The cache, or <code>null</code> for none.
+     */
+    public void setPlaintextCache(PlaintextCache pPlaintextCache) {
+        plaintextCache = pPlaintextCache;
+    }
+
+    /**
+     * Returns the cleaner that releases the storage of items which are
+     * garbage collected without having been deleted.
+     *
+     * @return The cleaner set on this factory, or the shared
+     * {@link ItemCleaner#getDefault() default} if none has been set.
+     */
+    public ItemCleaner getItemCleaner() {
+        return itemCleaner == null ? ItemCleaner.getDefault() : itemCleaner;
+    }
+
+    /**
+     * Sets the cleaner that releases the storage of items which are garbage
+     * collected without having been deleted, for example to give a busy
+     * factory workers of its own.
+     *
+     * @param pItemCleaner The cleaner, or <code>null</code> for the shared
+     *                     default.
+     */
+    public void setItemCleaner(ItemCleaner pItemCleaner) {
+        itemCleaner = pItemCleaner;
+    }
+
+    /**
+     * Returns the reaper that unlinks the temporary files of deleted items.
+     *
+     * @return The reaper, or <code>null</code> (default) if files are
+     * unlinked on the thread that deletes the item.
+     */
+    public TempFileReaper getTempFileReaper() {
+        return tempFileReaper;
+    }
+
+    /**
+     * Sets a reaper that unlinks the temporary files of deleted items in the
+     * background. Files of items that are garbage collected are found by the
+     * {@link #getItemCleaner() item cleaner} and unlinked by the reaper too,
+     * so items are not registered with the {@link FileCleaningTracker} while
+     * a reaper is set.
+     *
+     * @param pTempFileReaper The reaper, or <code>null</code> for none.
+     */
+    public void setTempFileReaper(TempFileReaper pTempFileReaper) {
+        tempFileReaper = pTempFileReaper;
+    }
+
+    /**
+     * Starts a sweeper that deletes temporary files left in the repository
+     * by processes that have died. The first sweep runs straight away in
+     * the background.
+     *
+     * @param period The time between sweeps, in milliseconds, or 0 to sweep
+     *               only at startup.
+     * @return The sweeper, whose counters report what was reclaimed.
+     */
+    public synchronized OrphanSweeper startOrphanSweeper(long period) {
+        if (orphanSweeper != null) {
+            orphanSweeper.close();
+        }
+        orphanSweeper = new OrphanSweeper(repository);
+        orphanSweeper.start(period);
+        return orphanSweeper;
+    }
+
+    /**
+     * Returns the sweeper started by this factory.
+     *
+     * @return The sweeper, or <code>null</code> if none has been started.
+     */
+    public synchronized OrphanSweeper getOrphanSweeper() {
+        return orphanSweeper;
+    }
+
+    /**
+     * Returns the service that reclaims items kept on disk beyond a maximum
+     * lifetime.
+     *
+     * @return The expiry service, or <code>null</code> (default) if items
+     * are kept until they are deleted or collected.
+     */
+    public ItemExpiry getItemExpiry() {
+        return itemExpiry;
+    }
+
+    /**
+     * Sets a service that reclaims items kept on disk beyond a maximum
+     * lifetime, to bound disk usage when items are not deleted. Reading an
+     * item after it has expired fails.
+     *
+     * @param pItemExpiry The expiry service, or <code>null</code> for none.
+     */
+    public void setItemExpiry(ItemExpiry pItemExpiry) {
+        itemExpiry = pItemExpiry;
+    }
+
+    /**
+     * Returns the quota on bytes that items hold on disk in the repository.
+     *
+     * @return The quota, or <code>null</code> (default) if there is none.
+     */
+    public DiskQuota getDiskQuota() {
+        return diskQuota;
+    }
+
+    /**
+     * Sets a quota on bytes that items hold on disk in the repository, so
+     * that concurrent uploads cannot fill the volume. Factories sharing a
+     * repository should share its quota.
+     *
+     * @param pDiskQuota The quota, or <code>null</code> for none.
+     */
+    public void setDiskQuota(DiskQuota pDiskQuota) {
+        diskQuota = pDiskQuota;
+    }
+
+    /**
+     * Returns the registry of the live items created by this factory, which
+     * gives the count and bytes of items in memory and on disk.
+     *
+     * @return The registry, or <code>null</code> if items are not tracked.
+     */
+    public ItemRegistry getItemRegistry() {
+        return itemRegistry;
+    }
+
+    /**
+     * Sets the registry in which items created by this factory are tracked.
+     * Factories may share a registry to report on them together. Items
+     * already created stay in the registry they were created with.
+     *
+     * @param pItemRegistry The registry, or <code>null</code> not to track
+     *                      items.
+     */
+    public void setItemRegistry(ItemRegistry pItemRegistry) {
+        itemRegistry = pItemRegistry;
+    }
+
+    /**
+     * Returns the digests computed over items as they are written.
+     *
+     * @return The names of the digest algorithms, empty (default) if none
+     * are computed.
+     */
+    public String[] getDigestAlgorithms() {
+        return digestAlgorithms.clone();
+    }
+
+    /**
+     * Sets the digests to compute over items as they are written, such as
+     * "SHA-256" or "CRC32C", so that they can be read with
+     * {@link EncryptedFileItem#getDigest(String)} without reading the data
+     * again. Each byte is digested once, as it is stored.
+     *
+     * @param pAlgorithms The names of the digest algorithms, or none.
+     * @exception IllegalArgumentException if an algorithm is not available.
+     */
+    public void setDigestAlgorithms(String... pAlgorithms) {
+        String[] algorithms = pAlgorithms == null ? new String[0] : pAlgorithms.clone();
+        for (String algorithm : algorithms) {
+            EncryptedDeferredOutputStream.newDigest(algorithm);
+        }
+        digestAlgorithms = algorithms;
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Creates a new {@link EncryptedFileItem} using the shared resources of
+     * this factory, and registers it for cleanup.
+     *
+     * @param fieldName     The name of the form field.
+     * @param contentType   The content type of the form field.
+     * @param isFormField   <code>true</code> if this is a plain form field;
+     *                      <code>false</code> otherwise.
+     * @param fileName      The name of the uploaded file, if any.
+     * @param threshold     The size threshold for the item.
+     *
+     * @return The newly created file item.
+     */
+    EncryptedFileItem newFileItem(String fieldName, String contentType,
+                                  boolean isFormField, String fileName, int threshold) {
+        EncryptedFileItem result = new EncryptedFileItem(fieldName, contentType,
+                isFormField, fileName, threshold, repository, this);
+        result.setDefaultCharset(defaultCharset);
+        FileCleaningTracker tracker = getFileCleaningTracker();
+        // Pooled files and segments are managed by the pool or store, and
+        // reaped files by the item cleaner:
+        if (tracker != null && tempFilePool == null && segmentStore == null && tempFileReaper == null) {
+            tracker.track(result.getTempFile(), result);
+        }
+        if (memoryPressureMonitor != null) {
+            memoryPressureMonitor.register(result);
+        }
+        return result;
+    }
 }
@@ -0,0 +1,691 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static java.lang.String.format;
+
+/**
+ * A compact {@link FileItem} for plain form fields.
+ *
+ * Form fields are usually a few bytes long, so rather than an encryption key,
+ * a deferred output stream and a temporary file name, this item holds its
+ * value in a single array, sized exactly once the field is complete, and
+ * caches the decoded string. It is not registered with a file cleaning
+ * tracker, since it has no file, and it is only watched by the factory's
+ * {@link ItemCleaner}, and counted by its {@link ItemRegistry}, if the
+ * factory has a {@link MemoryBudget} whose memory the field must give back.
+ *
+ * If a field grows beyond the size threshold, the data written so far are
+ * passed to an {@link EncryptedFileItem}, which receives the rest of the
+ * field and encrypts it on disk, and to which this item then delegates.
+ */
+public class FormFieldItem implements FileItem {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The UID to use when serializing this instance.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The initial size of the buffer for a field value.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 64;
+
+    // ----------------------------------------------------------- Data members
+
+    /**
+     * The name of the form field as provided by the browser.
+     */
+    private String fieldName;
+
+    /**
+     * The content type passed by the browser, or <code>null</code> if
+     * not defined.
+     */
+    private final String contentType;
+
+    /**
+     * Whether or not this item is a simple form field.
+     */
+    private boolean isFormField = true;
+
+    /**
+     * The threshold above which the field is stored on disk.
+     */
+    private final int sizeThreshold;
+
+    /**
+     * The value of the field, once complete and held here.
+     */
+    private byte[] value;
+
+    /**
+     * The decoded value of the field, and the charset it was decoded with.
+     */
+    private transient String cachedString;
+    private transient String cachedCharset;
+
+    /**
+     * The charset parsed from the content type, once parsed.
+     */
+    private transient String charSet;
+    private transient boolean charSetParsed;
+
+    /**
+     * The item holding the field, if it grew beyond the threshold.
+     */
+    private EncryptedFileItem delegate;
+
+    /**
+     * Output stream for this item.
+     */
+    private transient FieldOutputStream out;
+
+    /**
+     * The file items headers.
+     */
+    private FileItemHeaders headers;
+
+    /**
+     * Default content charset to be used when no explicit charset
+     * parameter is provided by the sender.
+     */
+    private String defaultCharset = EncryptedFileItem.DEFAULT_CHARSET;
+
+    /**
+     * The factory that created this item, if any, which provides the item
+     * to fall back to and shared resources such as the memory budget.
+     */
+    private final transient EncryptedFileItemFactory factory;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a new <code>FormFieldItem</code> instance.
+     *
+     * @param fieldName     The name of the form field.
+     * @param contentType   The content type passed by the browser or
+     *                      <code>null</code> if not specified.
+     * @param sizeThreshold The threshold, in bytes, above which the field is
+     *                      stored encrypted on disk.
+     * @param factory       The factory creating this item, or <code>null</code>.
+     */
+    FormFieldItem(String fieldName, String contentType, int sizeThreshold, EncryptedFileItemFactory factory) {
+        this.fieldName = fieldName;
+        this.contentType = contentType;
+        this.sizeThreshold = sizeThreshold;
+        this.factory = factory;
+    }
+
+    // ------------------------------- Methods from javax.activation.DataSource
+
+    /**
+     * Returns an {@link java.io.InputStream InputStream} that can be
+     * used to retrieve the value of the field.
+     *
+     * @return An {@link java.io.InputStream InputStream} that can be
+     * used to retrieve the value of the field.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (delegate != null) {
+            return delegate.getInputStream();
+        }
+        return new ByteArrayInputStream(get());
+    }
+
+    /**
+     * Returns the content type passed by the agent or <code>null</code> if
+     * not defined.
+     *
+     * @return The content type passed by the agent or <code>null</code> if
+     * not defined.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the content charset passed by the agent or <code>null</code> if
+     * not defined.
+     *
+     * @return The content charset passed by the agent or <code>null</code> if
+     * not defined.
+     */
+    public String getCharSet() {
+        if (!charSetParsed) {
+            charSet = EncryptedFileItem.parseCharSet(contentType);
+            charSetParsed = true;
+        }
+        return charSet;
+    }
+
+    /**
+     * Returns a {@link java.io.Reader Reader} of the value, decoded with the
+     * charset passed by the agent, or the default charset.
+     *
+     * @return A reader of the value.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public Reader getReader() throws IOException {
+        if (delegate != null) {
+            return delegate.getReader();
+        }
+        return EncryptedFileItem.newReader(getInputStream(), getCharSet(), defaultCharset);
+    }
+
+    /**
+     * Returns <code>null</code>, since a form field has no file name.
+     *
+     * @return <code>null</code>.
+     */
+    public String getName() {
+        return null;
+    }
+
+    // ------------------------------------------------------- FileItem methods
+
+    /**
+     * Provides a hint as to whether or not the value will be read
+     * from memory.
+     *
+     * @return <code>true</code> unless the field grew beyond the threshold
+     * and is stored on disk.
+     */
+    public boolean isInMemory() {
+        return delegate == null || delegate.isInMemory();
+    }
+
+    /**
+     * Returns a digest of the value, as {@link EncryptedFileItem#getDigest}
+     * does. A value held here is digested when this is called, since it is
+     * no larger than the threshold; a value that grew beyond the threshold
+     * was digested as it was written.
+     *
+     * @param algorithm The name of the digest algorithm, such as "SHA-256"
+     *                  or "CRC32C".
+     * @return The digest, or <code>null</code> if the factory does not
+     * compute it, or the value is not complete or has been deleted.
+     */
+    public byte[] getDigest(String algorithm) {
+        if (delegate != null) {
+            return delegate.getDigest(algorithm);
+        }
+        byte[] content = value;
+        if (content == null || factory == null) {
+            return null;
+        }
+        for (String configured : factory.getDigestAlgorithms()) {
+            if (configured.equalsIgnoreCase(algorithm)) {
+                MessageDigest digest = EncryptedDeferredOutputStream.newDigest(configured);
+                return digest.digest(content);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the size of the value.
+     *
+     * @return The size of the value, in bytes.
+     */
+    public long getSize() {
+        if (delegate != null) {
+            return delegate.getSize();
+        }
+        if (value != null) {
+            return value.length;
+        }
+        return out == null ? 0 : out.count;
+    }
+
+    /**
+     * Returns the value as an array of bytes.
+     *
+     * @return The value of the field.
+     */
+    public byte[] get() {
+        if (delegate != null) {
+            return delegate.get();
+        }
+        if (value != null) {
+            return value;
+        }
+        return out == null || out.buffer == null ? new byte[0] : Arrays.copyOf(out.buffer, out.count);
+    }
+
+    /**
+     * Returns the value as a String, using the specified encoding. The
+     * string is cached, so it is only decoded once for each charset.
+     *
+     * @param charset The charset to use.
+     *
+     * @return The value of the field, as a string.
+     *
+     * @throws UnsupportedEncodingException if the requested character
+     *                                      encoding is not available.
+     */
+    public String getString(final String charset) throws UnsupportedEncodingException {
+        if (delegate != null) {
+            return delegate.getString(charset);
+        }
+        String result = cachedString;
+        if (result == null || !charset.equals(cachedCharset)) {
+            result = new String(get(), charset);
+            if (value != null) {
+                cachedString = result;
+                cachedCharset = charset;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value as a String, using the charset sent by the agent,
+     * or the default charset if none was sent.
+     *
+     * @return The value of the field, as a string.
+     */
+    public String getString() {
+        if (delegate != null) {
+            return delegate.getString();
+        }
+        String charset = getCharSet();
+        if (charset == null) {
+            charset = defaultCharset;
+        }
+        try {
+            return getString(charset);
+        } catch (UnsupportedEncodingException e) {
+            return new String(get());
+        }
+    }
+
+    /**
+     * Writes the value to the specified file.
+     *
+     * @param file The <code>File</code> into which the value should be stored.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void write(File file) throws Exception {
+        if (delegate != null) {
+            delegate.write(file);
+            return;
+        }
+        FileOutputStream fout = null;
+        try {
+            fout = new FileOutputStream(file);
+            fout.write(get());
+            fout.close();
+        } finally {
+            IOUtils.closeQuietly(fout);
+        }
+    }
+
+    /**
+     * Deletes the value, and any data stored on disk if the field grew
+     * beyond the threshold.
+     */
+    public void delete() {
+        delete(null);
+    }
+
+    /**
+     * Returns the name of the field in the multipart form corresponding to
+     * this item.
+     *
+     * @return The name of the form field.
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Sets the field name used to reference this item.
+     *
+     * @param fieldName The name of the form field.
+     */
+    public void setFieldName(String fieldName) {
+        this.fieldName = fieldName;
+        if (delegate != null) {
+            delegate.setFieldName(fieldName);
+        }
+    }
+
+    /**
+     * Determines whether or not this instance represents a simple form field.
+     *
+     * @return <code>true</code> unless changed by {@link #setFormField(boolean)}.
+     */
+    public boolean isFormField() {
+        return isFormField;
+    }
+
+    /**
+     * Specifies whether or not this instance represents a simple form field.
+     *
+     * @param state <code>true</code> if the instance represents a simple form
+     *              field; <code>false</code> if it represents an uploaded file.
+     */
+    public void setFormField(boolean state) {
+        isFormField = state;
+        if (delegate != null) {
+            delegate.setFormField(state);
+        }
+    }
+
+    /**
+     * Returns an {@link java.io.OutputStream OutputStream} that can
+     * be used for storing the value of the field.
+     *
+     * @return An {@link java.io.OutputStream OutputStream} that can be used
+     *         for storing the value of the field.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            out = new FieldOutputStream();
+        }
+        return out;
+    }
+
+    /**
+     * Returns the file item headers.
+     * @return The file items headers.
+     */
+    public FileItemHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Sets the file item headers.
+     * @param pHeaders The file items headers.
+     */
+    public void setHeaders(FileItemHeaders pHeaders) {
+        headers = pHeaders;
+        if (delegate != null) {
+            delegate.setHeaders(pHeaders);
+        }
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Returns the item to which this item delegates once the field has
+     * grown beyond the threshold.
+     *
+     * @return The delegate, or <code>null</code> if the value is held here.
+     */
+    public EncryptedFileItem getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Returns the default charset for use when no explicit charset
+     * parameter is provided by the sender.
+     * @return the default charset
+     */
+    public String getDefaultCharset() {
+        return defaultCharset;
+    }
+
+    /**
+     * Sets the default charset for use when no explicit charset
+     * parameter is provided by the sender.
+     * @param charset the default charset
+     */
+    public void setDefaultCharset(String charset) {
+        defaultCharset = charset;
+        if (delegate != null) {
+            delegate.setDefaultCharset(charset);
+        }
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object.
+     */
+    @Override
+    public String toString() {
+        return format("name=%s, StoreLocation=%s, size=%s bytes, isFormField=%s, FieldName=%s",
+                getName(), delegate == null ? null : delegate.getStoreLocation(), Long.valueOf(getSize()),
+                Boolean.valueOf(isFormField()), getFieldName());
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Deletes the value, as {@link #delete()} does. If the field has grown
+     * into a delegate, a temporary file that would be unlinked is added to
+     * the given collection instead.
+     *
+     * @param unlinks Files to unlink, or <code>null</code> to unlink the
+     *                file now.
+     */
+    void delete(Collection<File> unlinks) {
+        if (delegate != null) {
+            delegate.delete(unlinks);
+        }
+        if (out != null) {
+            out.release();
+        }
+        value = null;
+        cachedString = null;
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * Collects the value of the field, handing it to an
+     * {@link EncryptedFileItem} if it grows beyond the threshold.
+     */
+    private final class FieldOutputStream extends OutputStream {
+
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int count;
+        private OutputStream spilled;
+        private boolean closed;
+        private final Reservation reservation;
+        private final ItemCleaner.Cleanup cleanup;
+
+        FieldOutputStream() {
+            MemoryBudget memoryBudget = factory == null ? null : factory.getMemoryBudget();
+            if (memoryBudget == null) {
+                // Nothing to give back when the field is dropped
+                reservation = null;
+                cleanup = null;
+            } else {
+                reservation = new Reservation(memoryBudget, factory.getItemRegistry());
+                // Fields are often read and dropped without being deleted:
+                cleanup = factory.getItemCleaner().register(FormFieldItem.this, reservation);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (spills(1)) {
+                spilled.write(b);
+                return;
+            }
+            if (count == buffer.length) {
+                grow(1);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spills(len)) {
+                spilled.write(b, off, len);
+                return;
+            }
+            if (count + len > buffer.length) {
+                grow(len);
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (spilled != null) {
+                spilled.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (spilled != null) {
+                spilled.close();
+                return;
+            }
+            value = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+            buffer = null;
+            AdaptiveThreshold adaptiveThreshold = factory == null ? null : factory.getAdaptiveThreshold();
+            if (adaptiveThreshold != null) {
+                adaptiveThreshold.record(adaptiveThreshold.key(contentType, fieldName), count);
+            }
+        }
+
+        /**
+         * Gives back memory reserved against the factory's budget, and stops
+         * counting the value in the factory's item registry, once it has
+         * been deleted or handed to an {@link EncryptedFileItem}, which is
+         * counted and cleaned up in its place.
+         */
+        void release() {
+            if (cleanup != null) {
+                cleanup.delete(null);
+            }
+        }
+
+        /**
+         * Hands the field to an {@link EncryptedFileItem} if the given number
+         * of bytes would take it beyond the threshold, or the memory budget.
+         *
+         * @param len The number of bytes about to be written.
+         * @return <code>true</code> if the bytes are to be written to that
+         * item rather than held here.
+         */
+        private boolean spills(int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (spilled == null && (count + len > sizeThreshold
+                    || (reservation != null && !reservation.reserve(len)))) {
+                spill();
+            }
+            return spilled != null;
+        }
+
+        /**
+         * Grows the buffer to hold the given number of bytes more.
+         */
+        private void grow(int len) {
+            buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, count + len), sizeThreshold));
+        }
+
+        /**
+         * Hands the value so far to an {@link EncryptedFileItem}, which
+         * receives the rest of the field.
+         */
+        private void spill() throws IOException {
+            EncryptedFileItem item;
+            if (factory != null) {
+                item = factory.newFileItem(fieldName, contentType, isFormField, null, sizeThreshold);
+            } else {
+                item = new EncryptedFileItem(fieldName, contentType, isFormField, null,
+                        sizeThreshold, null);
+            }
+            item.setDefaultCharset(defaultCharset);
+            item.setHeaders(headers);
+            spilled = item.getOutputStream();
+            spilled.write(buffer, 0, count);
+            buffer = null;
+            release();
+            delegate = item;
+        }
+    }
+
+    /**
+     * The memory a field holds against the factory's budget, which is also
+     * counted, in aggregate, by the factory's item registry. This is kept
+     * apart from the item so that the {@link ItemCleaner} can release it
+     * once the item has been collected.
+     */
+    static final class Reservation {
+
+        private final MemoryBudget memoryBudget;
+        private final ItemRegistry itemRegistry;
+        private long reserved;
+        private boolean released;
+
+        Reservation(MemoryBudget memoryBudget, ItemRegistry itemRegistry) {
+            this.memoryBudget = memoryBudget;
+            this.itemRegistry = itemRegistry;
+            if (itemRegistry != null) {
+                itemRegistry.countField(1, 0);
+            }
+        }
+
+        /**
+         * Reserves memory against the budget for bytes about to be held.
+         *
+         * @param len The number of bytes to reserve.
+         * @return <code>false</code> if the budget is in use.
+         */
+        synchronized boolean reserve(int len) {
+            if (len == 0 || released) {
+                return true;
+            }
+            if (!memoryBudget.reserve(len)) {
+                return false;
+            }
+            reserved += len;
+            if (itemRegistry != null) {
+                itemRegistry.countField(0, len);
+            }
+            return true;
+        }
+
+        /**
+         * Gives back the memory reserved and stops counting the value.
+         */
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            memoryBudget.release(reserved);
+            if (itemRegistry != null) {
+                itemRegistry.countField(-1, -reserved);
+            }
+            reserved = 0;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A service that forces files to disk on behalf of many items at once.
+ *
+ * Items that close while a batch is being forced wait together for the next
+ * batch, and a file that several items share, such as a segment of a
+ * {@link SegmentStore}, is forced once per batch however many items wrote
+ * to it. Files can also be scheduled to be forced periodically in the
+ * background, for the {@link Durability#PERIODIC} policy.
+ *
+ * A new file is not durable until the directory entry that names it is, so
+ * the directory holding each forced file is forced too, once per batch
+ * however many of its files were forced. Platforms that cannot open a
+ * directory, such as Windows, skip this step.
+ */
+public class GroupCommit {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default period, in milliseconds, for periodic forcing.
+     */
+    public static final long DEFAULT_PERIOD = 1000;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * Requests waiting for the next batch.
+     */
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+    /**
+     * Files waiting for the next periodic force.
+     */
+    private final Set<File> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    /**
+     * Forces batches of requests.
+     */
+    private final Thread committer;
+
+    /**
+     * Forces scheduled files periodically.
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Number of batches forced.
+     */
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Number of commit requests served.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of times a file was forced.
+     */
+    private final AtomicLong forces = new AtomicLong();
+
+    /**
+     * Number of times a directory was forced.
+     */
+    private final AtomicLong directoryForces = new AtomicLong();
+
+    /**
+     * True once {@link #close()} has been called.
+     */
+    private volatile boolean closed;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a service that forces scheduled files every
+     * {@link #DEFAULT_PERIOD} milliseconds.
+     */
+    public GroupCommit() {
+        this(DEFAULT_PERIOD);
+    }
+
+    /**
+     * Constructs a service.
+     *
+     * @param period The period, in milliseconds, at which scheduled files are forced.
+     */
+    public GroupCommit(long period) {
+        committer = new Thread(new Runnable() {
+            public void run() {
+                commitBatches();
+            }
+        }, "GroupCommit committer");
+        committer.setDaemon(true);
+        committer.start();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GroupCommit timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                forceScheduled();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Forces the given files to disk, returning once they have been forced
+     * as part of a batch.
+     *
+     * @param files The files to force.
+     * @throws IOException if a file cannot be forced, or the calling thread
+     *                     is interrupted while waiting.
+     */
+    public void commit(Collection<File> files) throws IOException {
+        if (closed) {
+            force(files);
+            return;
+        }
+        Request request = new Request(files);
+        queue.add(request);
+        // The committer may have stopped before seeing the request:
+        if (closed && queue.remove(request)) {
+            force(files);
+            return;
+        }
+        request.await();
+    }
+
+    /**
+     * Schedules the given files to be forced to disk within the period of
+     * this service. Files deleted in the meantime are ignored.
+     *
+     * @param files The files to force.
+     */
+    public void schedule(Collection<File> files) {
+        scheduled.addAll(files);
+    }
+
+    /**
+     * Forces any scheduled files and waiting requests, then stops the
+     * service. Later requests force their files in the calling thread.
+     */
+    public void close() {
+        closed = true;
+        timer.shutdown();
+        try {
+            timer.awaitTermination(1, TimeUnit.MINUTES);
+            committer.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        forceScheduled();
+    }
+
+    /**
+     * Forces the given files to disk in the calling thread.
+     *
+     * @param files The files to force.
+     * @throws IOException if a file cannot be forced.
+     */
+    public static void force(Collection<File> files) throws IOException {
+        for (File file : files) {
+            forceFile(file);
+        }
+        for (File directory : directories(files)) {
+            forceDirectory(directory);
+        }
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The number of batches forced.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return The number of commit requests served by batches.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of times a file was forced, by batches or periodically.
+     */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    /**
+     * @return The number of times a directory holding forced files was forced.
+     */
+    public long getDirectoryForceCount() {
+        return directoryForces.get();
+    }
+
+    /**
+     * @return The number of files waiting for the next periodic force.
+     */
+    public int getScheduledCount() {
+        return scheduled.size();
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Takes whatever requests are waiting, forces each distinct file and
+     * directory once, and wakes the requesters, until the service is closed and no requests
+     * remain.
+     */
+    private void commitBatches() {
+        List<Request> batch = new ArrayList<Request>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                // Wake up regularly to notice close():
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            Set<File> files = new LinkedHashSet<File>();
+            for (Request request : batch) {
+                files.addAll(request.files);
+            }
+            Map<File, IOException> failures = new HashMap<File, IOException>();
+            for (File file : files) {
+                try {
+                    forceFile(file);
+                    forces.incrementAndGet();
+                } catch (IOException e) {
+                    failures.put(file, e);
+                }
+            }
+            for (File directory : directories(files)) {
+                try {
+                    if (forceDirectory(directory)) {
+                        directoryForces.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    for (File file : files) {
+                        if (directory.equals(parent(file)) && !failures.containsKey(file)) {
+                            failures.put(file, e);
+                        }
+                    }
+                }
+            }
+            batches.incrementAndGet();
+            requests.addAndGet(batch.size());
+            for (Request request : batch) {
+                request.complete(failures);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces the files scheduled since the last run.
+     */
+    private void forceScheduled() {
+        List<File> files = new ArrayList<File>(scheduled);
+        scheduled.removeAll(files);
+        for (File file : files) {
+            try {
+                forceFile(file);
+                forces.incrementAndGet();
+            } catch (IOException e) {
+                // Nothing is waiting on periodic forces
+            }
+        }
+        for (File directory : directories(files)) {
+            try {
+                if (forceDirectory(directory)) {
+                    directoryForces.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Nothing is waiting on periodic forces
+            }
+        }
+    }
+
+    /**
+     * Forces a file's data and metadata to disk. A file that no longer
+     * exists is ignored, because there is nothing left to make durable.
+     */
+    private static void forceFile(File file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk, so that files created in it
+     * survive a crash.
+     *
+     * @return False if the directory cannot be opened, as on platforms that
+     * do not allow it, or because it no longer exists.
+     */
+    private static boolean forceDirectory(File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+        return true;
+    }
+
+    /**
+     * @return The distinct directories holding the given files.
+     */
+    private static Set<File> directories(Collection<File> files) {
+        Set<File> directories = new LinkedHashSet<File>();
+        for (File file : files) {
+            File directory = parent(file);
+            if (directory != null) {
+                directories.add(directory);
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * @return The directory holding the given file.
+     */
+    private static File parent(File file) {
+        return file.getAbsoluteFile().getParentFile();
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * A request to force files, which the requester waits on.
+     */
+    private static final class Request {
+
+        private final Collection<File> files;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private IOException failure;
+
+        Request(Collection<File> files) {
+            this.files = files;
+        }
+
+        void complete(Map<File, IOException> failures) {
+            for (File file : files) {
+                if (failures.containsKey(file)) {
+                    failure = failures.get(file);
+                    break;
+                }
+            }
+            done.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for files to be forced to disk");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
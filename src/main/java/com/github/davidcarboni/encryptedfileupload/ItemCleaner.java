@@ -0,0 +1,297 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Releases the storage of items that are garbage collected without having
+ * been deleted.
+ *
+ * Each item is watched through a phantom reference, rather than a
+ * finalizer, so the item itself is reclaimed in the collection that finds
+ * it unreachable, and its storage is released by this cleaner's worker
+ * threads rather than the JVM's single finalizer thread. Data held in
+ * memory are abandoned, so that buffers borrowed from a {@link BufferArena}
+ * are accounted for as leaked, and data stored on disk are deleted. Form
+ * fields give back the memory they reserved against a {@link MemoryBudget}.
+ *
+ * Items that are deleted explicitly are removed from the cleaner straight
+ * away, so only items that are forgotten cost any work here.
+ */
+public class ItemCleaner {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default number of worker threads.
+     */
+    public static final int DEFAULT_WORKERS = 2;
+
+    /**
+     * How long a worker waits for a reference before checking whether the
+     * cleaner has been closed, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * The cleaner used by items whose factory does not provide one.
+     */
+    private static ItemCleaner defaultCleaner;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * Receives the references of items that have been collected.
+     */
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /**
+     * The references being watched, which must stay reachable until their
+     * items are collected.
+     */
+    private final Set<Cleanup> cleanups =
+            Collections.newSetFromMap(new ConcurrentHashMap<Cleanup, Boolean>());
+
+    /**
+     * The worker threads.
+     */
+    private final Thread[] workers;
+
+    /**
+     * Whether the cleaner has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Number of items whose storage was released after collection.
+     */
+    private final AtomicLong cleaned = new AtomicLong();
+
+    /**
+     * Number of items removed because they were deleted explicitly.
+     */
+    private final AtomicLong deleted = new AtomicLong();
+
+    /**
+     * Number of releases that failed.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a cleaner with the default number of workers.
+     */
+    public ItemCleaner() {
+        this(DEFAULT_WORKERS);
+    }
+
+    /**
+     * Constructs a cleaner.
+     *
+     * @param workers The number of threads that release storage.
+     */
+    public ItemCleaner(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "encrypted-file-upload-cleaner-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Returns the cleaner used by items whose factory does not provide one,
+     * creating it if necessary.
+     *
+     * @return The shared cleaner.
+     */
+    public static synchronized ItemCleaner getDefault() {
+        if (defaultCleaner == null) {
+            defaultCleaner = new ItemCleaner();
+        }
+        return defaultCleaner;
+    }
+
+    /**
+     * Stops the worker threads. Items collected after this are not cleaned
+     * up, so a factory's cleaner should only be closed once its items have
+     * been deleted.
+     */
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The number of items being watched.
+     */
+    public int getPendingCount() {
+        return cleanups.size();
+    }
+
+    /**
+     * @return The number of items whose storage was released after they
+     * were garbage collected.
+     */
+    public long getCleanedCount() {
+        return cleaned.get();
+    }
+
+    /**
+     * @return The number of items that were deleted explicitly.
+     */
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * @return The number of items whose storage could not be released.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Watches an item, so that its storage is released once it is collected.
+     * The stream must not refer back to the item, or it will never be
+     * collected.
+     *
+     * @param item The item.
+     * @param dfos The stream holding the item's data.
+     * @return A handle that releases the storage when the item is deleted.
+     */
+    Cleanup register(Object item, EncryptedDeferredOutputStream dfos) {
+        Cleanup cleanup = new Cleanup(item, queue, dfos, null);
+        cleanups.add(cleanup);
+        return cleanup;
+    }
+
+    /**
+     * Watches a form field, so that the memory it holds against a budget
+     * and its registry entry are released once it is collected.
+     *
+     * @param item        The item.
+     * @param reservation The memory and registry entry held by the item.
+     * @return A handle that releases the reservation when the item is
+     * deleted.
+     */
+    Cleanup register(Object item, FormFieldItem.Reservation reservation) {
+        Cleanup cleanup = new Cleanup(item, queue, null, reservation);
+        cleanups.add(cleanup);
+        return cleanup;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Releases the storage of collected items until the cleaner is closed.
+     */
+    private void work() {
+        while (!closed) {
+            try {
+                Cleanup cleanup = (Cleanup) queue.remove(POLL_INTERVAL);
+                if (cleanup != null && cleanup.release()) {
+                    cleaned.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // Check whether the cleaner has been closed
+            }
+        }
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * The reference to an item, which holds the stream, or the form field
+     * reservation, to release.
+     */
+    final class Cleanup extends PhantomReference<Object> {
+
+        private final EncryptedDeferredOutputStream dfos;
+        private final FormFieldItem.Reservation reservation;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Cleanup(Object item, ReferenceQueue<Object> queue, EncryptedDeferredOutputStream dfos,
+                FormFieldItem.Reservation reservation) {
+            super(item, queue);
+            this.dfos = dfos;
+            this.reservation = reservation;
+        }
+
+        /**
+         * Deletes the stream's data now, because the item has been deleted,
+         * and stops watching the item.
+         *
+         * @param unlinks Files to unlink, or <code>null</code> to unlink the
+         *                stream's file now.
+         */
+        void delete(Collection<File> unlinks) {
+            if (done.compareAndSet(false, true)) {
+                clear();
+                cleanups.remove(this);
+                deleted.incrementAndGet();
+                if (reservation != null) {
+                    reservation.release();
+                } else {
+                    dfos.delete(unlinks);
+                }
+            }
+        }
+
+        /**
+         * Releases the stream's data after the item has been collected.
+         *
+         * @return <code>true</code> if the data were released by this call.
+         */
+        boolean release() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            cleanups.remove(this);
+            try {
+                if (reservation != null) {
+                    reservation.release();
+                } else if (dfos.isInMemory()) {
+                    dfos.abandon();
+                } else {
+                    dfos.delete();
+                }
+                return true;
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reclaims the disk storage of items that are kept beyond a maximum
+ * lifetime without being deleted.
+ *
+ * An item that application code forgets to delete, but still holds a
+ * reference to, keeps its encrypted file until it is garbage collected,
+ * which may be never. With an expiry set on the factory, each item that
+ * has been written to disk is scheduled for expiry when its stream is
+ * closed. If it is still there when the lifetime has passed, its key is
+ * destroyed and its file reclaimed, so disk usage stays bounded however
+ * the items are handled. Reading an expired item fails straight away with
+ * an {@link java.io.IOException}, rather than returning data.
+ *
+ * Items held in memory are not expired: memory is bounded by the memory
+ * budget and reclaimed by the collector.
+ */
+public class ItemExpiry {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The lifetime of an item on disk, in milliseconds.
+     */
+    private final long maxLifetime;
+
+    /**
+     * Runs the expiries.
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Number of items expired.
+     */
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Number of bytes reclaimed by expiring items.
+     */
+    private final AtomicLong expiredBytes = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * @param maxLifetime How long an item may be kept on disk after it is
+     *                    written, in milliseconds.
+     */
+    public ItemExpiry(long maxLifetime) {
+        if (maxLifetime <= 0) {
+            throw new IllegalArgumentException("Lifetime must be positive");
+        }
+        this.maxLifetime = maxLifetime;
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "encrypted-file-upload-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Items that are deleted in time cancel their expiry; don't keep them:
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Stops expiring items. Items already scheduled are kept until they are
+     * deleted or collected.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return How long an item may be kept on disk, in milliseconds.
+     */
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * @return The number of items scheduled to expire.
+     */
+    public int getPendingCount() {
+        return scheduler.getQueue().size();
+    }
+
+    /**
+     * @return The number of items that expired.
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * @return The number of bytes of content reclaimed from expired items.
+     */
+    public long getExpiredBytes() {
+        return expiredBytes.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Schedules a stream that has been written to disk for expiry.
+     *
+     * @param dfos The stream.
+     * @return The scheduled expiry, to cancel if the stream is deleted in
+     * time, or <code>null</code> if this has been closed.
+     */
+    ScheduledFuture<?> schedule(final EncryptedDeferredOutputStream dfos) {
+        if (scheduler.isShutdown()) {
+            return null;
+        }
+        return scheduler.schedule(new Runnable() {
+            public void run() {
+                long size = dfos.getByteCount();
+                if (dfos.expire()) {
+                    expired.incrementAndGet();
+                    expiredBytes.addAndGet(size);
+                }
+            }
+        }, maxLifetime, TimeUnit.MILLISECONDS);
+    }
+}
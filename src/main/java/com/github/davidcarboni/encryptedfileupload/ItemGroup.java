@@ -0,0 +1,152 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The items created for one request, which are deleted together when the
+ * group is closed.
+ *
+ * A group is a {@link FileItemFactory} in its own right, so it can be
+ * passed to the upload parser in place of the {@link EncryptedFileItemFactory}
+ * that created it. Closing the group deletes every item it created, with
+ * one call rather than one per item: memory is returned to the buffer
+ * arena and budget, keys are destroyed, and the temporary files of all the
+ * items are unlinked as one batch, through the factory's
+ * {@link TempFileReaper} if it has one.
+ *
+ * <pre>
+ * try (ItemGroup group = factory.newItemGroup()) {
+ *     List&lt;FileItem&gt; items = new ServletFileUpload(group).parseRequest(request);
+ *     ...
+ * }
+ * </pre>
+ */
+public class ItemGroup implements FileItemFactory, AutoCloseable {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The factory that creates the items.
+     */
+    private final EncryptedFileItemFactory factory;
+
+    /**
+     * The items created, in order.
+     */
+    private final List<FileItem> items = new ArrayList<FileItem>();
+
+    /**
+     * Whether the group has been closed.
+     */
+    private boolean closed;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * @param factory The factory that creates the items.
+     */
+    ItemGroup(EncryptedFileItemFactory factory) {
+        this.factory = factory;
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Creates an item using the factory, and adds it to this group.
+     *
+     * @param fieldName   The name of the form field.
+     * @param contentType The content type of the form field.
+     * @param isFormField <code>true</code> if this is a plain form field;
+     *                    <code>false</code> otherwise.
+     * @param fileName    The name of the uploaded file, if any.
+     *
+     * @return The newly created file item.
+     * @throws IllegalStateException if the group has been closed.
+     */
+    public FileItem createItem(String fieldName, String contentType,
+                               boolean isFormField, String fileName) {
+        if (isClosed()) {
+            throw new IllegalStateException("Item group is closed");
+        }
+        FileItem result = factory.createItem(fieldName, contentType, isFormField, fileName);
+        synchronized (items) {
+            if (!closed) {
+                items.add(result);
+                return result;
+            }
+        }
+        // Closed while the item was being created
+        result.delete();
+        throw new IllegalStateException("Item group is closed");
+    }
+
+    /**
+     * Deletes every item in the group. Items created by this group must not
+     * be used afterwards.
+     */
+    public void close() {
+        List<FileItem> deleting;
+        synchronized (items) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deleting = new ArrayList<FileItem>(items);
+            items.clear();
+        }
+        List<File> unlinks = new ArrayList<File>();
+        for (FileItem item : deleting) {
+            if (item instanceof EncryptedFileItem) {
+                ((EncryptedFileItem) item).delete(unlinks);
+            } else if (item instanceof FormFieldItem) {
+                ((FormFieldItem) item).delete(unlinks);
+            } else {
+                item.delete();
+            }
+        }
+        if (unlinks.isEmpty()) {
+            return;
+        }
+        TempFileReaper tempFileReaper = factory.getTempFileReaper();
+        if (tempFileReaper != null) {
+            tempFileReaper.delete(unlinks);
+        } else {
+            for (File file : unlinks) {
+                file.delete();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The items created by this group, in order, until it is closed.
+     */
+    public List<FileItem> getItems() {
+        synchronized (items) {
+            return Collections.unmodifiableList(new ArrayList<FileItem>(items));
+        }
+    }
+
+    /**
+     * @return <code>true</code> once the group has been closed.
+     */
+    public boolean isClosed() {
+        synchronized (items) {
+            return closed;
+        }
+    }
+
+    /**
+     * @return The factory that creates the items.
+     */
+    public EncryptedFileItemFactory getFactory() {
+        return factory;
+    }
+}
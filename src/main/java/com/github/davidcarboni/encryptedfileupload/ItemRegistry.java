@@ -0,0 +1,282 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.fileupload.FileItem;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the live items of an {@link EncryptedFileItemFactory}, and
+ * how many bytes they hold in memory and on disk, for capacity planning and
+ * to inform admission controls such as a {@link MemoryBudget} or
+ * {@link DiskQuota}.
+ *
+ * Items are counted as they are written, spill to disk and are deleted, so
+ * the counts and bytes of each tier can be read at any time without walking
+ * the items. The counters are striped across cells, so that uploads on many
+ * threads do not contend on a single value. Items are referenced weakly: an
+ * item that is collected without being deleted stops being counted once the
+ * registry sees that it has been collected.
+ *
+ * The age of the oldest item and the largest item are found by walking the
+ * live items, so they cost more to read than the counts.
+ *
+ * Compact {@link FormFieldItem}s are too small and too numerous to be worth
+ * an entry each, so they are only counted in aggregate, and only when the
+ * factory has a memory budget, whose reservations tell the registry when
+ * they have gone. They are never the oldest or largest item. A field that
+ * grows beyond the threshold is counted in full through the item it hands
+ * its value to.
+ */
+public class ItemRegistry {
+
+    // ----------------------------------------------------- Instance Variables
+
+    private final Set<Entry> entries = Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+    private final ReferenceQueue<FileItem> queue = new ReferenceQueue<FileItem>();
+
+    private final StripedCounter memoryCount = new StripedCounter();
+    private final StripedCounter memoryBytes = new StripedCounter();
+    private final StripedCounter diskCount = new StripedCounter();
+    private final StripedCounter diskBytes = new StripedCounter();
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * @return The number of live items holding their data in memory.
+     */
+    public long getInMemoryCount() {
+        expunge();
+        return memoryCount.sum();
+    }
+
+    /**
+     * @return The number of bytes held in memory by live items.
+     */
+    public long getInMemoryBytes() {
+        expunge();
+        return memoryBytes.sum();
+    }
+
+    /**
+     * @return The number of live items holding their data on disk.
+     */
+    public long getOnDiskCount() {
+        expunge();
+        return diskCount.sum();
+    }
+
+    /**
+     * @return The number of bytes held on disk by live items, before
+     * encryption overhead.
+     */
+    public long getOnDiskBytes() {
+        expunge();
+        return diskBytes.sum();
+    }
+
+    /**
+     * @return The number of live items.
+     */
+    public long getCount() {
+        expunge();
+        return memoryCount.sum() + diskCount.sum();
+    }
+
+    /**
+     * @return The number of bytes held by live items.
+     */
+    public long getBytes() {
+        expunge();
+        return memoryBytes.sum() + diskBytes.sum();
+    }
+
+    /**
+     * @return The time since the oldest live item was created, in
+     * milliseconds, or 0 if there are no live items.
+     */
+    public long getOldestItemAge() {
+        expunge();
+        long oldest = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            oldest = Math.min(oldest, entry.created);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * @return The live item holding the most bytes, or <code>null</code> if
+     * there are no live items.
+     */
+    public FileItem getLargestItem() {
+        expunge();
+        FileItem largest = null;
+        long largestBytes = -1;
+        for (Entry entry : entries) {
+            long bytes = entry.getBytes();
+            FileItem item = entry.get();
+            if (item != null && bytes > largestBytes) {
+                largest = item;
+                largestBytes = bytes;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return The number of bytes held by the largest live item, or 0 if
+     * there are no live items.
+     */
+    public long getLargestItemBytes() {
+        expunge();
+        long largestBytes = 0;
+        for (Entry entry : entries) {
+            largestBytes = Math.max(largestBytes, entry.getBytes());
+        }
+        return largestBytes;
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Starts counting an item, which holds no data yet and is counted as
+     * being in memory.
+     *
+     * @param item The item.
+     * @return The entry through which the item reports its data.
+     */
+    Entry register(FileItem item) {
+        expunge();
+        Entry entry = new Entry(item);
+        entries.add(entry);
+        memoryCount.add(1);
+        return entry;
+    }
+
+    /**
+     * Adjusts the aggregate count of form fields held in memory.
+     *
+     * @param fields The change in the number of fields.
+     * @param bytes  The change in the bytes they hold.
+     */
+    void countField(int fields, long bytes) {
+        memoryCount.add(fields);
+        memoryBytes.add(bytes);
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Stops counting items that have been collected without being deleted.
+     */
+    private void expunge() {
+        Reference<? extends FileItem> reference;
+        while ((reference = queue.poll()) != null) {
+            ((Entry) reference).remove();
+        }
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * The registration of a live item, through which it reports the data it
+     * holds.
+     */
+    final class Entry extends WeakReference<FileItem> {
+
+        private final long created = System.currentTimeMillis();
+        private long bytes;
+        private boolean onDisk;
+        private boolean removed;
+
+        Entry(FileItem item) {
+            super(item, queue);
+        }
+
+        /**
+         * Counts bytes written to the item.
+         *
+         * @param count The number of bytes written.
+         */
+        synchronized void written(long count) {
+            if (removed || count <= 0) {
+                return;
+            }
+            bytes += count;
+            (onDisk ? diskBytes : memoryBytes).add(count);
+        }
+
+        /**
+         * Moves the item, and the bytes written so far, to the disk tier.
+         */
+        synchronized void spilled() {
+            if (removed || onDisk) {
+                return;
+            }
+            onDisk = true;
+            memoryCount.add(-1);
+            memoryBytes.add(-bytes);
+            diskCount.add(1);
+            diskBytes.add(bytes);
+        }
+
+        /**
+         * Stops counting the item, once its data have been deleted.
+         */
+        synchronized void remove() {
+            if (removed) {
+                return;
+            }
+            removed = true;
+            entries.remove(this);
+            (onDisk ? diskCount : memoryCount).add(-1);
+            (onDisk ? diskBytes : memoryBytes).add(-bytes);
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * A counter spread across cells, each on a cache line of its own, so
+     * that threads updating it rarely touch the same cell.
+     */
+    private static final class StripedCounter {
+
+        /**
+         * Longs per cell, enough to keep each cell on its own cache line.
+         */
+        private static final int PADDING = 8;
+
+        private static final int STRIPES = stripes();
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        void add(long delta) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.addAndGet(stripe * PADDING, delta);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+
+        /**
+         * @return A power of two no smaller than the number of processors.
+         */
+        private static int stripes() {
+            int processors = Runtime.getRuntime().availableProcessors();
+            return Integer.highestOneBit(Math.max(1, processors - 1)) << 1;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the total number of bytes held in memory by the items of an
+ * {@link EncryptedFileItemFactory}.
+ *
+ * The size threshold applies to each item on its own, so many concurrent
+ * uploads just below it can still exhaust the heap. With a budget, each item
+ * reserves the bytes it keeps in memory as they are written. Once the budget
+ * is used up, an item that needs more is written to encrypted disk storage
+ * instead, however small it is, and gives its reservation back.
+ */
+public class MemoryBudget {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The most bytes that may be held in memory.
+     */
+    private final long maxBytes;
+
+    /**
+     * The bytes currently reserved.
+     */
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * The most bytes that have been reserved at once.
+     */
+    private final AtomicLong peakBytes = new AtomicLong();
+
+    /**
+     * Number of reservations refused.
+     */
+    private final AtomicLong refusals = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * @param maxBytes The most bytes that may be held in memory.
+     */
+    public MemoryBudget(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The most bytes that may be held in memory.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The bytes currently held in memory.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return The most bytes that have been held in memory at once.
+     */
+    public long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    /**
+     * @return The number of times an item was sent to disk because the
+     * budget was in use.
+     */
+    public long getRefusalCount() {
+        return refusals.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Reserves memory, if the budget allows.
+     *
+     * @param bytes The number of bytes to reserve.
+     * @return <code>true</code> if the bytes were reserved.
+     */
+    boolean reserve(long bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            long update = used + bytes;
+            if (update > maxBytes) {
+                refusals.incrementAndGet();
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, update)) {
+                long peak;
+                while ((peak = peakBytes.get()) < update && !peakBytes.compareAndSet(peak, update)) {
+                    // Retry
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back reserved memory.
+     *
+     * @param bytes The number of bytes to give back.
+     */
+    void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+}
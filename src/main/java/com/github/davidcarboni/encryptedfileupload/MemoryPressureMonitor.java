@@ -0,0 +1,326 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves completed items of an {@link EncryptedFileItemFactory} from memory
+ * to encrypted disk storage when the heap comes under pressure.
+ *
+ * A memory budget limits what new items may keep in memory, but items that
+ * are already complete stay there until they are deleted. When a heap
+ * memory pool crosses its usage threshold, this monitor demotes completed
+ * in-memory items, largest first, until a share of the memory they hold has
+ * been moved to disk, so that the collector can reclaim it before a run of
+ * full collections sets in.
+ *
+ * The monitor sets the usage thresholds of the heap memory pools that
+ * support them, and restores the previous thresholds when it is closed.
+ */
+public class MemoryPressureMonitor {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default fraction of a pool's maximum size at which to demote items.
+     */
+    public static final double DEFAULT_USAGE_FRACTION = 0.8;
+
+    /**
+     * The default fraction of in-memory bytes to demote on each notification.
+     */
+    public static final double DEFAULT_DEMOTION_FRACTION = 0.5;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The fraction of in-memory bytes to demote on each notification.
+     */
+    private final double demotionFraction;
+
+    /**
+     * Items that may be demoted, held weakly so that they can be collected.
+     */
+    private final Set<EncryptedFileItem> items =
+            Collections.newSetFromMap(new WeakHashMap<EncryptedFileItem, Boolean>());
+
+    /**
+     * The pools whose thresholds were set, with their previous thresholds.
+     */
+    private final Map<MemoryPoolMXBean, long[]> pools = new HashMap<MemoryPoolMXBean, long[]>();
+
+    /**
+     * Runs demotions away from the thread that delivers notifications.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Receives threshold notifications.
+     */
+    private final NotificationListener listener;
+
+    /**
+     * Whether a demotion has been requested and not yet started, so that a
+     * burst of notifications results in one demotion.
+     */
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    /**
+     * Number of threshold notifications received.
+     */
+    private final AtomicLong notifications = new AtomicLong();
+
+    /**
+     * Number of items demoted.
+     */
+    private final AtomicLong demotions = new AtomicLong();
+
+    /**
+     * Number of bytes demoted.
+     */
+    private final AtomicLong demotedBytes = new AtomicLong();
+
+    /**
+     * Number of demotions that failed.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a monitor that demotes half of the in-memory bytes once a
+     * heap pool reaches 80% of its maximum size.
+     */
+    public MemoryPressureMonitor() {
+        this(DEFAULT_USAGE_FRACTION, DEFAULT_DEMOTION_FRACTION);
+    }
+
+    /**
+     * Constructs a monitor.
+     *
+     * @param usageFraction    The fraction of a heap pool's maximum size at
+     *                         which to demote items.
+     * @param demotionFraction The fraction of the bytes held in memory by
+     *                         completed items to demote each time.
+     */
+    public MemoryPressureMonitor(double usageFraction, double demotionFraction) {
+        if (usageFraction <= 0 || usageFraction > 1 || demotionFraction <= 0 || demotionFraction > 1) {
+            throw new IllegalArgumentException("Fractions must be greater than 0 and at most 1");
+        }
+        this.demotionFraction = demotionFraction;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || max <= 0) {
+                continue;
+            }
+            long threshold = (long) (max * usageFraction);
+            long[] previous = {-1, -1};
+            if (pool.isUsageThresholdSupported()) {
+                previous[0] = pool.getUsageThreshold();
+                pool.setUsageThreshold(threshold);
+            }
+            if (pool.isCollectionUsageThresholdSupported()) {
+                previous[1] = pool.getCollectionUsageThreshold();
+                pool.setCollectionUsageThreshold(threshold);
+            }
+            if (previous[0] >= 0 || previous[1] >= 0) {
+                pools.put(pool, previous);
+            }
+        }
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "encrypted-file-upload-demotion");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        listener = new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                String type = notification.getType();
+                if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                        || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+                    notifications.incrementAndGet();
+                    requestDemotion();
+                }
+            }
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Demotes completed in-memory items, largest first, until at least the
+     * given number of bytes has been moved to disk or no items are left.
+     *
+     * @param bytes The number of bytes to move.
+     * @return The number of bytes moved.
+     */
+    public long demote(long bytes) {
+        long demoted = 0;
+        for (EncryptedFileItem item : candidates()) {
+            if (demoted >= bytes) {
+                break;
+            }
+            long size = item.getSize();
+            try {
+                if (item.demote()) {
+                    demoted += size;
+                    demotions.incrementAndGet();
+                    demotedBytes.addAndGet(size);
+                }
+            } catch (IOException e) {
+                // Leave the item in memory and try the next one
+                failures.incrementAndGet();
+            }
+        }
+        return demoted;
+    }
+
+    /**
+     * Stops listening for notifications and restores the thresholds of the
+     * heap memory pools.
+     */
+    public void close() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+        } catch (ListenerNotFoundException e) {
+            // Already removed
+        }
+        executor.shutdown();
+        for (Map.Entry<MemoryPoolMXBean, long[]> entry : pools.entrySet()) {
+            long[] previous = entry.getValue();
+            if (previous[0] >= 0) {
+                entry.getKey().setUsageThreshold(previous[0]);
+            }
+            if (previous[1] >= 0) {
+                entry.getKey().setCollectionUsageThreshold(previous[1]);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The number of items that may currently be demoted.
+     */
+    public int getInMemoryCount() {
+        return candidates().size();
+    }
+
+    /**
+     * @return The number of bytes held in memory by items that may be demoted.
+     */
+    public long getInMemoryBytes() {
+        long bytes = 0;
+        for (EncryptedFileItem item : candidates()) {
+            bytes += item.getSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The number of threshold notifications received.
+     */
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    /**
+     * @return The number of items moved to disk.
+     */
+    public long getDemotionCount() {
+        return demotions.get();
+    }
+
+    /**
+     * @return The number of bytes moved to disk.
+     */
+    public long getDemotedBytes() {
+        return demotedBytes.get();
+    }
+
+    /**
+     * @return The number of items that could not be moved to disk.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Adds an item that may be demoted once it is complete.
+     *
+     * @param item The item.
+     */
+    void register(EncryptedFileItem item) {
+        synchronized (items) {
+            items.add(item);
+        }
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Schedules a demotion, unless one is already waiting to run.
+     */
+    private void requestDemotion() {
+        if (pending.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    pending.set(false);
+                    demote((long) (getInMemoryBytes() * demotionFraction));
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The items held in memory, largest first. Items that are no
+     * longer in memory are forgotten.
+     */
+    private List<EncryptedFileItem> candidates() {
+        List<EncryptedFileItem> result;
+        synchronized (items) {
+            result = new ArrayList<EncryptedFileItem>(items.size());
+            for (Iterator<EncryptedFileItem> iterator = items.iterator(); iterator.hasNext(); ) {
+                EncryptedFileItem item = iterator.next();
+                if (item.isDemotable()) {
+                    result.add(item);
+                } else if (item.isSettled()) {
+                    iterator.remove();
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<EncryptedFileItem>() {
+            public int compare(EncryptedFileItem a, EncryptedFileItem b) {
+                long sizeA = a.getSize();
+                long sizeB = b.getSize();
+                return sizeA < sizeB ? 1 : sizeA == sizeB ? 0 : -1;
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,498 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes temporary files left behind by processes that have died.
+ *
+ * Temporary files are named <code>upload_&lt;UID&gt;_&lt;counter&gt;.tmp</code>,
+ * where the UID is generated afresh by each process. Their contents are
+ * encrypted under keys that only existed in the memory of that process, so
+ * once it has gone the files can never be read, and nothing else will
+ * delete them.
+ *
+ * A process creates <code>upload_&lt;UID&gt;.lock</code> in a directory the
+ * first time it creates a temporary file there, whether or not it runs a
+ * sweeper, and holds a lock on it until it exits. The sweeper treats a file
+ * as orphaned if its process's lock file exists but is not locked. Files
+ * with no lock file at all, such as those written by older versions of this
+ * library, are only treated as orphaned once they are older than a minimum
+ * age. Lock files that are in use anywhere in this JVM, including by copies
+ * of this library loaded by other class loaders, are recorded in the system
+ * properties, and the sweeper never opens those, since closing any
+ * descriptor on a file releases the lock this process holds on it. Orphans
+ * are deleted on a pool of threads, at a limited rate so that a large
+ * backlog does not swamp the disk.
+ */
+public class OrphanSweeper {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default number of threads deleting files.
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * The default limit on deletions per second.
+     */
+    public static final int DEFAULT_DELETES_PER_SECOND = 500;
+
+    /**
+     * The default age, in milliseconds, after which a file with no lock file
+     * is treated as orphaned.
+     */
+    public static final long DEFAULT_MIN_AGE = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The prefix of temporary and lock file names.
+     */
+    private static final String PREFIX = "upload_";
+
+    /**
+     * The length of a UID, which is a UUID with underscores for hyphens.
+     */
+    private static final int UID_LENGTH = 36;
+
+    /**
+     * The prefix of the system properties that record the lock files in use
+     * in this JVM, which unlike static fields are shared by every copy of
+     * this class.
+     */
+    private static final String LOCK_PROPERTY = OrphanSweeper.class.getName() + ".lock:";
+
+    /**
+     * The locks held by this copy of the class, by directory.
+     */
+    private static final ConcurrentMap<File, FileLock> CLAIMS = new ConcurrentHashMap<File, FileLock>();
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The directory to sweep.
+     */
+    private final File repository;
+
+    /**
+     * The number of threads deleting files.
+     */
+    private final int threads;
+
+    /**
+     * The interval between deletions, in nanoseconds.
+     */
+    private final long deleteInterval;
+
+    /**
+     * The age after which a file with no lock file is orphaned.
+     */
+    private final long minAge;
+
+    /**
+     * The time at which the next deletion may start, in nanoseconds.
+     */
+    private final AtomicLong nextDelete = new AtomicLong(System.nanoTime());
+
+    /**
+     * Runs background sweeps, once started.
+     */
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a sweeper with the default threads, rate and minimum age.
+     *
+     * @param repository The directory to sweep, or <code>null</code> for the
+     *                   system temporary directory.
+     */
+    public OrphanSweeper(File repository) {
+        this(repository, DEFAULT_THREADS, DEFAULT_DELETES_PER_SECOND, DEFAULT_MIN_AGE);
+    }
+
+    /**
+     * Constructs a sweeper.
+     *
+     * @param repository       The directory to sweep, or <code>null</code>
+     *                         for the system temporary directory.
+     * @param threads          The number of threads deleting files.
+     * @param deletesPerSecond The most files to delete per second.
+     * @param minAge           The age, in milliseconds, after which a file
+     *                         with no lock file is treated as orphaned.
+     */
+    public OrphanSweeper(File repository, int threads, int deletesPerSecond, long minAge) {
+        if (threads < 1 || deletesPerSecond < 1 || minAge < 0) {
+            throw new IllegalArgumentException("Threads and rate must be at least 1, and age not negative");
+        }
+        this.repository = directory(repository);
+        this.threads = threads;
+        this.deleteInterval = TimeUnit.SECONDS.toNanos(1) / deletesPerSecond;
+        this.minAge = minAge;
+        claim(this.repository);
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Deletes the orphaned files in the directory.
+     *
+     * @return The number of bytes reclaimed.
+     * @throws InterruptedException if interrupted while deleting.
+     */
+    public long sweep() throws InterruptedException {
+        File[] files = repository.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return uid(name) != null;
+            }
+        });
+        sweeps.incrementAndGet();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+
+        // Decide on each process once, rather than once per file:
+        Map<String, Owner> owners = new HashMap<String, Owner>();
+        List<File> staleLocks = new ArrayList<File>();
+        List<Callable<Long>> deletions = new ArrayList<Callable<Long>>();
+        long now = System.currentTimeMillis();
+        for (final File file : files) {
+            if (file.getName().endsWith(".lock")) {
+                continue;
+            }
+            String uid = uid(file.getName());
+            Owner owner = owners.get(uid);
+            if (owner == null) {
+                File lockFile = lockFile(repository, uid);
+                owner = owner(uid, lockFile);
+                owners.put(uid, owner);
+                if (owner == Owner.DEAD) {
+                    staleLocks.add(lockFile);
+                }
+            }
+            if (owner == Owner.DEAD || (owner == Owner.UNKNOWN && now - file.lastModified() >= minAge)) {
+                deletions.add(new Callable<Long>() {
+                    public Long call() throws InterruptedException {
+                        return delete(file);
+                    }
+                });
+            }
+        }
+
+        long reclaimed = 0;
+        if (!deletions.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(threads, deletions.size()), daemon("encrypted-file-upload-sweeper-delete"));
+            try {
+                for (Future<Long> result : executor.invokeAll(deletions)) {
+                    try {
+                        reclaimed += result.get();
+                    } catch (ExecutionException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        for (File lockFile : staleLocks) {
+            lockFile.delete();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Sweeps the directory now, in the background, and then repeatedly.
+     *
+     * @param period The time between sweeps, in milliseconds, or 0 to sweep
+     *               only once.
+     */
+    public synchronized void start(long period) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Sweeper already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon("encrypted-file-upload-sweeper"));
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        if (period > 0) {
+            scheduler.scheduleWithFixedDelay(task, 0, period, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.execute(task);
+        }
+    }
+
+    /**
+     * Stops background sweeps.
+     */
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The directory swept.
+     */
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return The number of sweeps run.
+     */
+    public long getSweepCount() {
+        return sweeps.get();
+    }
+
+    /**
+     * @return The number of orphaned files deleted.
+     */
+    public long getDeletedCount() {
+        return filesDeleted.get();
+    }
+
+    /**
+     * @return The number of bytes reclaimed by deleting orphaned files.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    /**
+     * @return The number of orphaned files that could not be deleted.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Marks this process as the owner of its temporary files in a
+     * directory, by creating and locking its lock file there. This is done
+     * the first time the process creates a temporary file in the directory,
+     * and only once per directory; if the lock file cannot be created, files
+     * are still protected by the minimum age.
+     *
+     * @param repository The directory, or <code>null</code> for the system
+     *                   temporary directory.
+     */
+    static void claim(File repository) {
+        File dir = directory(repository);
+        if (CLAIMS.containsKey(dir)) {
+            return;
+        }
+        synchronized (CLAIMS) {
+            if (CLAIMS.containsKey(dir)) {
+                return;
+            }
+            File lockFile = lockFile(dir, EncryptedFileItem.UID);
+            if (!mark(lockFile)) {
+                // Being checked by a sweeper; claim it next time
+                return;
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(lockFile, "rw");
+                FileLock lock = raf.getChannel().tryLock();
+                if (lock != null) {
+                    // The file stays open, and locked, until the process exits
+                    lockFile.deleteOnExit();
+                    CLAIMS.put(dir, lock);
+                    raf = null;
+                }
+            } catch (IOException e) {
+                // Not claimed; files here are protected by their age
+            } finally {
+                IOUtils.closeQuietly(raf);
+                if (!CLAIMS.containsKey(dir)) {
+                    unmark(lockFile);
+                }
+            }
+        }
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Deletes an orphaned file, once the rate limit allows.
+     *
+     * @return The number of bytes reclaimed.
+     */
+    private long delete(File file) throws InterruptedException {
+        long wait;
+        while (true) {
+            long next = nextDelete.get();
+            long now = System.nanoTime();
+            // Time unused since the last sweep is not banked as a burst:
+            long slot = Math.max(next, now);
+            if (nextDelete.compareAndSet(next, slot + deleteInterval)) {
+                wait = slot - now;
+                break;
+            }
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        long length = file.length();
+        if (file.delete()) {
+            filesDeleted.incrementAndGet();
+            bytesReclaimed.addAndGet(length);
+            return length;
+        }
+        if (file.exists()) {
+            failures.incrementAndGet();
+        }
+        return 0;
+    }
+
+    /**
+     * Works out whether the process that wrote files is still running, from
+     * its lock file.
+     */
+    private static Owner owner(String uid, File lockFile) {
+        if (uid.equals(EncryptedFileItem.UID)) {
+            return Owner.LIVE;
+        }
+        if (!lockFile.exists()) {
+            return Owner.UNKNOWN;
+        }
+        if (!mark(lockFile)) {
+            // Held, or being claimed, in this JVM
+            return Owner.LIVE;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(lockFile, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                return Owner.LIVE;
+            }
+            lock.release();
+            return Owner.DEAD;
+        } catch (OverlappingFileLockException e) {
+            // Locked within this JVM
+            return Owner.LIVE;
+        } catch (IOException e) {
+            return Owner.LIVE;
+        } finally {
+            IOUtils.closeQuietly(raf);
+            unmark(lockFile);
+        }
+    }
+
+    /**
+     * Records that a lock file is in use in this JVM, while it is claimed or
+     * checked, unless it already is.
+     *
+     * @return <code>true</code> if the lock file was not already in use.
+     */
+    private static boolean mark(File lockFile) {
+        Properties properties = System.getProperties();
+        String key = LOCK_PROPERTY + lockFile.getPath();
+        synchronized (properties) {
+            if (properties.containsKey(key)) {
+                return false;
+            }
+            properties.setProperty(key, EncryptedFileItem.UID);
+            return true;
+        }
+    }
+
+    /**
+     * Records that a lock file is no longer in use in this JVM.
+     */
+    private static void unmark(File lockFile) {
+        System.getProperties().remove(LOCK_PROPERTY + lockFile.getPath());
+    }
+
+    /**
+     * @return The UID in a temporary or lock file name, or <code>null</code>
+     * if the name is not one of ours.
+     */
+    private static String uid(String name) {
+        int end = PREFIX.length() + UID_LENGTH;
+        if (!name.startsWith(PREFIX) || name.length() <= end) {
+            return null;
+        }
+        String rest = name.substring(end);
+        if (rest.equals(".lock") || (rest.startsWith("_") && rest.endsWith(".tmp"))) {
+            return name.substring(PREFIX.length(), end);
+        }
+        return null;
+    }
+
+    private static File lockFile(File directory, String uid) {
+        return new File(directory, PREFIX + uid + ".lock");
+    }
+
+    private static File directory(File repository) {
+        return (repository == null ? new File(System.getProperty("java.io.tmpdir")) : repository).getAbsoluteFile();
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * What is known about the process that wrote a file.
+     */
+    private enum Owner {
+        /**
+         * The process holds its lock, or may do.
+         */
+        LIVE,
+        /**
+         * The process's lock file is not locked.
+         */
+        DEAD,
+        /**
+         * The process left no lock file.
+         */
+        UNKNOWN
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the decrypted contents of items stored on disk, shared by the
+ * items of an {@link EncryptedFileItemFactory}.
+ *
+ * Applications often read the same upload several times, for example to
+ * validate it, hash it and then store it. Without a cache, each read
+ * decrypts the whole file again. With one, the first read of an item that
+ * is small enough to cache decrypts it into memory, and later reads are
+ * served from there until the entry is evicted or the item is deleted,
+ * expires or is garbage collected.
+ *
+ * The cache is bounded by the number of bytes it holds, and evicts the
+ * least recently used entries first. Items larger than the entry limit are
+ * never cached, so that one large upload cannot flush everything else.
+ */
+public class PlaintextCache {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The most bytes the cache may hold.
+     */
+    private final long maxBytes;
+
+    /**
+     * The largest entry the cache will hold.
+     */
+    private final long maxEntryBytes;
+
+    /**
+     * The entries, least recently used first.
+     */
+    private final LinkedHashMap<Object, byte[]> entries = new LinkedHashMap<Object, byte[]>(16, 0.75f, true);
+
+    /**
+     * The bytes held.
+     */
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a cache in which an entry may take up to a quarter of the
+     * space.
+     *
+     * @param maxBytes The most bytes the cache may hold.
+     */
+    public PlaintextCache(long maxBytes) {
+        this(maxBytes, maxBytes / 4);
+    }
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxBytes      The most bytes the cache may hold.
+     * @param maxEntryBytes The size of the largest item to cache.
+     */
+    public PlaintextCache(long maxBytes, long maxEntryBytes) {
+        if (maxBytes < 0 || maxEntryBytes < 0 || maxEntryBytes > maxBytes) {
+            throw new IllegalArgumentException("Sizes must satisfy 0 <= maxEntryBytes <= maxBytes");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The most bytes the cache may hold.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The size of the largest item to cache.
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * @return The bytes held.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of items cached.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of reads served from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return The number of reads that had to decrypt stored data.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries evicted to make space.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of items not cached because they were too large.
+     */
+    public synchronized long getRejectionCount() {
+        return rejections;
+    }
+
+    /**
+     * @return The fraction of reads served from the cache.
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * @param size The size of an item.
+     * @return <code>true</code> if an item of this size may be cached.
+     */
+    boolean accepts(long size) {
+        return size <= maxEntryBytes;
+    }
+
+    /**
+     * Looks up the contents of an item, counting a hit or a miss.
+     *
+     * @param key The item's stream.
+     * @return The contents, or <code>null</code> if they are not cached.
+     */
+    synchronized byte[] get(Object key) {
+        byte[] value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Caches the contents of an item, evicting the least recently used
+     * entries to make space.
+     *
+     * @param key   The item's stream.
+     * @param value The contents.
+     */
+    synchronized void put(Object key, byte[] value) {
+        if (!accepts(value.length)) {
+            rejections++;
+            return;
+        }
+        byte[] previous = entries.put(key, value);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += value.length;
+        Iterator<Map.Entry<Object, byte[]>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Object, byte[]> eldest = iterator.next();
+            if (eldest.getKey() == key) {
+                continue;
+            }
+            bytes -= eldest.getValue().length;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes the contents of an item, such as when it is deleted.
+     *
+     * @param key The item's stream.
+     */
+    synchronized void invalidate(Object key) {
+        byte[] value = entries.remove(key);
+        if (value != null) {
+            bytes -= value.length;
+        }
+    }
+}
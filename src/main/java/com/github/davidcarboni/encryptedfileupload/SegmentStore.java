@@ -0,0 +1,768 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A log-structured store for the encrypted content of spilled items.
+ *
+ * Rather than one file per item, content is appended as extents to a small
+ * number of large segment files. Each extent is a list of chunks, located by
+ * an in-memory index. Segments are reference counted: a segment file is
+ * deleted once it is full and every chunk in it has been deleted. A
+ * background task compacts full segments that are mostly dead by moving
+ * their remaining chunks to the active segment.
+ *
+ * The store only sees ciphertext: items encrypt their content before it is
+ * written here, under their own key.
+ */
+public class SegmentStore {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default size of a segment file.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The default size of the buffer used to collect writes into a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The default proportion of live data below which a full segment is compacted.
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * The default interval, in milliseconds, between compaction runs.
+     */
+    public static final long DEFAULT_COMPACTION_INTERVAL = 30000;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The directory in which segment files are created.
+     */
+    private final File repository;
+
+    /**
+     * The size at which a segment is considered full.
+     */
+    private final long segmentSize;
+
+    /**
+     * The size of the buffer used to collect writes into a chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * The proportion of live data below which a full segment is compacted.
+     */
+    private volatile double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * The in-memory index of extents, by id.
+     */
+    private final ConcurrentMap<Long, Extent> index = new ConcurrentHashMap<Long, Extent>();
+
+    /**
+     * All segments that have not yet been deleted.
+     */
+    private final Set<Segment> segments = Collections.newSetFromMap(new ConcurrentHashMap<Segment, Boolean>());
+
+    /**
+     * Source of extent ids.
+     */
+    private final AtomicLong extentIds = new AtomicLong();
+
+    /**
+     * Guards the replacement of the active segment.
+     */
+    private final Object rollLock = new Object();
+
+    /**
+     * Guards compaction, so that runs do not overlap.
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * The segment to which new chunks are appended.
+     */
+    private volatile Segment active;
+
+    /**
+     * Runs compaction in the background, if configured.
+     */
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Number of compaction runs that relocated at least one chunk.
+     */
+    private final AtomicLong compactions = new AtomicLong();
+
+    /**
+     * Number of bytes moved by compaction.
+     */
+    private final AtomicLong relocatedBytes = new AtomicLong();
+
+    /**
+     * True once {@link #close()} has been called.
+     */
+    private volatile boolean closed;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a store with the default segment size and compaction interval.
+     *
+     * @param repository The directory in which segment files will be created,
+     *                   or <code>null</code> for the system temporary directory.
+     */
+    public SegmentStore(File repository) {
+        this(repository, DEFAULT_SEGMENT_SIZE, DEFAULT_CHUNK_SIZE, DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * Constructs a store.
+     *
+     * @param repository         The directory in which segment files will be
+     *                           created, or <code>null</code> for the system
+     *                           temporary directory.
+     * @param segmentSize        The size at which a segment is considered full.
+     * @param chunkSize          The size of the buffer used to collect writes
+     *                           into a chunk. Must not exceed the segment size.
+     * @param compactionInterval The interval, in milliseconds, between
+     *                           background compaction runs, or zero to only
+     *                           compact when {@link #compact()} is called.
+     */
+    public SegmentStore(File repository, long segmentSize, int chunkSize, long compactionInterval) {
+        if (chunkSize < 1 || chunkSize > segmentSize) {
+            throw new IllegalArgumentException("The chunk size must be between 1 and the segment size");
+        }
+        this.repository = repository;
+        this.segmentSize = segmentSize;
+        this.chunkSize = chunkSize;
+        if (compactionInterval > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SegmentStore compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        // Try again next time
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Moves the remaining chunks out of every full segment whose proportion
+     * of live data is below the compaction threshold, so that the segment
+     * can be deleted. Extents that are still being written are left alone.
+     *
+     * @throws IOException if chunks cannot be read or written.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            long relocated = 0;
+            for (Segment segment : segments) {
+                if (!segment.sealed || segment.getLiveRatio() >= compactionThreshold) {
+                    continue;
+                }
+                for (Extent extent : index.values()) {
+                    relocated += extent.relocate(segment);
+                }
+            }
+            if (relocated > 0) {
+                compactions.incrementAndGet();
+                relocatedBytes.addAndGet(relocated);
+            }
+        }
+    }
+
+    /**
+     * Stops compaction and deletes all segment files. Items that still hold
+     * extents in this store can no longer be read.
+     */
+    public void close() {
+        closed = true;
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        for (Segment segment : segments) {
+            segment.destroy();
+        }
+        index.clear();
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The directory in which segment files are created.
+     */
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return The size at which a segment is considered full.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return The proportion of live data below which a full segment is compacted.
+     */
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * @param compactionThreshold The proportion of live data, between 0 and
+     *                            1, below which a full segment is compacted.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return The number of extents that have not been deleted.
+     */
+    public int getExtentCount() {
+        return index.size();
+    }
+
+    /**
+     * @return The number of bytes occupied by segment files, including dead chunks.
+     */
+    public long getStoredBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.tail.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of bytes held by chunks that have not been deleted.
+     */
+    public long getLiveBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.liveBytes.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of compaction runs that moved data.
+     */
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * @return The number of bytes moved by compaction.
+     */
+    public long getRelocatedBytes() {
+        return relocatedBytes.get();
+    }
+
+    // ------------------------------------------------------ Package methods
+
+    /**
+     * Creates a new, empty extent and adds it to the index.
+     *
+     * @return The new extent.
+     * @throws IOException if the store has been closed.
+     */
+    Extent newExtent() throws IOException {
+        if (closed) {
+            throw new IOException("Segment store has been closed");
+        }
+        Extent extent = new Extent(extentIds.incrementAndGet());
+        index.put(extent.id, extent);
+        return extent;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Appends the given data to the active segment, starting a new segment
+     * if the active one is full.
+     *
+     * @param src The data to append.
+     * @return The location of the data.
+     * @throws IOException if the data cannot be written.
+     */
+    private Chunk append(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        while (true) {
+            if (closed) {
+                throw new IOException("Segment store has been closed");
+            }
+            Segment segment = getActiveSegment();
+            // The active segment may have been filled and deleted since we read it:
+            if (!segment.tryRetain()) {
+                continue;
+            }
+            long position = segment.allocate(length);
+            if (position < 0) {
+                segment.release();
+                roll(segment);
+                continue;
+            }
+            try {
+                segment.write(src, position);
+            } catch (IOException e) {
+                segment.release();
+                throw e;
+            }
+            segment.liveBytes.addAndGet(length);
+            return new Chunk(segment, position, length);
+        }
+    }
+
+    /**
+     * @return The active segment, which is created if necessary.
+     * @throws IOException if a segment file cannot be created.
+     */
+    private Segment getActiveSegment() throws IOException {
+        Segment segment = active;
+        if (segment == null) {
+            synchronized (rollLock) {
+                if (active == null) {
+                    active = newSegment();
+                }
+                segment = active;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Replaces the given segment, if it is still the active one, with a new segment.
+     *
+     * @param full The segment that is full.
+     * @throws IOException if a segment file cannot be created.
+     */
+    private void roll(Segment full) throws IOException {
+        synchronized (rollLock) {
+            if (active == full) {
+                active = newSegment();
+                full.seal();
+            }
+        }
+    }
+
+    /**
+     * @return A new segment backed by a new file.
+     * @throws IOException if the file cannot be created.
+     */
+    private Segment newSegment() throws IOException {
+        File file = EncryptedFileItem.newTempFile(repository);
+        OrphanSweeper.claim(repository);
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(file, channel);
+        segments.add(segment);
+        return segment;
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * A segment file. The reference count starts at one on behalf of the
+     * store while the segment is active; each chunk and each open reader
+     * holds a further reference.
+     */
+    private final class Segment {
+
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile boolean sealed;
+
+        Segment(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Reserves space at the end of the segment.
+         *
+         * @return The position of the space, or -1 if the segment is full.
+         */
+        long allocate(int length) {
+            while (true) {
+                long position = tail.get();
+                if (position > 0 && position + length > segmentSize) {
+                    return -1;
+                }
+                if (tail.compareAndSet(position, position + length)) {
+                    return position;
+                }
+            }
+        }
+
+        void write(ByteBuffer src, long position) throws IOException {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+
+        int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        double getLiveRatio() {
+            long size = tail.get();
+            return size == 0 ? 1 : (double) liveBytes.get() / size;
+        }
+
+        /**
+         * Marks the segment as full and drops the reference held while it was active.
+         */
+        void seal() {
+            sealed = true;
+            release();
+        }
+
+        /**
+         * Adds a reference, unless the segment has already been deleted.
+         */
+        boolean tryRetain() {
+            while (true) {
+                int count = refs.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Adds a reference on behalf of a holder of an existing reference.
+         */
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                destroy();
+            }
+        }
+
+        void destroy() {
+            segments.remove(this);
+            IOUtils.closeQuietly(channel);
+            file.delete();
+        }
+    }
+
+    /**
+     * The location of a run of bytes within a segment.
+     */
+    private static final class Chunk {
+
+        private final Segment segment;
+        private final long position;
+        private final int length;
+
+        Chunk(Segment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        void release() {
+            segment.liveBytes.addAndGet(-length);
+            segment.release();
+        }
+    }
+
+    /**
+     * The stored content of one item, as a list of chunks.
+     */
+    final class Extent {
+
+        private final long id;
+        private final List<Chunk> chunks = new ArrayList<Chunk>();
+        private long length;
+        private boolean writing = true;
+        private boolean deleted;
+
+        Extent(long id) {
+            this.id = id;
+        }
+
+        /**
+         * @return The number of bytes stored in this extent.
+         */
+        synchronized long length() {
+            return length;
+        }
+
+        /**
+         * @return The segment files holding this extent's chunks.
+         */
+        synchronized List<File> getFiles() {
+            Set<File> files = new LinkedHashSet<File>();
+            for (Chunk chunk : chunks) {
+                files.add(chunk.segment.file);
+            }
+            return new ArrayList<File>(files);
+        }
+
+        /**
+         * Returns a stream that appends to this extent. Data are collected
+         * into chunks of the configured size; the final partial chunk is
+         * written when the stream is closed.
+         *
+         * @return An output stream for this extent.
+         */
+        OutputStream openOutputStream() {
+            return new ExtentOutputStream(this);
+        }
+
+        /**
+         * Returns a channel that reads the content of this extent. The
+         * segments it reads from are retained until the channel is closed.
+         *
+         * @return A readable channel.
+         * @throws IOException if the extent has been deleted.
+         */
+        synchronized ReadableByteChannel openChannel() throws IOException {
+            if (deleted) {
+                throw new FileNotFoundException("The stored extent has been deleted");
+            }
+            List<Chunk> snapshot = new ArrayList<Chunk>(chunks);
+            for (Chunk chunk : snapshot) {
+                chunk.segment.retain();
+            }
+            return new ExtentChannel(snapshot);
+        }
+
+        /**
+         * Deletes this extent, releasing its chunks.
+         */
+        void delete() {
+            synchronized (this) {
+                if (deleted) {
+                    return;
+                }
+                deleted = true;
+                for (Chunk chunk : chunks) {
+                    chunk.release();
+                }
+                chunks.clear();
+            }
+            index.remove(id);
+        }
+
+        synchronized void add(Chunk chunk) throws IOException {
+            if (deleted) {
+                chunk.release();
+                throw new IOException("The stored extent has been deleted");
+            }
+            chunks.add(chunk);
+            length += chunk.length;
+        }
+
+        synchronized void finish() {
+            writing = false;
+        }
+
+        /**
+         * Moves any chunks held in the given segment to the active segment.
+         *
+         * @return The number of bytes moved.
+         */
+        synchronized long relocate(Segment segment) throws IOException {
+            if (writing || deleted) {
+                return 0;
+            }
+            long moved = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                if (chunk.segment != segment) {
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(chunk.length);
+                long position = chunk.position;
+                while (buffer.hasRemaining()) {
+                    int read = segment.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of segment " + segment.file);
+                    }
+                    position += read;
+                }
+                buffer.flip();
+                chunks.set(i, append(buffer));
+                chunk.release();
+                moved += chunk.length;
+            }
+            return moved;
+        }
+    }
+
+    /**
+     * Collects writes into chunk-sized buffers and appends them to an extent.
+     */
+    private final class ExtentOutputStream extends OutputStream {
+
+        private final Extent extent;
+        private final byte[] buffer = new byte[chunkSize];
+        private int count;
+        private boolean closed;
+
+        ExtentOutputStream(Extent extent) {
+            this.extent = extent;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flushBuffer();
+            } finally {
+                extent.finish();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                extent.add(append(ByteBuffer.wrap(buffer, 0, count)));
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot of the chunks of an extent in order.
+     */
+    private static final class ExtentChannel implements ReadableByteChannel {
+
+        private final List<Chunk> chunks;
+        private int index;
+        private long offset;
+        private boolean open = true;
+
+        ExtentChannel(List<Chunk> chunks) {
+            this.chunks = chunks;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            while (index < chunks.size() && offset == chunks.get(index).length) {
+                index++;
+                offset = 0;
+            }
+            if (index == chunks.size()) {
+                return -1;
+            }
+            Chunk chunk = chunks.get(index);
+            int wanted = (int) Math.min(dst.remaining(), chunk.length - offset);
+            int limit = dst.limit();
+            dst.limit(dst.position() + wanted);
+            try {
+                int read = chunk.segment.read(dst, chunk.position + offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of segment " + chunk.segment.file);
+                }
+                offset += read;
+                return read;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            if (open) {
+                open = false;
+                for (Chunk chunk : chunks) {
+                    chunk.segment.release();
+                }
+            }
+        }
+    }
+}
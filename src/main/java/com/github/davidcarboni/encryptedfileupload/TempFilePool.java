@@ -0,0 +1,277 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of pre-created, empty temporary files which spilled items reuse
+ * instead of creating and deleting a new file every time.
+ *
+ * Reusing a file is safe because each item encrypts its content under a
+ * freshly generated key, and files are truncated as they are returned to the
+ * pool, so nothing written by one item can be read through another. A file
+ * that is still being read when its item is deleted is deleted rather than
+ * returned, so that the reader is not cut short.
+ */
+public class TempFilePool {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default maximum number of idle files held by the pool.
+     */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The directory in which pooled files are created.
+     */
+    private final File repository;
+
+    /**
+     * The maximum number of idle files held by the pool.
+     */
+    private final int maxIdle;
+
+    /**
+     * Truncated files that are ready to be handed out.
+     */
+    private final BlockingQueue<File> idle;
+
+    /**
+     * Number of files handed out from the pool.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of files that had to be created because the pool was empty.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of files returned to the pool for reuse.
+     */
+    private final AtomicLong returns = new AtomicLong();
+
+    /**
+     * Number of files deleted on release because the pool was full or closed.
+     */
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * True once {@link #close()} has been called.
+     */
+    private volatile boolean closed;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a pool holding up to {@link #DEFAULT_MAX_IDLE} idle files.
+     *
+     * @param repository The directory in which files will be created, or
+     *                   <code>null</code> for the system temporary directory.
+     */
+    public TempFilePool(File repository) {
+        this(repository, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Constructs a pool holding up to the given number of idle files.
+     *
+     * @param repository The directory in which files will be created, or
+     *                   <code>null</code> for the system temporary directory.
+     * @param maxIdle    The maximum number of idle files to keep.
+     */
+    public TempFilePool(File repository, int maxIdle) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("The pool must be able to hold at least one file");
+        }
+        this.repository = repository;
+        this.maxIdle = maxIdle;
+        this.idle = new ArrayBlockingQueue<File>(maxIdle);
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Creates empty files until the pool holds the given number of idle
+     * files, or is full.
+     *
+     * @param count The number of idle files wanted.
+     * @throws IOException if a file cannot be created.
+     */
+    public void prefill(int count) throws IOException {
+        int target = Math.min(count, maxIdle);
+        while (!closed && idle.size() < target) {
+            File file = EncryptedFileItem.newTempFile(repository);
+            OrphanSweeper.claim(repository);
+            if (!file.createNewFile()) {
+                throw new IOException("Unable to create pooled file " + file);
+            }
+            if (!idle.offer(file)) {
+                file.delete();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Takes an empty file from the pool. If there is no idle file, a new,
+     * uniquely named file is returned instead, which the caller will create
+     * when it opens it for writing.
+     *
+     * @return An empty file, or the name of a file that does not exist yet.
+     */
+    public File acquire() {
+        File file;
+        while ((file = idle.poll()) != null) {
+            // Skip any file that has been removed from under us:
+            if (file.exists()) {
+                hits.incrementAndGet();
+                return file;
+            }
+        }
+        misses.incrementAndGet();
+        return EncryptedFileItem.newTempFile(repository);
+    }
+
+    /**
+     * Returns a file to the pool once the item that used it has been
+     * deleted. The file is truncated so that no ciphertext lingers on disk.
+     * If the pool is full, closed, or the file cannot be truncated, it is
+     * deleted instead.
+     *
+     * @param file The file to return.
+     */
+    public void release(File file) {
+        if (file == null) {
+            return;
+        }
+        if (!closed && truncate(file) && idle.offer(file)) {
+            returns.incrementAndGet();
+        } else {
+            discards.incrementAndGet();
+            file.delete();
+        }
+    }
+
+    /**
+     * Deletes a file taken from the pool, rather than returning it, because
+     * it is still being read. On platforms that do not allow an open file
+     * to be deleted, it is deleted when the JVM exits.
+     *
+     * @param file The file to delete.
+     */
+    void discard(File file) {
+        if (file == null) {
+            return;
+        }
+        discards.incrementAndGet();
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Deletes all idle files and stops accepting files back into the pool.
+     * Files that are still in use will be deleted when they are released.
+     */
+    public void close() {
+        closed = true;
+        File file;
+        while ((file = idle.poll()) != null) {
+            file.delete();
+        }
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The directory in which pooled files are created.
+     */
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return The maximum number of idle files held by the pool.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @return The number of files currently waiting to be reused.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return The number of times a pooled file was handed out.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of times a new file was needed because the pool was empty.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of files returned to the pool for reuse.
+     */
+    public long getReturnCount() {
+        return returns.get();
+    }
+
+    /**
+     * @return The number of released files that were deleted rather than pooled.
+     */
+    public long getDiscardCount() {
+        return discards.get();
+    }
+
+    /**
+     * @return The proportion of requests served from the pool, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Truncates the given file to zero length.
+     *
+     * @param file The file to truncate.
+     * @return <code>true</code> if the file exists and was truncated.
+     */
+    private static boolean truncate(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+}
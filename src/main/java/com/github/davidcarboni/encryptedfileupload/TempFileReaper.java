@@ -0,0 +1,446 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the temporary files of items in the background, in batches.
+ *
+ * Without a reaper, {@link EncryptedFileItem#delete()} unlinks its file on
+ * the calling thread, and files of items that are never deleted are left to
+ * a {@link org.apache.commons.io.FileCleaningTracker}, whose single reaper
+ * thread and synchronized collection can fall behind when many uploads
+ * finish at once. With a reaper, a deleted file is added to a concurrent
+ * queue and the calling thread returns straight away. Worker threads take
+ * files from the queue in batches and unlink them, so a spike of deletes is
+ * spread over the pool rather than added to request latency.
+ *
+ * The queue is bounded. If it is full, a file is unlinked on the calling
+ * thread instead, so that a backlog cannot grow without limit when the disk
+ * falls behind. A shutdown hook can be registered to drain the queue as the
+ * JVM exits, so that queued files are not left behind.
+ *
+ * Items that are garbage collected without being deleted are found by the
+ * factory's {@link ItemCleaner}, which hands their files to the reaper in
+ * the same way, so a tracker is not needed alongside it.
+ */
+public class TempFileReaper {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default number of worker threads.
+     */
+    public static final int DEFAULT_WORKERS = 2;
+
+    /**
+     * The default number of files a worker unlinks before checking whether
+     * another worker is needed.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * The default number of files that may wait to be unlinked.
+     */
+    public static final int DEFAULT_MAX_BACKLOG = 10000;
+
+    /**
+     * How long the shutdown hook waits for workers to finish a batch, in
+     * milliseconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The number of worker threads.
+     */
+    private final int workers;
+
+    /**
+     * The number of files to unlink in one batch.
+     */
+    private final int batchSize;
+
+    /**
+     * The number of files that may wait to be unlinked.
+     */
+    private final int maxBacklog;
+
+    /**
+     * The shutdown hook, if registered.
+     */
+    private Thread shutdownHook;
+
+    /**
+     * Files waiting to be unlinked.
+     */
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+
+    /**
+     * The number of files waiting, which is cheaper to read than the size of
+     * the queue.
+     */
+    private final AtomicInteger backlog = new AtomicInteger();
+
+    /**
+     * The number of workers draining the queue.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Runs the workers.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Number of files unlinked.
+     */
+    private final AtomicLong deleted = new AtomicLong();
+
+    /**
+     * Number of files that could not be unlinked.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Number of files unlinked on the calling thread because the queue was
+     * full or the reaper closed.
+     */
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Number of batches run.
+     */
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Total time from queueing to unlinking, in nanoseconds.
+     */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /**
+     * Longest time from queueing to unlinking, in nanoseconds.
+     */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a reaper with the default number of workers, batch size and
+     * queue size.
+     */
+    public TempFileReaper() {
+        this(DEFAULT_WORKERS, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a reaper with the default queue size.
+     *
+     * @param workers   The number of threads that unlink files.
+     * @param batchSize The number of files a worker unlinks before checking
+     *                  whether another worker is needed.
+     */
+    public TempFileReaper(int workers, int batchSize) {
+        this(workers, batchSize, DEFAULT_MAX_BACKLOG);
+    }
+
+    /**
+     * Constructs a reaper.
+     *
+     * @param workers    The number of threads that unlink files.
+     * @param batchSize  The number of files a worker unlinks before checking
+     *                   whether another worker is needed.
+     * @param maxBacklog The number of files that may wait to be unlinked,
+     *                   beyond which files are unlinked on the calling thread.
+     */
+    public TempFileReaper(int workers, int batchSize, int maxBacklog) {
+        if (workers < 1 || batchSize < 1 || maxBacklog < 0) {
+            throw new IllegalArgumentException("Workers and batch size must be at least 1, and backlog not negative");
+        }
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.maxBacklog = maxBacklog;
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "encrypted-file-upload-reaper-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Queues a file to be unlinked. If the queue is full or the reaper has
+     * been closed, the file is unlinked on the calling thread.
+     *
+     * @param file The file.
+     */
+    public void delete(File file) {
+        if (offer(file)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Queues a batch of files to be unlinked, waking workers once for the
+     * whole batch.
+     *
+     * @param files The files.
+     */
+    public void delete(Collection<File> files) {
+        boolean queued = false;
+        for (File file : files) {
+            queued |= offer(file);
+        }
+        if (queued) {
+            schedule();
+        }
+    }
+
+    /**
+     * Registers a hook that closes this reaper as the JVM shuts down, so that
+     * files still queued are unlinked before it exits.
+     */
+    public synchronized void registerShutdownHook() {
+        if (shutdownHook != null) {
+            return;
+        }
+        shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    close(SHUTDOWN_TIMEOUT);
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+            }
+        }, "encrypted-file-upload-reaper-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stops the workers, then unlinks any files still queued on the calling
+     * thread. Files deleted after this are unlinked on the calling thread.
+     *
+     * @param timeout How long to wait for the workers to finish a batch, in
+     *                milliseconds.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void close(long timeout) throws InterruptedException {
+        synchronized (this) {
+            if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // Already shutting down; the hook will drain the queue too
+                }
+            }
+            shutdownHook = null;
+        }
+        executor.shutdown();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        drain(Integer.MAX_VALUE);
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * @return The number of files waiting to be unlinked.
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * @return The number of files unlinked.
+     */
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * @return The number of files that could not be unlinked. These are
+     * marked for deletion when the JVM exits.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return The most files that may wait to be unlinked.
+     */
+    public int getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * @return The number of files unlinked on the calling thread because
+     * the queue was full or the reaper had been closed.
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    /**
+     * @return The number of batches run.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return The mean time from a file being queued to it being unlinked,
+     * in milliseconds.
+     */
+    public double getMeanLatencyMillis() {
+        long count = deleted.get() + failures.get();
+        return count == 0 ? 0 : totalLatency.get() / (count * 1e6);
+    }
+
+    /**
+     * @return The longest time from a file being queued to it being
+     * unlinked, in milliseconds.
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatency.get() / 1e6;
+    }
+
+    /**
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount() {
+        return workers;
+    }
+
+    /**
+     * @return The number of files unlinked in one batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Queues a file, or unlinks it now if the queue is full or the reaper
+     * has been closed.
+     *
+     * @return <code>true</code> if the file was queued.
+     */
+    private boolean offer(File file) {
+        if (!executor.isShutdown()) {
+            if (backlog.incrementAndGet() <= maxBacklog) {
+                pending.add(new Pending(file));
+                return true;
+            }
+            backlog.decrementAndGet();
+        }
+        fallbacks.incrementAndGet();
+        unlink(new Pending(file));
+        return false;
+    }
+
+    /**
+     * Starts a worker, unless all of them are already draining the queue.
+     */
+    private void schedule() {
+        int running;
+        while ((running = active.get()) < workers) {
+            if (active.compareAndSet(running, running + 1)) {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            work();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // Closed: the queue is drained by close()
+                    active.decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Unlinks batches of files until the queue is empty.
+     */
+    private void work() {
+        try {
+            while (drain(batchSize) == batchSize && !executor.isShutdown()) {
+                // A full batch suggests a backlog; share it with another worker
+                schedule();
+            }
+        } finally {
+            active.decrementAndGet();
+        }
+        // A file may have been queued after the last poll and before the
+        // decrement, when all workers appeared busy:
+        if (!pending.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Unlinks up to the given number of queued files.
+     *
+     * @param max The most files to unlink.
+     * @return The number of files taken from the queue.
+     */
+    private int drain(int max) {
+        int count = 0;
+        Pending next;
+        while (count < max && (next = pending.poll()) != null) {
+            backlog.decrementAndGet();
+            unlink(next);
+            count++;
+        }
+        if (count > 0) {
+            batches.incrementAndGet();
+        }
+        return count;
+    }
+
+    /**
+     * Unlinks a file and records how long it waited.
+     */
+    private void unlink(Pending next) {
+        if (next.file.delete() || !next.file.exists()) {
+            deleted.incrementAndGet();
+        } else {
+            failures.incrementAndGet();
+            next.file.deleteOnExit();
+        }
+        long latency = System.nanoTime() - next.queued;
+        totalLatency.addAndGet(latency);
+        long max;
+        while ((max = maxLatency.get()) < latency && !maxLatency.compareAndSet(max, latency)) {
+            // Retry
+        }
+    }
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * A file waiting to be unlinked.
+     */
+    private static final class Pending {
+
+        private final File file;
+        private final long queued = System.nanoTime();
+
+        Pending(File file) {
+            this.file = file;
+        }
+    }
+}
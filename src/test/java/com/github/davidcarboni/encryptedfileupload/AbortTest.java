@@ -0,0 +1,170 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.multipart;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that uploads which fail part-way release their resources
+ * straight away.
+ */
+public class AbortTest {
+
+    private File repository;
+    private EncryptedFileItemFactory fileItemFactory;
+    private BufferArena bufferArena;
+    private MemoryBudget memoryBudget;
+    private DiskQuota diskQuota;
+    private TempFileReaper tempFileReaper;
+
+    @Before
+    public void setUp() {
+        repository = new File(System.getProperty("java.io.tmpdir"), "aborttest");
+        repository.mkdirs();
+        fileItemFactory = new EncryptedFileItemFactory(1000, repository);
+        bufferArena = new BufferArena(256, 64);
+        memoryBudget = new MemoryBudget(1000000);
+        diskQuota = new DiskQuota(100000000, DiskQuota.Policy.REJECT);
+        tempFileReaper = new TempFileReaper();
+        fileItemFactory.setBufferArena(bufferArena);
+        fileItemFactory.setMemoryBudget(memoryBudget);
+        fileItemFactory.setDiskQuota(diskQuota);
+        fileItemFactory.setTempFileReaper(tempFileReaper);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tempFileReaper.close(1000);
+        FileUtils.deleteDirectory(repository);
+    }
+
+    @Test
+    public void shouldFailWritesAfterAbort() throws Exception {
+
+        // Given
+        EncryptedFileItem item = (EncryptedFileItem) fileItemFactory.createItem(
+                "test", "application/octet-stream", false, "test.bin");
+        OutputStream out = item.getOutputStream();
+        out.write(Random.bytes(100));
+
+        // When
+        item.abort();
+
+        // Then
+        assertTrue(item.isAborted());
+        assertEquals(0, bufferArena.getInUseCount());
+        assertEquals(0, memoryBudget.getUsedBytes());
+        try {
+            out.write(Random.bytes(100));
+            fail("Write after abort should fail");
+        } catch (IOException e) {
+            assertEquals("This stream has been aborted", e.getMessage());
+        }
+        out.close();
+    }
+
+    @Test
+    public void shouldNotAbortCompleteItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = (EncryptedFileItem) fileItemFactory.createItem(
+                "test", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(Random.bytes(100));
+        item.getOutputStream().close();
+
+        // When
+        item.delete();
+
+        // Then
+        assertFalse(item.isAborted());
+    }
+
+    @Test
+    public void shouldReleaseResourcesUnderStormOfAbortedUploads() throws Exception {
+
+        // Given
+        final List<FileItem> created = new ArrayList<FileItem>();
+        ServletFileUpload upload = new ServletFileUpload(new FileItemFactory() {
+            public FileItem createItem(String fieldName, String contentType, boolean isFormField, String fileName) {
+                FileItem item = fileItemFactory.createItem(fieldName, contentType, isFormField, fileName);
+                created.add(item);
+                return item;
+            }
+        });
+
+        // When
+        for (int i = 0; i < 200; i++) {
+            // Alternate between items that fail in memory and on disk:
+            int size = i % 2 == 0 ? 500 : 5000;
+            try {
+                byte[] body = multipart(Random.bytes(size));
+                upload.parseRequest(disconnectingRequest(body, body.length - size / 2));
+                fail("Upload should have failed");
+            } catch (FileUploadException e) {
+                // Expected
+            }
+        }
+
+        // Then
+        assertEquals(200, created.size());
+        assertEquals(0, bufferArena.getInUseCount());
+        assertEquals(0, memoryBudget.getUsedBytes());
+        assertEquals(0, diskQuota.getUsedBytes());
+        tempFileReaper.close(1000);
+        assertEquals(0, tempFileReaper.getBacklog());
+        assertEquals(0, FileUtils.listFiles(repository, new String[]{"tmp"}, false).size());
+    }
+
+    /**
+     * A request whose client disconnects after part of the body.
+     */
+    private MockHttpServletRequest disconnectingRequest(byte[] body, final int limit) {
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(body)) {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (++count > limit) {
+                    throw new IOException("Client disconnected");
+                }
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                for (int i = 0; i < len; i++) {
+                    if (count >= limit && i > 0) {
+                        // Deliver what arrived before the disconnect
+                        return i;
+                    }
+                    int res = read();
+                    if (res == -1) {
+                        return i == 0 ? -1 : i;
+                    }
+                    b[off + i] = (byte) res;
+                }
+                return len;
+            }
+        };
+        return new MockHttpServletRequest(in, body.length, FileUploadTestCase.CONTENT_TYPE);
+    }
+}
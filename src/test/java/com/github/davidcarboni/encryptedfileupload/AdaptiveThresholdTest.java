@@ -0,0 +1,132 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that an {@link AdaptiveThreshold} follows the sizes of
+ * the items it sees, within its bounds.
+ */
+public class AdaptiveThresholdTest {
+
+    @Test
+    public void shouldKeepInitialThresholdUntilEnoughSamples() {
+
+        // Given
+        AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold(1024, 64, 1024 * 1024);
+
+        // When
+        record(adaptiveThreshold, null, 5000, AdaptiveThreshold.DEFAULT_MIN_SAMPLES - 1);
+
+        // Then
+        assertEquals(1024, adaptiveThreshold.getThreshold());
+        assertTrue(adaptiveThreshold.getHistory().isEmpty());
+    }
+
+    @Test
+    public void shouldRaiseThresholdToKeepSmallItemsInMemory() {
+
+        // Given
+        AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold(1024, 64, 1024 * 1024);
+
+        // When
+        record(adaptiveThreshold, null, 5000, AdaptiveThreshold.DEFAULT_MIN_SAMPLES);
+
+        // Then
+        int threshold = adaptiveThreshold.getThreshold();
+        assertTrue(threshold >= 5000 && threshold < 6000);
+        List<AdaptiveThreshold.Change> history = adaptiveThreshold.getHistory();
+        assertEquals(1, history.size());
+        assertNull(history.get(0).getKey());
+        assertEquals(threshold, history.get(0).getThreshold());
+    }
+
+    @Test
+    public void shouldSpillLargeItemsWhenSpillingIsCheap() {
+
+        // Given
+        AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold(10240, 512, 10 * 1024 * 1024,
+                1024, AdaptiveThreshold.Partition.NONE, 100);
+
+        // When
+        record(adaptiveThreshold, null, 1024 * 1024, 100);
+
+        // Then
+        assertEquals(512, adaptiveThreshold.getThreshold());
+    }
+
+    @Test
+    public void shouldKeepThresholdWithinLowerBound() {
+
+        // Given
+        AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold(4096, 2048, 1024 * 1024);
+
+        // When
+        record(adaptiveThreshold, null, 100, 200);
+
+        // Then
+        assertEquals(2048, adaptiveThreshold.getThreshold());
+    }
+
+    @Test
+    public void shouldNotHoldMemoryForItemsThatSpillAnyway() {
+
+        // Given
+        AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold(1024, 64, 2048);
+
+        // When
+        record(adaptiveThreshold, null, 5000, 200);
+
+        // Then
+        assertEquals(64, adaptiveThreshold.getThreshold());
+    }
+
+    @Test
+    public void shouldChooseThresholdPerField() {
+
+        // Given
+        AdaptiveThreshold adaptiveThreshold = new AdaptiveThreshold(1024, 64, 1024 * 1024,
+                AdaptiveThreshold.DEFAULT_SPILL_COST, AdaptiveThreshold.Partition.FIELD_NAME, 100);
+
+        // When
+        record(adaptiveThreshold, "comment", 3000, 100);
+        record(adaptiveThreshold, "video", 10 * 1024 * 1024, 100);
+
+        // Then
+        int comment = adaptiveThreshold.getThreshold(null, "comment");
+        assertTrue(comment >= 3000 && comment < 4000);
+        assertEquals(64, adaptiveThreshold.getThreshold(null, "video"));
+        assertEquals(adaptiveThreshold.getThreshold(), adaptiveThreshold.getThreshold(null, "other"));
+    }
+
+    @Test
+    public void shouldApplyLearnedThresholdToNewItems() throws Exception {
+
+        // Given
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(1024, null);
+        fileItemFactory.setAdaptiveThreshold(new AdaptiveThreshold(1024, 64, 1024 * 1024));
+        for (int i = 0; i < AdaptiveThreshold.DEFAULT_MIN_SAMPLES; i++) {
+            createItem(fileItemFactory, Random.bytes(5000)).delete();
+        }
+
+        // When
+        FileItem item = createItem(fileItemFactory, Random.bytes(5000));
+
+        // Then
+        assertTrue(item.isInMemory());
+        assertEquals(AdaptiveThreshold.DEFAULT_MIN_SAMPLES + 1, fileItemFactory.getAdaptiveThreshold().getSampleCount());
+    }
+
+    private void record(AdaptiveThreshold adaptiveThreshold, String fieldName, long size, int count) {
+        for (int i = 0; i < count; i++) {
+            adaptiveThreshold.record("application/octet-stream", fieldName, size);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that items in memory borrow their buffers from a
+ * {@link BufferArena} and return them when deleted or spilled to disk.
+ */
+public class BufferArenaTest {
+
+    private BufferArena arena;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        arena = new BufferArena(64, 8);
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+        fileItemFactory.setBufferArena(arena);
+    }
+
+    @Test
+    public void shouldReuseChunksOfDeletedItems() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(200);
+        FileItem first = createItem(fileItemFactory, data);
+        long allocated = arena.getAllocationCount();
+        first.delete();
+
+        // When
+        FileItem second = createItem(fileItemFactory, data);
+
+        // Then
+        assertEquals(4, allocated);
+        assertEquals(allocated, arena.getAllocationCount());
+        assertEquals(4, arena.getReuseCount());
+        assertArrayEquals(data, second.get());
+        assertEquals(data.length, second.getSize());
+    }
+
+    @Test
+    public void shouldNotReuseChunksOfDeletedItemBeingRead() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(200);
+        FileItem first = createItem(fileItemFactory, data);
+        InputStream in = first.getInputStream();
+        byte[] start = new byte[10];
+        assertEquals(start.length, in.read(start));
+        first.delete();
+
+        // When
+        FileItem second = createItem(fileItemFactory, Random.bytes(200));
+
+        // Then
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        read.write(start);
+        IOUtils.copy(in, read);
+        assertArrayEquals(data, read.toByteArray());
+        assertEquals(0, arena.getReuseCount());
+        assertEquals(4, arena.getInUseCount());
+        second.delete();
+    }
+
+    @Test
+    public void shouldReuseChunksOfDeletedItemOnceRead() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(200);
+        FileItem first = createItem(fileItemFactory, data);
+        InputStream in = first.getInputStream();
+        assertEquals(10, in.read(new byte[10]));
+        first.delete();
+
+        // When
+        in.close();
+        FileItem second = createItem(fileItemFactory, data);
+
+        // Then
+        assertEquals(4, arena.getReuseCount());
+        assertEquals(4, arena.getInUseCount());
+        assertArrayEquals(data, second.get());
+        second.delete();
+    }
+
+    @Test
+    public void shouldReuseChunksOfItemReadToTheEnd() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(200);
+        FileItem first = createItem(fileItemFactory, data);
+        assertArrayEquals(data, IOUtils.toByteArray(first.getInputStream()));
+
+        // When
+        first.delete();
+        FileItem second = createItem(fileItemFactory, data);
+
+        // Then
+        assertEquals(4, arena.getReuseCount());
+        assertEquals(4, arena.getInUseCount());
+        second.delete();
+    }
+
+    @Test
+    public void shouldReturnChunksOfCollectedStream() throws Exception {
+
+        // Given
+        FileItem item = createItem(fileItemFactory, Random.bytes(200));
+        InputStream in = item.getInputStream();
+        assertEquals(10, in.read(new byte[10]));
+        item.delete();
+
+        // When
+        in = null;
+        for (int i = 0; i < 100 && arena.getInUseCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        // Then
+        assertEquals(0, arena.getInUseCount());
+        assertEquals(4, arena.getFreeCount());
+    }
+
+    @Test
+    public void shouldReturnChunksOnSpill() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(2000);
+
+        // When
+        FileItem item = createItem(fileItemFactory, data);
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertEquals(arena.getAllocationCount(), arena.getFreeCount());
+        assertArrayEquals(data, item.get());
+        item.delete();
+    }
+
+    @Test
+    public void shouldDiscardChunksBeyondLimit() throws Exception {
+
+        // Given
+        FileItem item = createItem(fileItemFactory, Random.bytes(640));
+
+        // When
+        item.delete();
+
+        // Then
+        assertEquals(arena.getMaxFree(), arena.getFreeCount());
+        assertEquals(2, arena.getDiscardCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotChangeArenaAfterWriting() throws Exception {
+
+        // Given
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(1);
+
+        // When
+        ((EncryptedDeferredOutputStream) item.getOutputStream()).setBufferArena(new BufferArena());
+
+        // Then
+        // An exception should have been thrown.
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.multipart;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that digests of items are computed as they are written.
+ */
+public class DigestTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(100, null);
+        fileItemFactory.setDigestAlgorithms("SHA-256", "CRC32C");
+    }
+
+    @Test
+    public void shouldComputeCrc32c() throws Exception {
+
+        // Given
+        MessageDigest crc32c = EncryptedDeferredOutputStream.newDigest("CRC32C");
+
+        // When
+        byte[] digest = crc32c.digest("123456789".getBytes("US-ASCII"));
+
+        // Then
+        assertArrayEquals(new byte[]{(byte) 0xE3, 0x06, (byte) 0x92, (byte) 0x83}, digest);
+    }
+
+    @Test
+    public void shouldDigestItemInMemory() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(50);
+
+        // When
+        EncryptedFileItem item = (EncryptedFileItem) createItem("file", false, data);
+
+        // Then
+        assertTrue(item.isInMemory());
+        assertArrayEquals(digest("SHA-256", data), item.getDigest("SHA-256"));
+        assertArrayEquals(digest("CRC32C", data), item.getDigest("crc32c"));
+        item.delete();
+    }
+
+    @Test
+    public void shouldDigestItemOnDisk() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(10000);
+
+        // When
+        EncryptedFileItem item = (EncryptedFileItem) createItem("file", false, data);
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertArrayEquals(digest("SHA-256", data), item.getDigest("SHA-256"));
+        assertArrayEquals(digest("CRC32C", data), item.getDigest("CRC32C"));
+        item.delete();
+    }
+
+    @Test
+    public void shouldDigestFormFields() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        byte[] small = Random.bytes(20);
+        byte[] large = Random.bytes(300);
+
+        // When
+        FormFieldItem field = (FormFieldItem) createItem("field", true, small);
+        FormFieldItem grown = (FormFieldItem) createItem("field", true, large);
+
+        // Then
+        assertArrayEquals(digest("SHA-256", small), field.getDigest("SHA-256"));
+        assertArrayEquals(digest("SHA-256", large), grown.getDigest("SHA-256"));
+        assertArrayEquals(digest("CRC32C", large), grown.getDigest("CRC32C"));
+        field.delete();
+        grown.delete();
+    }
+
+    @Test
+    public void shouldDigestUpload() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(5000);
+        ServletFileUpload upload = new ServletFileUpload(fileItemFactory);
+
+        // When
+        List<FileItem> items = upload.parseRequest(new MockHttpServletRequest(multipart(data), FileUploadTestCase.CONTENT_TYPE));
+
+        // Then
+        EncryptedFileItem item = (EncryptedFileItem) items.get(0);
+        assertArrayEquals(digest("SHA-256", data), item.getDigest("SHA-256"));
+        item.delete();
+    }
+
+    @Test
+    public void shouldNotDigestUnlessConfigured() throws Exception {
+
+        // Given
+        EncryptedFileItem item = (EncryptedFileItem) createItem("file", false, Random.bytes(500));
+
+        // When
+        byte[] digest = item.getDigest("MD5");
+
+        // Then
+        assertNull(digest);
+        item.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownAlgorithm() {
+
+        // When
+        fileItemFactory.setDigestAlgorithms("SHA-256", "NOT-A-DIGEST");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotDigestOpenItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = (EncryptedFileItem) fileItemFactory.createItem("file", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(Random.bytes(500));
+
+        // When
+        item.getDigest("SHA-256");
+    }
+
+    private FileItem createItem(String fieldName, boolean isFormField, byte[] data) throws Exception {
+        FileItem item = fileItemFactory.createItem(fieldName, "application/octet-stream", isFormField, isFormField ? null : "test.bin");
+        OutputStream out = item.getOutputStream();
+        // Mix single-byte and block writes:
+        out.write(data[0]);
+        out.write(data, 1, data.length / 2);
+        out.write(data, 1 + data.length / 2, data.length - 1 - data.length / 2);
+        out.close();
+        return item;
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) {
+        return EncryptedDeferredOutputStream.newDigest(algorithm).digest(data);
+    }
+}
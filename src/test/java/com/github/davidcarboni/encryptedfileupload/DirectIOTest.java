@@ -0,0 +1,112 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Crypto;
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that {@link DirectIO} streams round-trip data of any length,
+ * whether or not the JVM and filesystem support direct I/O.
+ */
+public class DirectIOTest {
+
+    @Test
+    public void shouldRoundTripUnalignedLength() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(DirectIO.BUFFER_SIZE + DirectIO.DEFAULT_BLOCK_SIZE + 123);
+        File file = EncryptedFileItem.newTempFile(null);
+
+        try {
+            // When
+            OutputStream output = DirectIO.newOutputStream(file);
+            output.write(data, 0, 100);
+            output.write(data[100]);
+            output.write(data, 101, data.length - 101);
+            output.close();
+            InputStream input = DirectIO.newInputStream(file);
+            byte[] read;
+            try {
+                read = IOUtils.toByteArray(input);
+            } finally {
+                input.close();
+            }
+
+            // Then
+            assertEquals(data.length, file.length());
+            assertArrayEquals(data, read);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldSpillWithDirectIO() throws Exception {
+
+        // Given
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory();
+        fileItemFactory.setDirectIO(true);
+        fileItemFactory.setDirectIOMinSize(0);
+        byte[] data = Random.bytes(3 * DirectIO.DEFAULT_BLOCK_SIZE + 7);
+
+        // When
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+
+        // Then
+        try {
+            assertFalse(item.isInMemory());
+            assertTrue(((EncryptedDeferredOutputStream) item.getOutputStream()).isStoredDirect());
+            File file = ((EncryptedFileItem) item).getStoreLocation();
+            assertEquals(data.length + new Crypto().getIvSize(), file.length());
+            assertArrayEquals(data, item.get());
+        } finally {
+            item.delete();
+        }
+    }
+
+    @Test
+    public void shouldUsePageCacheForSmallFiles() throws Exception {
+
+        // Given
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(100, null);
+        fileItemFactory.setDirectIO(true);
+        fileItemFactory.setDirectIOMinSize(1000);
+        byte[] data = Random.bytes(500);
+
+        // When
+        FileItem small = createItem(fileItemFactory, data, 0);
+        FileItem declared = createItem(fileItemFactory, data, 5000);
+
+        // Then
+        try {
+            assertFalse(((EncryptedDeferredOutputStream) small.getOutputStream()).isStoredDirect());
+            assertTrue(((EncryptedDeferredOutputStream) declared.getOutputStream()).isStoredDirect());
+            assertArrayEquals(data, small.get());
+            assertArrayEquals(data, declared.get());
+        } finally {
+            small.delete();
+            declared.delete();
+        }
+    }
+
+    private FileItem createItem(EncryptedFileItemFactory fileItemFactory, byte[] data, long declaredSize) throws Exception {
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        if (declaredSize > 0) {
+            ((EncryptedDeferredOutputStream) item.getOutputStream()).setSizeHint(declaredSize);
+        }
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+        return item;
+    }
+}
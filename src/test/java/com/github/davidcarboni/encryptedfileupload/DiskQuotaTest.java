@@ -0,0 +1,164 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static com.github.davidcarboni.encryptedfileupload.TestItems.multipart;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that a disk quota bounds the bytes items hold on disk.
+ */
+public class DiskQuotaTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private File overflow;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(100, null);
+        overflow = new File(System.getProperty("java.io.tmpdir"), "diskquotatest");
+        overflow.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(overflow);
+    }
+
+    @Test
+    public void shouldTrackBytesOnDisk() throws Exception {
+
+        // Given
+        DiskQuota diskQuota = new DiskQuota(10000, DiskQuota.Policy.REJECT);
+        fileItemFactory.setDiskQuota(diskQuota);
+
+        // When
+        EncryptedFileItem small = createItem(fileItemFactory, Random.bytes(50));
+        EncryptedFileItem large = createItem(fileItemFactory, Random.bytes(500));
+
+        // Then
+        assertEquals(500, diskQuota.getUsedBytes());
+        large.delete();
+        small.delete();
+        assertEquals(0, diskQuota.getUsedBytes());
+        assertEquals(500, diskQuota.getPeakBytes());
+    }
+
+    @Test
+    public void shouldRejectUploadOverQuota() throws Exception {
+
+        // Given
+        DiskQuota diskQuota = new DiskQuota(1000, DiskQuota.Policy.REJECT);
+        fileItemFactory.setDiskQuota(diskQuota);
+        EncryptedFileItem existing = createItem(fileItemFactory, Random.bytes(800));
+        ServletFileUpload upload = new ServletFileUpload(fileItemFactory);
+
+        // When
+        try {
+            upload.parseRequest(new MockHttpServletRequest(multipart(Random.bytes(500)), FileUploadTestCase.CONTENT_TYPE));
+            fail("Upload should have been rejected");
+        } catch (DiskQuotaExceededException e) {
+
+            // Then
+            assertEquals(1000, e.getMaxBytes());
+        }
+        assertEquals(800, diskQuota.getUsedBytes());
+        assertEquals(1, diskQuota.getRefusalCount());
+        existing.delete();
+    }
+
+    @Test
+    public void shouldSurfaceRejectionFromOutputStream() throws Exception {
+
+        // Given
+        fileItemFactory.setDiskQuota(new DiskQuota(100, DiskQuota.Policy.REJECT));
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        OutputStream out = item.getOutputStream();
+
+        // When
+        try {
+            out.write(Random.bytes(500));
+            fail("Write should have been rejected");
+        } catch (FileUploadBase.FileUploadIOException e) {
+
+            // Then
+            assertTrue(e.getCause() instanceof DiskQuotaExceededException);
+        }
+        item.delete();
+    }
+
+    @Test
+    public void shouldBlockUntilSpaceIsFreed() throws Exception {
+
+        // Given
+        final DiskQuota diskQuota = new DiskQuota(1000, DiskQuota.Policy.BLOCK, 5000, null);
+        fileItemFactory.setDiskQuota(diskQuota);
+        final EncryptedFileItem existing = createItem(fileItemFactory, Random.bytes(800));
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Delete now
+                }
+                existing.delete();
+            }
+        }).start();
+
+        // When
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(500));
+
+        // Then
+        assertEquals(500, diskQuota.getUsedBytes());
+        assertEquals(1, diskQuota.getWaitCount());
+        item.delete();
+    }
+
+    @Test(expected = FileUploadBase.FileUploadIOException.class)
+    public void shouldRejectAfterBlockTimeout() throws Exception {
+
+        // Given
+        fileItemFactory.setDiskQuota(new DiskQuota(1000, DiskQuota.Policy.BLOCK, 50, null));
+        createItem(fileItemFactory, Random.bytes(800));
+
+        // When
+        createItem(fileItemFactory, Random.bytes(500));
+
+        // Then
+        // An exception should have been thrown.
+    }
+
+    @Test
+    public void shouldRedirectToOverflowRepository() throws Exception {
+
+        // Given
+        DiskQuota diskQuota = new DiskQuota(1000, DiskQuota.Policy.REDIRECT, 0, overflow);
+        fileItemFactory.setDiskQuota(diskQuota);
+        EncryptedFileItem existing = createItem(fileItemFactory, Random.bytes(800));
+
+        // When
+        byte[] data = Random.bytes(500);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // Then
+        assertEquals(overflow, item.getStoreLocation().getParentFile());
+        assertArrayEquals(data, item.get());
+        assertEquals(800, diskQuota.getUsedBytes());
+        assertEquals(1, diskQuota.getRedirectCount());
+        item.delete();
+        existing.delete();
+        assertEquals(0, diskQuota.getUsedBytes());
+    }
+}
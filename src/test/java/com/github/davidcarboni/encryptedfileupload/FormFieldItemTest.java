@@ -0,0 +1,131 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that plain form fields are held by a compact
+ * {@link FormFieldItem}, which falls back to an encrypted item when a field
+ * grows beyond the threshold.
+ */
+public class FormFieldItemTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+        fileItemFactory.setCompactFormFields(true);
+    }
+
+    @Test
+    public void shouldHoldSmallFieldInOneArray() throws Exception {
+
+        // Given
+        byte[] data = "value".getBytes("UTF-8");
+
+        // When
+        FileItem item = createField(data);
+
+        // Then
+        assertTrue(item instanceof FormFieldItem);
+        assertTrue(item.isInMemory());
+        assertNull(item.getName());
+        assertEquals(data.length, item.getSize());
+        assertSame(item.get(), item.get());
+        assertArrayEquals(data, item.get());
+        assertEquals("value", item.getString());
+        assertSame(item.getString(), item.getString());
+    }
+
+    @Test
+    public void shouldFallBackToEncryptedItemBeyondThreshold() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(fileItemFactory.getSizeThreshold() + 1);
+
+        // When
+        FileItem item = createField(data);
+
+        // Then
+        EncryptedFileItem delegate = ((FormFieldItem) item).getDelegate();
+        assertNotNull(delegate);
+        assertFalse(item.isInMemory());
+        assertEquals(data.length, item.getSize());
+        assertArrayEquals(data, item.get());
+        byte[] stored = FileUtils.readFileToByteArray(delegate.getStoreLocation());
+        assertFalse(ArrayUtils.isEquals(data, stored));
+        item.delete();
+        assertFalse(delegate.getStoreLocation().exists());
+    }
+
+    @Test
+    public void shouldFallBackWhenMemoryBudgetIsInUse() throws Exception {
+
+        // Given
+        MemoryBudget memoryBudget = new MemoryBudget(10);
+        fileItemFactory.setMemoryBudget(memoryBudget);
+        byte[] data = Random.bytes(20);
+
+        // When
+        FileItem item = createField(data);
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertArrayEquals(data, item.get());
+        assertEquals(0, memoryBudget.getUsedBytes());
+        item.delete();
+    }
+
+    @Test
+    public void shouldCreateEncryptedItemsWhenDisabled() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(false);
+
+        // When
+        FileItem item = createField("value".getBytes("UTF-8"));
+
+        // Then
+        assertTrue(item instanceof EncryptedFileItem);
+        assertEquals("value", item.getString());
+    }
+
+    @Test
+    public void shouldCreateEncryptedItemsByDefault() throws Exception {
+
+        // Given
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+
+        // When
+        FileItem item = createField("value".getBytes("UTF-8"));
+
+        // Then
+        assertFalse(fileItemFactory.isCompactFormFields());
+        assertTrue(item instanceof EncryptedFileItem);
+    }
+
+    @Test
+    public void shouldCreateEncryptedItemsForFiles() throws Exception {
+
+        // When
+        FileItem item = fileItemFactory.createItem("field", "text/plain", true, "file.txt");
+
+        // Then
+        assertTrue(item instanceof EncryptedFileItem);
+    }
+
+    private FileItem createField(byte[] data) throws Exception {
+        FileItem item = fileItemFactory.createItem("field", "text/plain; charset=UTF-8", true, null);
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+        return item;
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that {@link EncryptedFileItemFactory} forces data to disk
+ * according to its {@link Durability} policy.
+ */
+public class GroupCommitTest {
+
+    private GroupCommit groupCommit;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        groupCommit = new GroupCommit(60000);
+        fileItemFactory = new EncryptedFileItemFactory();
+        fileItemFactory.setGroupCommit(groupCommit);
+    }
+
+    @After
+    public void tearDown() {
+        groupCommit.close();
+    }
+
+    @Test
+    public void shouldBatchConcurrentCommits() throws Exception {
+
+        // Given
+        fileItemFactory.setDurability(Durability.ON_CLOSE);
+        final byte[] data = Random.bytes(fileItemFactory.getSizeThreshold() + 1);
+        int count = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        List<Future<FileItem>> futures = new ArrayList<Future<FileItem>>();
+
+        // When
+        try {
+            for (int i = 0; i < count; i++) {
+                futures.add(executor.submit(new Callable<FileItem>() {
+                    public FileItem call() throws Exception {
+                        return createItem(fileItemFactory, data);
+                    }
+                }));
+            }
+            for (Future<FileItem> future : futures) {
+                future.get().delete();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Then
+        assertEquals(count, groupCommit.getRequestCount());
+        assertTrue(groupCommit.getBatchCount() <= count);
+        assertEquals(count, groupCommit.getForceCount());
+        // All the files share the temporary directory:
+        assertEquals(groupCommit.getBatchCount(), groupCommit.getDirectoryForceCount());
+    }
+
+    @Test
+    public void shouldForceScheduledFilesOnClose() throws Exception {
+
+        // Given
+        fileItemFactory.setDurability(Durability.PERIODIC);
+        FileItem item = createItem(fileItemFactory, Random.bytes(fileItemFactory.getSizeThreshold() + 1));
+        assertEquals(1, groupCommit.getScheduledCount());
+
+        // When
+        groupCommit.close();
+
+        // Then
+        assertEquals(0, groupCommit.getScheduledCount());
+        assertEquals(1, groupCommit.getForceCount());
+        assertEquals(1, groupCommit.getDirectoryForceCount());
+        item.delete();
+    }
+
+    @Test
+    public void shouldNotForceItemsInMemory() throws Exception {
+
+        // Given
+        fileItemFactory.setDurability(Durability.ON_CLOSE);
+
+        // When
+        createItem(fileItemFactory, Random.bytes(10));
+
+        // Then
+        assertEquals(0, groupCommit.getRequestCount());
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.List;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that the contents of items in memory can be read without
+ * copying them.
+ */
+public class InMemoryViewTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+        fileItemFactory.setBufferArena(new BufferArena(64, 16));
+    }
+
+    @Test
+    public void shouldExposeChunksAsReadOnlyBuffers() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(150);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // When
+        List<ByteBuffer> buffers = item.getBuffers();
+
+        // Then
+        assertEquals(3, buffers.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            assertTrue(buffer.isReadOnly());
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            out.write(chunk);
+        }
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void shouldNotAllowWritesThroughBuffers() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(10));
+
+        // When
+        item.getBuffers().get(0).put(0, (byte) 1);
+
+        // Then
+        // An exception should have been thrown.
+    }
+
+    @Test
+    public void shouldStreamFromChunks() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(150);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // When
+        byte[] read = IOUtils.toByteArray(item.getInputStream());
+
+        // Then
+        assertArrayEquals(data, read);
+        assertEquals(data.length, item.getSize());
+    }
+
+    @Test
+    public void shouldNotExposeBuffersOnDisk() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(2000));
+
+        // When
+        List<ByteBuffer> buffers = item.getBuffers();
+
+        // Then
+        assertNull(buffers);
+        item.delete();
+    }
+
+    @Test
+    public void shouldKeepReadingStreamOfDeletedItem() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(300);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+        List<ByteBuffer> buffers = item.getBuffers();
+        InputStream in = item.getInputStream();
+
+        // When
+        item.delete();
+        createItem(fileItemFactory, Random.bytes(300)).delete();
+
+        // Then
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        ByteArrayOutputStream viewed = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            viewed.write(bytes);
+        }
+        assertArrayEquals(data, viewed.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotStreamDeletedItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(10));
+        item.delete();
+
+        // When
+        item.getInputStream();
+
+        // Then
+        // An exception should have been thrown.
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that the storage of items which are not deleted is
+ * released once they are garbage collected.
+ */
+public class ItemCleanerTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private ItemCleaner itemCleaner;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(10, null);
+        itemCleaner = new ItemCleaner(1);
+        fileItemFactory.setItemCleaner(itemCleaner);
+    }
+
+    @After
+    public void tearDown() {
+        itemCleaner.close();
+    }
+
+    @Test
+    public void shouldDeleteFileOfCollectedItem() throws Exception {
+
+        // Given
+        File file = createItem(fileItemFactory, Random.bytes(100)).getStoreLocation();
+        assertTrue(file.exists());
+
+        // When
+        awaitCleanup(1);
+
+        // Then
+        assertFalse(file.exists());
+        assertEquals(0, itemCleaner.getPendingCount());
+    }
+
+    @Test
+    public void shouldAbandonMemoryOfCollectedItem() throws Exception {
+
+        // Given
+        BufferArena bufferArena = new BufferArena(64, 16);
+        fileItemFactory.setBufferArena(bufferArena);
+        fileItemFactory.setSizeThreshold(1000);
+        createItem(fileItemFactory, Random.bytes(100));
+
+        // When
+        awaitCleanup(1);
+
+        // Then
+        assertEquals(0, bufferArena.getInUseCount());
+        assertEquals(2, bufferArena.getLeakCount());
+    }
+
+    @Test
+    public void shouldNotCleanItemWhileStreamIsOpen() throws Exception {
+
+        // Given
+        TempFilePool pool = new TempFilePool(null, 2);
+        fileItemFactory.setTempFilePool(pool);
+        byte[] data = Random.bytes(1000);
+        InputStream in = createItem(fileItemFactory, data).getInputStream();
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        // Then
+        assertEquals(0, itemCleaner.getCleanedCount());
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        in.close();
+        in = null;
+        awaitCleanup(1);
+        pool.close();
+    }
+
+    @Test
+    public void shouldStopWatchingDeletedItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        File file = item.getStoreLocation();
+        assertEquals(1, itemCleaner.getPendingCount());
+
+        // When
+        item.delete();
+
+        // Then
+        assertFalse(file.exists());
+        assertEquals(0, itemCleaner.getPendingCount());
+        assertEquals(1, itemCleaner.getDeletedCount());
+    }
+
+    private void awaitCleanup(long count) throws InterruptedException {
+        for (int i = 0; i < 100 && itemCleaner.getCleanedCount() < count; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(count, itemCleaner.getCleanedCount());
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that items kept on disk beyond their lifetime are
+ * reclaimed.
+ */
+public class ItemExpiryTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private ItemExpiry itemExpiry;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(100, null);
+        itemExpiry = new ItemExpiry(50);
+        fileItemFactory.setItemExpiry(itemExpiry);
+    }
+
+    @After
+    public void tearDown() {
+        itemExpiry.close();
+    }
+
+    @Test
+    public void shouldReclaimExpiredItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(500));
+        File file = item.getStoreLocation();
+
+        // When
+        awaitExpired(1);
+
+        // Then
+        assertFalse(file.exists());
+        assertEquals(500, itemExpiry.getExpiredBytes());
+        assertNull(item.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailReadOfExpiredItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(500));
+        awaitExpired(1);
+
+        // When
+        item.getInputStream();
+
+        // Then
+        // An exception should have been thrown.
+    }
+
+    @Test
+    public void shouldNotExpireDeletedItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(500));
+        assertEquals(1, itemExpiry.getPendingCount());
+
+        // When
+        item.delete();
+
+        // Then
+        assertEquals(0, itemExpiry.getPendingCount());
+        Thread.sleep(100);
+        assertEquals(0, itemExpiry.getExpiredCount());
+    }
+
+    @Test
+    public void shouldNotExpireItemInMemory() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(50);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // When
+        Thread.sleep(100);
+
+        // Then
+        assertEquals(0, itemExpiry.getPendingCount());
+        assertArrayEquals(data, item.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotServeExpiredItemFromCache() throws Exception {
+
+        // Given
+        fileItemFactory.setPlaintextCache(new PlaintextCache(10000));
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(500));
+        item.get();
+        awaitExpired(1);
+
+        // When
+        item.getInputStream();
+
+        // Then
+        // An exception should have been thrown.
+    }
+
+    private void awaitExpired(long count) throws InterruptedException {
+        for (int i = 0; i < 100 && itemExpiry.getExpiredCount() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, itemExpiry.getExpiredCount());
+    }
+}
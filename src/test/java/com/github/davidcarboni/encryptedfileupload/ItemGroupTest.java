@@ -0,0 +1,108 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that closing an item group deletes all of its items.
+ */
+public class ItemGroupTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private BufferArena bufferArena;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(100, null);
+        bufferArena = new BufferArena(64, 16);
+        fileItemFactory.setBufferArena(bufferArena);
+    }
+
+    @Test
+    public void shouldDeleteAllItemsOnClose() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        ItemGroup group = fileItemFactory.newItemGroup();
+        EncryptedFileItem small = (EncryptedFileItem) createItem(group, "test.bin", Random.bytes(50));
+        EncryptedFileItem large = (EncryptedFileItem) createItem(group, "test.bin", Random.bytes(500));
+        FormFieldItem field = (FormFieldItem) createItem(group, null, "value".getBytes("UTF-8"));
+        File file = large.getStoreLocation();
+        assertTrue(file.exists());
+
+        // When
+        group.close();
+
+        // Then
+        assertTrue(group.isClosed());
+        assertTrue(group.getItems().isEmpty());
+        assertFalse(file.exists());
+        assertNull(small.getBuffers());
+        assertEquals(0, field.get().length);
+        assertEquals(0, bufferArena.getInUseCount());
+    }
+
+    @Test
+    public void shouldBatchUnlinksThroughReaper() throws Exception {
+
+        // Given
+        TempFileReaper tempFileReaper = new TempFileReaper(1, 64);
+        fileItemFactory.setTempFileReaper(tempFileReaper);
+        ItemGroup group = fileItemFactory.newItemGroup();
+        for (int i = 0; i < 10; i++) {
+            createItem(group, "test.bin", Random.bytes(500));
+        }
+
+        // When
+        group.close();
+        tempFileReaper.close(1000);
+
+        // Then
+        assertEquals(10, tempFileReaper.getDeletedCount());
+        assertEquals(1, tempFileReaper.getBatchCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotReadAfterClose() throws Exception {
+
+        // Given
+        ItemGroup group = fileItemFactory.newItemGroup();
+        FileItem item = createItem(group, "test.bin", Random.bytes(500));
+        group.close();
+
+        // When
+        item.getInputStream();
+
+        // Then
+        // An exception should have been thrown.
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotCreateItemsAfterClose() throws Exception {
+
+        // Given
+        ItemGroup group = fileItemFactory.newItemGroup();
+        group.close();
+
+        // When
+        group.createItem("test", "application/octet-stream", false, "test.bin");
+
+        // Then
+        // An exception should have been thrown.
+    }
+
+    private FileItem createItem(ItemGroup group, String fileName, byte[] data) throws Exception {
+        FileItem item = group.createItem("test", "application/octet-stream", fileName == null, fileName);
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+        return item;
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that the item registry counts live items and their bytes
+ * in memory and on disk.
+ */
+public class ItemRegistryTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private ItemRegistry itemRegistry;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(100, null);
+        itemRegistry = fileItemFactory.getItemRegistry();
+    }
+
+    @Test
+    public void shouldCountItemsPerTier() throws Exception {
+
+        // Given
+        FileItem small = createItem("file", false, Random.bytes(50));
+        FileItem large = createItem("file", false, Random.bytes(500));
+
+        // When
+        long inMemoryCount = itemRegistry.getInMemoryCount();
+        long inMemoryBytes = itemRegistry.getInMemoryBytes();
+        long onDiskCount = itemRegistry.getOnDiskCount();
+        long onDiskBytes = itemRegistry.getOnDiskBytes();
+
+        // Then
+        assertEquals(1, inMemoryCount);
+        assertEquals(50, inMemoryBytes);
+        assertEquals(1, onDiskCount);
+        assertEquals(500, onDiskBytes);
+        assertEquals(2, itemRegistry.getCount());
+        assertEquals(550, itemRegistry.getBytes());
+        small.delete();
+        large.delete();
+    }
+
+    @Test
+    public void shouldStopCountingDeletedItems() throws Exception {
+
+        // Given
+        FileItem small = createItem("file", false, Random.bytes(50));
+        FileItem large = createItem("file", false, Random.bytes(500));
+
+        // When
+        small.delete();
+        large.delete();
+
+        // Then
+        assertEquals(0, itemRegistry.getCount());
+        assertEquals(0, itemRegistry.getBytes());
+        assertEquals(0, itemRegistry.getOldestItemAge());
+        assertNull(itemRegistry.getLargestItem());
+    }
+
+    @Test
+    public void shouldCountFormFieldOnce() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        fileItemFactory.setMemoryBudget(new MemoryBudget(1000));
+        FileItem field = createItem("field", true, Random.bytes(20));
+        FileItem grown = createItem("field", true, Random.bytes(300));
+
+        // When
+        long count = itemRegistry.getCount();
+
+        // Then
+        assertEquals(2, count);
+        assertEquals(1, itemRegistry.getInMemoryCount());
+        assertEquals(20, itemRegistry.getInMemoryBytes());
+        assertEquals(300, itemRegistry.getOnDiskBytes());
+        field.delete();
+        grown.delete();
+        assertEquals(0, itemRegistry.getCount());
+    }
+
+    @Test
+    public void shouldNotCountFormFieldsWithoutBudget() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        FileItem field = createItem("field", true, Random.bytes(20));
+        FileItem grown = createItem("field", true, Random.bytes(300));
+
+        // When
+        long count = itemRegistry.getCount();
+
+        // Then
+        assertEquals(1, count);
+        assertEquals(0, itemRegistry.getInMemoryCount());
+        assertEquals(300, itemRegistry.getOnDiskBytes());
+        field.delete();
+        grown.delete();
+    }
+
+    @Test
+    public void shouldStopCountingCollectedFormFields() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        fileItemFactory.setMemoryBudget(new MemoryBudget(1000));
+        createItem("field", true, Random.bytes(20));
+
+        // When
+        for (int i = 0; i < 100 && itemRegistry.getCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        // Then
+        assertEquals(0, itemRegistry.getCount());
+        assertEquals(0, itemRegistry.getInMemoryBytes());
+    }
+
+    @Test
+    public void shouldReportLargestAndOldestItems() throws Exception {
+
+        // Given
+        FileItem oldest = createItem("file", false, Random.bytes(10));
+        Thread.sleep(20);
+        FileItem largest = createItem("file", false, Random.bytes(1000));
+        FileItem other = createItem("file", false, Random.bytes(200));
+
+        // When
+        FileItem item = itemRegistry.getLargestItem();
+
+        // Then
+        assertSame(largest, item);
+        assertEquals(1000, itemRegistry.getLargestItemBytes());
+        assertTrue(itemRegistry.getOldestItemAge() >= 20);
+        oldest.delete();
+        largest.delete();
+        other.delete();
+    }
+
+    @Test
+    public void shouldStopCountingCollectedItems() throws Exception {
+
+        // Given
+        createItem("file", false, Random.bytes(50));
+        createItem("file", false, Random.bytes(500));
+
+        // When
+        for (int i = 0; i < 100 && itemRegistry.getCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        // Then
+        assertEquals(0, itemRegistry.getCount());
+        assertEquals(0, itemRegistry.getBytes());
+    }
+
+    @Test
+    public void shouldCountConcurrentUploads() throws Exception {
+
+        // Given
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<FileItem>> futures = new ArrayList<Future<FileItem>>();
+
+        // When
+        for (int i = 0; i < 200; i++) {
+            final int size = i % 2 == 0 ? 50 : 150;
+            futures.add(executor.submit(new Callable<FileItem>() {
+                @Override
+                public FileItem call() throws Exception {
+                    return createItem("file", false, Random.bytes(size));
+                }
+            }));
+        }
+        List<FileItem> items = new ArrayList<FileItem>();
+        for (Future<FileItem> future : futures) {
+            items.add(future.get());
+        }
+        executor.shutdown();
+
+        // Then
+        assertEquals(100, itemRegistry.getInMemoryCount());
+        assertEquals(100 * 50, itemRegistry.getInMemoryBytes());
+        assertEquals(100, itemRegistry.getOnDiskCount());
+        assertEquals(100 * 150, itemRegistry.getOnDiskBytes());
+        for (FileItem item : items) {
+            item.delete();
+        }
+        assertEquals(0, itemRegistry.getCount());
+    }
+
+    private FileItem createItem(String fieldName, boolean isFormField, byte[] data) throws Exception {
+        FileItem item = fileItemFactory.createItem(fieldName, "application/octet-stream", isFormField, null);
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+        return item;
+    }
+}
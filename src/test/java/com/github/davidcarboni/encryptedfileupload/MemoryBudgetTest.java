@@ -0,0 +1,126 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that items of an {@link EncryptedFileItemFactory} are
+ * written to disk once its {@link MemoryBudget} is in use.
+ */
+public class MemoryBudgetTest {
+
+    private MemoryBudget memoryBudget;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        memoryBudget = new MemoryBudget(250);
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+        fileItemFactory.setMemoryBudget(memoryBudget);
+    }
+
+    @Test
+    public void shouldSpillNewItemsOnceBudgetIsInUse() throws Exception {
+
+        // Given
+        FileItem first = createItem(fileItemFactory, Random.bytes(100));
+        FileItem second = createItem(fileItemFactory, Random.bytes(100));
+        byte[] data = Random.bytes(100);
+
+        // When
+        FileItem third = createItem(fileItemFactory, data);
+
+        // Then
+        assertTrue(first.isInMemory());
+        assertTrue(second.isInMemory());
+        assertFalse(third.isInMemory());
+        assertArrayEquals(data, third.get());
+        assertEquals(200, memoryBudget.getUsedBytes());
+        assertEquals(1, memoryBudget.getRefusalCount());
+        third.delete();
+    }
+
+    @Test
+    public void shouldSpillGrowingItem() throws Exception {
+
+        // Given
+        createItem(fileItemFactory, Random.bytes(200));
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        byte[] data = Random.bytes(100);
+
+        // When
+        item.getOutputStream().write(data, 0, 40);
+        boolean inMemoryBefore = item.isInMemory();
+        item.getOutputStream().write(data, 40, 60);
+        item.getOutputStream().close();
+
+        // Then
+        assertTrue(inMemoryBefore);
+        assertFalse(item.isInMemory());
+        assertEquals(200, memoryBudget.getUsedBytes());
+        assertEquals(240, memoryBudget.getPeakBytes());
+        assertArrayEquals(data, item.get());
+        item.delete();
+    }
+
+    @Test
+    public void shouldReleaseBudgetOnDelete() throws Exception {
+
+        // Given
+        FileItem item = createItem(fileItemFactory, Random.bytes(200));
+
+        // When
+        item.delete();
+        FileItem next = createItem(fileItemFactory, Random.bytes(200));
+
+        // Then
+        assertTrue(next.isInMemory());
+        assertEquals(200, memoryBudget.getUsedBytes());
+    }
+
+    @Test
+    public void shouldReleaseBudgetOfCollectedFormField() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        FileItem field = fileItemFactory.createItem("field", "text/plain", true, null);
+        field.getOutputStream().write(Random.bytes(200));
+        field.getOutputStream().close();
+        assertEquals(200, memoryBudget.getUsedBytes());
+
+        // When
+        field = null;
+        for (int i = 0; i < 100 && memoryBudget.getUsedBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        // Then
+        assertEquals(0, memoryBudget.getUsedBytes());
+        assertEquals(0, fileItemFactory.getItemRegistry().getCount());
+        assertTrue(createItem(fileItemFactory, Random.bytes(200)).isInMemory());
+    }
+
+    @Test
+    public void shouldNotReserveItemsAboveThreshold() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(2000);
+
+        // When
+        FileItem item = createItem(fileItemFactory, data);
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertEquals(0, memoryBudget.getUsedBytes());
+        assertEquals(0, memoryBudget.getRefusalCount());
+        assertArrayEquals(data, item.get());
+        item.delete();
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that a {@link MemoryPressureMonitor} moves completed
+ * in-memory items to disk, largest first.
+ */
+public class MemoryPressureMonitorTest {
+
+    private MemoryPressureMonitor monitor;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        monitor = new MemoryPressureMonitor();
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+        fileItemFactory.setMemoryPressureMonitor(monitor);
+    }
+
+    @After
+    public void tearDown() {
+        monitor.close();
+    }
+
+    @Test
+    public void shouldDemoteLargestItemsFirst() throws Exception {
+
+        // Given
+        FileItem small = createItem(fileItemFactory, Random.bytes(100));
+        byte[] data = Random.bytes(500);
+        FileItem large = createItem(fileItemFactory, data);
+        FileItem medium = createItem(fileItemFactory, Random.bytes(300));
+
+        // When
+        long demoted = monitor.demote(600);
+
+        // Then
+        assertEquals(800, demoted);
+        assertTrue(small.isInMemory());
+        assertFalse(medium.isInMemory());
+        assertFalse(large.isInMemory());
+        assertArrayEquals(data, large.get());
+        assertArrayEquals(data, IOUtils.toByteArray(large.getInputStream()));
+        assertEquals(2, monitor.getDemotionCount());
+        assertEquals(1, monitor.getInMemoryCount());
+        medium.delete();
+        large.delete();
+    }
+
+    @Test
+    public void shouldRetryFailedDemotionWithFreshFile() throws Exception {
+
+        // Given
+        TempFileReaper reaper = new TempFileReaper();
+        fileItemFactory.setTempFileReaper(reaper);
+        byte[] data = Random.bytes(500);
+        EncryptedFileItem item = (EncryptedFileItem) createItem(fileItemFactory, data);
+        EncryptedDeferredOutputStream dfos = (EncryptedDeferredOutputStream) item.getOutputStream();
+        File blocked = dfos.getFile();
+        assertTrue(blocked.mkdir());
+
+        // When
+        try {
+            dfos.demote();
+            fail("Demoted onto a directory");
+        } catch (IOException e) {
+            // Expected
+        }
+        boolean demoted = dfos.demote();
+
+        // Then
+        assertFalse(blocked.exists());
+        assertTrue(demoted);
+        File file = dfos.getFile();
+        assertNotEquals(blocked, file);
+        assertArrayEquals(data, item.get());
+        item.delete();
+        reaper.close(10000);
+        assertFalse(file.exists());
+        assertEquals(1, reaper.getDeletedCount());
+    }
+
+    @Test
+    public void shouldNotDemoteIncompleteItems() throws Exception {
+
+        // Given
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(Random.bytes(100));
+
+        // When
+        long demoted = monitor.demote(Long.MAX_VALUE);
+
+        // Then
+        assertEquals(0, demoted);
+        assertTrue(item.isInMemory());
+    }
+
+    @Test
+    public void shouldReleaseMemoryOfDemotedItems() throws Exception {
+
+        // Given
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        BufferArena arena = new BufferArena(64, 16);
+        fileItemFactory.setMemoryBudget(memoryBudget);
+        fileItemFactory.setBufferArena(arena);
+        FileItem item = createItem(fileItemFactory, Random.bytes(200));
+        item.get();
+
+        // When
+        monitor.demote(1);
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertEquals(0, memoryBudget.getUsedBytes());
+        assertEquals(0, arena.getInUseCount());
+        assertEquals(0, arena.getFreeCount());
+        item.delete();
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that a {@link BufferArena} with an off-heap budget holds
+ * the contents of items in direct memory, within its budget.
+ */
+public class OffHeapArenaTest {
+
+    private BufferArena arena;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        arena = new BufferArena(64, 16, 256);
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+        fileItemFactory.setBufferArena(arena);
+    }
+
+    @Test
+    public void shouldHoldContentOffHeap() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(100);
+
+        // When
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // Then
+        for (ByteBuffer buffer : item.getBuffers()) {
+            assertTrue(buffer.isDirect());
+        }
+        assertEquals(128, arena.getOffHeapBytes());
+        assertEquals(2, arena.getInUseCount());
+        assertArrayEquals(data, IOUtils.toByteArray(item.getInputStream()));
+        assertArrayEquals(data, item.get());
+    }
+
+    @Test
+    public void shouldFallBackToHeapBeyondBudget() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(300);
+
+        // When
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // Then
+        assertEquals(arena.getOffHeapBudget(), arena.getOffHeapBytes());
+        assertEquals(1, arena.getHeapFallbackCount());
+        assertArrayEquals(data, item.get());
+    }
+
+    @Test
+    public void shouldReleaseOnDelete() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(300));
+
+        // When
+        item.delete();
+        createItem(fileItemFactory, Random.bytes(256));
+
+        // Then
+        assertEquals(1, arena.getDiscardCount());
+        assertEquals(4, arena.getReuseCount());
+        assertEquals(arena.getOffHeapBudget(), arena.getOffHeapBytes());
+        assertEquals(4, arena.getInUseCount());
+    }
+
+    @Test
+    public void shouldCountLeaks() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+
+        // When
+        ((EncryptedDeferredOutputStream) item.getOutputStream()).abandon();
+
+        // Then
+        assertEquals(2, arena.getLeakCount());
+        assertEquals(0, arena.getInUseCount());
+    }
+
+    @Test
+    public void shouldCountDroppedChunksUntilCollected() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        ByteBuffer view = item.getBuffers().get(0);
+
+        // When
+        item.delete();
+
+        // Then
+        assertEquals(0, arena.getInUseCount());
+        assertEquals(128, arena.getOutstandingBytes());
+        assertEquals(128, arena.getOffHeapBytes());
+        assertEquals(64, view.remaining());
+        view = null;
+        for (int i = 0; i < 100 && arena.getOutstandingBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(0, arena.getOutstandingBytes());
+        assertEquals(0, arena.getOffHeapBytes());
+    }
+
+    @Test
+    public void shouldSpillFromOffHeap() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(2000);
+
+        // When
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertEquals(0, arena.getInUseCount());
+        assertArrayEquals(data, item.get());
+        item.delete();
+    }
+}
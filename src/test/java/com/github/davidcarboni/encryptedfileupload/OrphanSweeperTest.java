@@ -0,0 +1,244 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that temporary files left by dead processes are swept,
+ * and those of live processes are not.
+ */
+public class OrphanSweeperTest {
+
+    private File repository;
+
+    @Before
+    public void setUp() {
+        repository = new File(System.getProperty("java.io.tmpdir"), "orphansweepertest");
+        repository.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(repository);
+    }
+
+    @Test
+    public void shouldDeleteFilesOfDeadProcess() throws Exception {
+
+        // Given
+        String uid = newUid();
+        File lockFile = createFile("upload_" + uid + ".lock", 0);
+        File first = createFile("upload_" + uid + "_00000000.tmp", 100);
+        File second = createFile("upload_" + uid + "_00000001.tmp", 50);
+        OrphanSweeper sweeper = new OrphanSweeper(repository);
+
+        // When
+        long reclaimed = sweeper.sweep();
+
+        // Then
+        assertEquals(150, reclaimed);
+        assertEquals(150, sweeper.getBytesReclaimed());
+        assertEquals(2, sweeper.getDeletedCount());
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+        assertFalse(lockFile.exists());
+    }
+
+    @Test
+    public void shouldKeepFilesOfLiveProcess() throws Exception {
+
+        // Given
+        String uid = newUid();
+        File lockFile = createFile("upload_" + uid + ".lock", 0);
+        File file = createFile("upload_" + uid + "_00000000.tmp", 100);
+        RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+        FileLock lock = raf.getChannel().lock();
+        OrphanSweeper sweeper = new OrphanSweeper(repository);
+
+        // When
+        long reclaimed;
+        try {
+            reclaimed = sweeper.sweep();
+        } finally {
+            lock.release();
+            IOUtils.closeQuietly(raf);
+        }
+
+        // Then
+        assertEquals(0, reclaimed);
+        assertTrue(file.exists());
+        assertTrue(lockFile.exists());
+    }
+
+    @Test
+    public void shouldKeepOwnFiles() throws Exception {
+
+        // Given
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(10, repository);
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(Random.bytes(100));
+        item.getOutputStream().close();
+        OrphanSweeper sweeper = new OrphanSweeper(repository, 1, 1000, 0);
+
+        // When
+        sweeper.sweep();
+
+        // Then
+        assertTrue(((EncryptedFileItem) item).getStoreLocation().exists());
+        assertEquals(100, item.get().length);
+        item.delete();
+    }
+
+    @Test
+    public void shouldClaimDirectoryWithoutSweeper() throws Exception {
+
+        // Given
+        File directory = new File(repository, newUid());
+        directory.mkdirs();
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(10, directory);
+        File lockFile = new File(directory, "upload_" + EncryptedFileItem.UID + ".lock");
+        assertFalse(lockFile.exists());
+
+        // When
+        FileItem item = fileItemFactory.createItem("file", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(Random.bytes(100));
+        item.getOutputStream().close();
+
+        // Then
+        // Opening the lock file here could release this process's lock
+        assertTrue(lockFile.exists());
+        item.delete();
+    }
+
+    @Test
+    public void shouldNotReleaseLockHeldByAnotherCopy() throws Exception {
+
+        // Given
+        ClassLoader other = new URLClassLoader(classPath(), null);
+        Class<?> sweeperClass = other.loadClass(OrphanSweeper.class.getName());
+        Method claim = sweeperClass.getDeclaredMethod("claim", File.class);
+        claim.setAccessible(true);
+        claim.invoke(null, repository);
+        Field uidField = other.loadClass(EncryptedFileItem.class.getName()).getDeclaredField("UID");
+        uidField.setAccessible(true);
+        String uid = (String) uidField.get(null);
+        File lockFile = new File(repository, "upload_" + uid + ".lock");
+        File file = createFile("upload_" + uid + "_00000000.tmp", 100);
+        OrphanSweeper sweeper = new OrphanSweeper(repository, 1, 1000, 0);
+
+        // When
+        sweeper.sweep();
+
+        // Then
+        assertTrue(file.exists());
+        assertTrue("Lock released", isLockedByAnotherProcess(lockFile));
+    }
+
+    @Test
+    public void shouldDeleteUnlockedFilesOnlyOnceOld() throws Exception {
+
+        // Given
+        String uid = newUid();
+        File young = createFile("upload_" + uid + "_00000000.tmp", 10);
+        File old = createFile("upload_" + uid + "_00000001.tmp", 10);
+        old.setLastModified(System.currentTimeMillis() - 2 * OrphanSweeper.DEFAULT_MIN_AGE);
+        OrphanSweeper sweeper = new OrphanSweeper(repository);
+
+        // When
+        sweeper.sweep();
+
+        // Then
+        assertTrue(young.exists());
+        assertFalse(old.exists());
+    }
+
+    @Test
+    public void shouldLimitDeletionRate() throws Exception {
+
+        // Given
+        String uid = newUid();
+        createFile("upload_" + uid + ".lock", 0);
+        for (int i = 0; i < 6; i++) {
+            createFile("upload_" + uid + "_0000000" + i + ".tmp", 1);
+        }
+        OrphanSweeper sweeper = new OrphanSweeper(repository, 3, 50, 0);
+
+        // When
+        long start = System.nanoTime();
+        sweeper.sweep();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        // Then
+        assertEquals(6, sweeper.getDeletedCount());
+        assertTrue("Took " + elapsed + "ms", elapsed >= 80);
+    }
+
+    @Test
+    public void shouldIgnoreOtherFiles() throws Exception {
+
+        // Given
+        File other = createFile("upload_notours.tmp", 10);
+        other.setLastModified(0);
+        OrphanSweeper sweeper = new OrphanSweeper(repository, 1, 1000, 0);
+
+        // When
+        sweeper.sweep();
+
+        // Then
+        assertTrue(other.exists());
+    }
+
+    /**
+     * Tries to lock a file, for {@link #isLockedByAnotherProcess(File)}.
+     *
+     * @param args The path of the file.
+     */
+    public static void main(String[] args) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(args[0], "rw");
+        System.exit(raf.getChannel().tryLock() == null ? 0 : 1);
+    }
+
+    private static boolean isLockedByAnotherProcess(File file) throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                OrphanSweeperTest.class.getName(), file.getPath()).inheritIO().start();
+        return process.waitFor() == 0;
+    }
+
+    private static URL[] classPath() throws Exception {
+        List<URL> urls = new ArrayList<URL>();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(new File(path).toURI().toURL());
+        }
+        return urls.toArray(new URL[urls.size()]);
+    }
+
+    private String newUid() {
+        return UUID.randomUUID().toString().replace('-', '_');
+    }
+
+    private File createFile(String name, int size) throws Exception {
+        File file = new File(repository, name);
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+        return file;
+    }
+}
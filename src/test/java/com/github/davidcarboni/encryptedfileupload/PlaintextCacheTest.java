@@ -0,0 +1,178 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that the decrypted contents of items on disk are cached
+ * between reads.
+ */
+public class PlaintextCacheTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private PlaintextCache plaintextCache;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(10, null);
+        plaintextCache = new PlaintextCache(1000, 500);
+        fileItemFactory.setPlaintextCache(plaintextCache);
+    }
+
+    @Test
+    public void shouldServeRepeatedReadsFromCache() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(100);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // When
+        byte[] first = item.get();
+        byte[] second = IOUtils.toByteArray(item.getInputStream());
+
+        // Then
+        assertArrayEquals(data, first);
+        assertArrayEquals(data, second);
+        assertEquals(1, plaintextCache.getMissCount());
+        assertEquals(1, plaintextCache.getHitCount());
+        assertEquals(100, plaintextCache.getBytes());
+        item.delete();
+    }
+
+    @Test
+    public void shouldNotShareCachedArray() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(100);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+        byte[] first = item.get();
+
+        // When
+        first[0]++;
+        byte[] second = item.get();
+
+        // Then
+        assertArrayEquals(data, second);
+        assertArrayEquals(data, IOUtils.toByteArray(item.getInputStream()));
+        assertEquals(2, plaintextCache.getHitCount());
+        item.delete();
+    }
+
+    @Test
+    public void shouldInvalidateOnDelete() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        item.get();
+
+        // When
+        item.delete();
+
+        // Then
+        assertEquals(0, plaintextCache.getEntryCount());
+        assertEquals(0, plaintextCache.getBytes());
+    }
+
+    @Test
+    public void shouldInvalidateOnExpiry() throws Exception {
+
+        // Given
+        ItemExpiry itemExpiry = new ItemExpiry(100);
+        fileItemFactory.setItemExpiry(itemExpiry);
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        item.get();
+        assertEquals(1, plaintextCache.getEntryCount());
+
+        // When
+        for (int i = 0; i < 100 && itemExpiry.getExpiredCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+
+        // Then
+        assertEquals(0, plaintextCache.getEntryCount());
+        assertNull(item.get());
+        assertEquals(0, plaintextCache.getEntryCount());
+        itemExpiry.close();
+    }
+
+    @Test
+    public void shouldInvalidateWhenCollected() throws Exception {
+
+        // Given
+        createItem(fileItemFactory, Random.bytes(100)).get();
+        assertEquals(1, plaintextCache.getEntryCount());
+
+        // When
+        for (int i = 0; i < 100 && plaintextCache.getEntryCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        // Then
+        assertEquals(0, plaintextCache.getEntryCount());
+        assertEquals(0, plaintextCache.getBytes());
+    }
+
+    @Test
+    public void shouldNotCacheLargeItems() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(600);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+
+        // When
+        byte[] read = item.get();
+
+        // Then
+        assertArrayEquals(data, read);
+        assertEquals(0, plaintextCache.getEntryCount());
+        item.delete();
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws Exception {
+
+        // Given
+        EncryptedFileItem first = createItem(fileItemFactory, Random.bytes(400));
+        EncryptedFileItem second = createItem(fileItemFactory, Random.bytes(400));
+        EncryptedFileItem third = createItem(fileItemFactory, Random.bytes(400));
+        first.get();
+        second.get();
+        first.get();
+
+        // When
+        third.get();
+
+        // Then
+        assertEquals(1, plaintextCache.getEvictionCount());
+        assertEquals(800, plaintextCache.getBytes());
+        second.get();
+        assertEquals(4, plaintextCache.getMissCount());
+        first.delete();
+        second.delete();
+        third.delete();
+    }
+
+    @Test
+    public void shouldDecodeStringFromCache() throws Exception {
+
+        // Given
+        String value = "The quick brown fox jumps over the lazy dog";
+        EncryptedFileItem item = createItem(fileItemFactory, value.getBytes("UTF-8"));
+        item.get();
+
+        // When
+        String read = item.getString("UTF-8");
+
+        // Then
+        assertEquals(value, read);
+        assertEquals(1, plaintextCache.getHitCount());
+        item.delete();
+    }
+}
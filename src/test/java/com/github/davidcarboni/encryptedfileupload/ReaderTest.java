@@ -0,0 +1,112 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Reader;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that item contents are decoded with the charset passed by
+ * the agent, as they are read.
+ */
+public class ReaderTest {
+
+    private static final String TEXT = "Grüße, 你好, 😀 ";
+
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(1000, null);
+    }
+
+    @Test
+    public void shouldDecodeSpilledItemAsItIsRead() throws Exception {
+
+        // Given
+        String text = repeat(TEXT, 200);
+        EncryptedFileItem item = createItem(text, "text/plain; charset=UTF-8");
+
+        // When
+        Reader reader = item.getReader();
+        String read;
+        try {
+            read = IOUtils.toString(reader);
+        } finally {
+            reader.close();
+        }
+
+        // Then
+        assertFalse(item.isInMemory());
+        assertEquals(text, read);
+        assertEquals(text, item.getString());
+        assertEquals(text, item.getString("UTF-8"));
+        item.delete();
+    }
+
+    @Test
+    public void shouldCacheStringOfSmallItem() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(TEXT, "text/plain; charset=UTF-8");
+
+        // When
+        String first = item.getString();
+        String second = item.getString();
+
+        // Then
+        assertEquals(TEXT, first);
+        assertSame(first, second);
+        assertEquals("UTF-8", item.getCharSet());
+        assertSame(item.getCharSet(), item.getCharSet());
+    }
+
+    @Test
+    public void shouldUseDefaultCharsetForUnknownCharset() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem("plain", "text/plain; charset=no-such-charset");
+
+        // When
+        String read = IOUtils.toString(item.getReader());
+
+        // Then
+        assertEquals("plain", read);
+    }
+
+    @Test
+    public void shouldReadFormField() throws Exception {
+
+        // Given
+        fileItemFactory.setCompactFormFields(true);
+        FileItem item = fileItemFactory.createItem("field", "text/plain; charset=UTF-8", true, null);
+        item.getOutputStream().write(TEXT.getBytes("UTF-8"));
+        item.getOutputStream().close();
+
+        // When
+        String read = IOUtils.toString(((FormFieldItem) item).getReader());
+
+        // Then
+        assertEquals(TEXT, read);
+    }
+
+    private EncryptedFileItem createItem(String text, String contentType) throws Exception {
+        FileItem item = fileItemFactory.createItem("test", contentType, false, "test.txt");
+        item.getOutputStream().write(text.getBytes("UTF-8"));
+        item.getOutputStream().close();
+        return (EncryptedFileItem) item;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            result.append(text);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that spilled items can be stored in a shared {@link SegmentStore}.
+ */
+public class SegmentStoreTest {
+
+    private SegmentStore store;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        // Small segments and chunks so that tests span several of each:
+        store = new SegmentStore(null, 4096, 1024, 0);
+        fileItemFactory = new EncryptedFileItemFactory(16, null);
+        fileItemFactory.setSegmentStore(store);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void shouldStoreItemsInSharedSegments() throws Exception {
+
+        // Given
+        byte[] first = Random.bytes(3000);
+        byte[] second = Random.bytes(3000);
+
+        // When
+        FileItem firstItem = createItem(fileItemFactory, first);
+        FileItem secondItem = createItem(fileItemFactory, second);
+
+        // Then
+        assertFalse(firstItem.isInMemory());
+        assertNull(((EncryptedFileItem) firstItem).getStoreLocation());
+        assertArrayEquals(first, firstItem.get());
+        assertArrayEquals(second, IOUtils.toByteArray(secondItem.getInputStream()));
+        assertEquals(2, store.getExtentCount());
+        assertTrue(store.getSegmentCount() > 1);
+    }
+
+    @Test
+    public void shouldDeleteSegmentsOnceAllExtentsAreDeleted() throws Exception {
+
+        // Given
+        FileItem firstItem = createItem(fileItemFactory, Random.bytes(5000));
+        FileItem secondItem = createItem(fileItemFactory, Random.bytes(5000));
+
+        // When
+        firstItem.delete();
+        secondItem.delete();
+
+        // Then
+        assertEquals(0, store.getExtentCount());
+        assertEquals(0, store.getLiveBytes());
+        // Only the active segment remains:
+        assertEquals(1, store.getSegmentCount());
+    }
+
+    @Test
+    public void shouldCompactMostlyDeadSegments() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(1500);
+        FileItem kept = createItem(fileItemFactory, data);
+        FileItem deleted = createItem(fileItemFactory, Random.bytes(8000));
+        deleted.delete();
+        long storedBefore = store.getStoredBytes();
+
+        // When
+        store.compact();
+
+        // Then
+        assertTrue(store.getRelocatedBytes() > 0);
+        assertTrue(store.getStoredBytes() < storedBefore);
+        assertArrayEquals(data, kept.get());
+    }
+
+    @Test
+    public void shouldReadWhileCompacting() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(1500);
+        FileItem kept = createItem(fileItemFactory, data);
+        createItem(fileItemFactory, Random.bytes(8000)).delete();
+        InputStream input = kept.getInputStream();
+
+        // When
+        store.compact();
+
+        // Then
+        try {
+            assertArrayEquals(data, IOUtils.toByteArray(input));
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void shouldWriteItemToFile() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(2000);
+        FileItem item = createItem(fileItemFactory, data);
+        File file = File.createTempFile("segment", ".test");
+
+        // When
+        try {
+            item.write(file);
+
+            // Then
+            assertArrayEquals(data, FileUtils.readFileToByteArray(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Keys;
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.util.FileItemHeadersImpl;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that items whose size is declared in their headers are
+ * held in a single buffer of that size.
+ */
+public class SizeHintTest {
+
+    @Test
+    public void shouldHoldDeclaredSizeInOneBuffer() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(3000);
+        EncryptedFileItem item = createItem(String.valueOf(data.length));
+
+        // When
+        write(item, data);
+
+        // Then
+        assertEquals(1, item.getBuffers().size());
+        assertEquals(data.length, item.getBuffers().get(0).capacity());
+        assertArrayEquals(data, item.get());
+    }
+
+    @Test
+    public void shouldReturnBufferWithoutCopying() throws Exception {
+
+        // Given
+        EncryptedDeferredOutputStream stream = newStream();
+        stream.setSizeHint(100);
+        stream.write(Random.bytes(100));
+        stream.close();
+
+        // When
+        byte[] first = stream.getData();
+        byte[] second = stream.getData();
+
+        // Then
+        assertSame(first, second);
+    }
+
+    @Test
+    public void shouldCopyWhenDeclaredSizeIsWrong() throws Exception {
+
+        // Given
+        EncryptedDeferredOutputStream stream = newStream();
+        stream.setSizeHint(100);
+        byte[] data = Random.bytes(150);
+        stream.write(data);
+        stream.close();
+
+        // When
+        byte[] result = stream.getData();
+
+        // Then
+        assertArrayEquals(data, result);
+        assertNotSame(result, stream.getData());
+    }
+
+    @Test
+    public void shouldIgnoreDeclaredSizeAboveThreshold() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem("100000");
+        byte[] data = Random.bytes(100);
+
+        // When
+        write(item, data);
+
+        // Then
+        assertEquals(0, ((EncryptedDeferredOutputStream) item.getOutputStream()).getSizeHint());
+        assertArrayEquals(data, item.get());
+    }
+
+    @Test
+    public void shouldIgnoreInvalidDeclaredSize() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem("lots");
+        byte[] data = Random.bytes(100);
+
+        // When
+        write(item, data);
+
+        // Then
+        List<ByteBuffer> buffers = item.getBuffers();
+        assertEquals(1, buffers.size());
+        assertArrayEquals(data, item.get());
+    }
+
+    private EncryptedDeferredOutputStream newStream() {
+        return new EncryptedDeferredOutputStream(1000, new File("unused"), Keys.newSecretKey());
+    }
+
+    private EncryptedFileItem createItem(String contentLength) {
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(10240, null);
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        FileItemHeadersImpl headers = new FileItemHeadersImpl();
+        headers.addHeader("Content-Length", contentLength);
+        item.setHeaders(headers);
+        return (EncryptedFileItem) item;
+    }
+
+    private void write(FileItem item, byte[] data) throws Exception {
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+    }
+}
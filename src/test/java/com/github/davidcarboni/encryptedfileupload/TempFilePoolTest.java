@@ -0,0 +1,119 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that spilled items reuse files from a {@link TempFilePool}.
+ */
+public class TempFilePoolTest {
+
+    private TempFilePool pool;
+    private EncryptedFileItemFactory fileItemFactory;
+
+    @Before
+    public void setUp() {
+        pool = new TempFilePool(null, 2);
+        fileItemFactory = new EncryptedFileItemFactory();
+        fileItemFactory.setTempFilePool(pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void shouldReuseFileOfDeletedItem() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(fileItemFactory.getSizeThreshold() + 1);
+        FileItem first = createItem(fileItemFactory, data);
+        File file = ((EncryptedFileItem) first).getTempFile();
+
+        // When
+        first.delete();
+        FileItem second = createItem(fileItemFactory, data);
+
+        // Then
+        assertEquals(file, ((EncryptedFileItem) second).getTempFile());
+        assertArrayEquals(data, second.get());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0.5, pool.getHitRate(), 0);
+        second.delete();
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void shouldNotReuseFileWhileBeingRead() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(fileItemFactory.getSizeThreshold() * 2);
+        FileItem first = createItem(fileItemFactory, data);
+        File file = ((EncryptedFileItem) first).getTempFile();
+        InputStream in = first.getInputStream();
+        byte[] start = new byte[100];
+        IOUtils.readFully(in, start);
+
+        // When
+        first.delete();
+        FileItem second = createItem(fileItemFactory, Random.bytes(data.length));
+
+        // Then
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        read.write(start);
+        IOUtils.copy(in, read);
+        in.close();
+        assertArrayEquals(data, read.toByteArray());
+        assertNotEquals(file, ((EncryptedFileItem) second).getTempFile());
+        assertEquals(0, pool.getReturnCount());
+        assertEquals(1, pool.getDiscardCount());
+        second.delete();
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldNotReadDataOnceDeleted() throws Exception {
+
+        // Given
+        byte[] data = Random.bytes(fileItemFactory.getSizeThreshold() + 1);
+        FileItem item = createItem(fileItemFactory, data);
+
+        // When
+        item.delete();
+
+        // Then
+        assertNull(item.get());
+    }
+
+    @Test
+    public void shouldPrefillAndDiscardBeyondCapacity() throws Exception {
+
+        // Given
+        pool.prefill(5);
+        File extra = EncryptedFileItem.newTempFile(null);
+        assertTrue(extra.createNewFile());
+
+        // When
+        pool.release(extra);
+
+        // Then
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(1, pool.getDiscardCount());
+        assertFalse(extra.exists());
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Random;
+import org.apache.commons.io.FileCleaningTracker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that temporary files are unlinked in the background by a
+ * reaper.
+ */
+public class TempFileReaperTest {
+
+    private EncryptedFileItemFactory fileItemFactory;
+    private TempFileReaper tempFileReaper;
+
+    @Before
+    public void setUp() {
+        fileItemFactory = new EncryptedFileItemFactory(10, null);
+        tempFileReaper = new TempFileReaper(2, 4);
+        fileItemFactory.setTempFileReaper(tempFileReaper);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        tempFileReaper.close(1000);
+    }
+
+    @Test
+    public void shouldUnlinkDeletedFiles() throws Exception {
+
+        // Given
+        List<File> files = new ArrayList<File>();
+        List<EncryptedFileItem> items = new ArrayList<EncryptedFileItem>();
+        for (int i = 0; i < 20; i++) {
+            EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+            items.add(item);
+            files.add(item.getStoreLocation());
+        }
+
+        // When
+        for (EncryptedFileItem item : items) {
+            item.delete();
+        }
+        awaitDeleted(20);
+
+        // Then
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+        assertEquals(0, tempFileReaper.getBacklog());
+        assertEquals(0, tempFileReaper.getFailureCount());
+        assertTrue(tempFileReaper.getBatchCount() >= 5);
+        assertTrue(tempFileReaper.getMaxLatencyMillis() >= tempFileReaper.getMeanLatencyMillis());
+    }
+
+    @Test
+    public void shouldQueueFileOnce() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        item.delete();
+
+        // When
+        item.delete();
+        awaitDeleted(1);
+
+        // Then
+        assertEquals(1, tempFileReaper.getDeletedCount());
+    }
+
+    @Test
+    public void shouldUnlinkOnCallingThreadWhenClosed() throws Exception {
+
+        // Given
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        File file = item.getStoreLocation();
+        tempFileReaper.close(1000);
+
+        // When
+        item.delete();
+
+        // Then
+        assertFalse(file.exists());
+        assertEquals(1, tempFileReaper.getDeletedCount());
+    }
+
+    @Test
+    public void shouldUnlinkOnCallingThreadWhenQueueFull() throws Exception {
+
+        // Given
+        TempFileReaper full = new TempFileReaper(1, 4, 0);
+        fileItemFactory.setTempFileReaper(full);
+        EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+        File file = item.getStoreLocation();
+
+        // When
+        item.delete();
+
+        // Then
+        assertFalse(file.exists());
+        assertEquals(1, full.getFallbackCount());
+        assertEquals(0, full.getBacklog());
+        full.close(1000);
+    }
+
+    @Test
+    public void shouldDrainQueueOnClose() throws Exception {
+
+        // Given
+        tempFileReaper.registerShutdownHook();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 10; i++) {
+            EncryptedFileItem item = createItem(fileItemFactory, Random.bytes(100));
+            files.add(item.getStoreLocation());
+            item.delete();
+        }
+
+        // When
+        tempFileReaper.close(1000);
+
+        // Then
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+        assertEquals(0, tempFileReaper.getBacklog());
+    }
+
+    @Test
+    public void shouldNotTrackItemsWithReaper() throws Exception {
+
+        // Given
+        FileCleaningTracker tracker = new FileCleaningTracker();
+        fileItemFactory.setFileCleaningTracker(tracker);
+
+        // When
+        createItem(fileItemFactory, Random.bytes(100)).delete();
+
+        // Then
+        assertEquals(0, tracker.getTrackCount());
+        tracker.exitWhenFinished();
+    }
+
+    private void awaitDeleted(long count) throws InterruptedException {
+        for (int i = 0; i < 100 && tempFileReaper.getDeletedCount() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, tempFileReaper.getDeletedCount());
+    }
+}
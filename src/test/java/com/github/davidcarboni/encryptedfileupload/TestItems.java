@@ -0,0 +1,52 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import org.apache.commons.fileupload.FileItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixtures shared by the tests: items written in one go, and multipart
+ * request bodies to parse.
+ */
+final class TestItems {
+
+    private TestItems() {
+        // Static methods only
+    }
+
+    /**
+     * Creates a file item and writes the given data to it.
+     *
+     * @param fileItemFactory The factory to create the item.
+     * @param data            The content of the item.
+     * @return The item, closed.
+     * @throws IOException if the data cannot be written.
+     */
+    static EncryptedFileItem createItem(EncryptedFileItemFactory fileItemFactory, byte[] data) throws IOException {
+        FileItem item = fileItemFactory.createItem("test", "application/octet-stream", false, "test.bin");
+        item.getOutputStream().write(data);
+        item.getOutputStream().close();
+        return (EncryptedFileItem) item;
+    }
+
+    /**
+     * Builds a multipart request body holding one file, named "foo.bin" in a
+     * field named "file", with the boundary of
+     * {@link FileUploadTestCase#CONTENT_TYPE}.
+     *
+     * @param data The content of the file.
+     * @return The request body.
+     * @throws IOException if the body cannot be built.
+     */
+    static byte[] multipart(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("-----1234\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"foo.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n").getBytes("US-ASCII"));
+        out.write(data);
+        out.write("\r\n-----1234--\r\n".getBytes("US-ASCII"));
+        return out.toByteArray();
+    }
+}
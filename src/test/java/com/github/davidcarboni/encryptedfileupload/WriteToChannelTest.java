@@ -0,0 +1,120 @@
+package com.github.davidcarboni.encryptedfileupload;
+
+import com.github.davidcarboni.cryptolite.Keys;
+import com.github.davidcarboni.cryptolite.Random;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+
+import static com.github.davidcarboni.encryptedfileupload.TestItems.createItem;
+import static org.junit.Assert.*;
+
+
+/**
+ * Test to confirm that items and streams decrypt their content when writing
+ * it to a channel or output stream.
+ */
+public class WriteToChannelTest {
+
+    @Test
+    public void shouldDecryptSpilledItemIntoChannel() throws Exception {
+
+        // Given
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory();
+        byte[] data = Random.bytes(Decryptor.BLOCK_SIZE * 2 + 5);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        long written = item.writeTo(Channels.newChannel(out));
+
+        // Then
+        assertEquals(data.length, written);
+        assertArrayEquals(data, out.toByteArray());
+        item.delete();
+    }
+
+    @Test
+    public void shouldDecryptThroughArenaChunks() throws Exception {
+
+        // Given
+        BufferArena arena = new BufferArena(1024, 8, 8192);
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(100, null);
+        fileItemFactory.setBufferArena(arena);
+        byte[] data = Random.bytes(10000);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        long written = item.writeTo(Channels.newChannel(out));
+
+        // Then
+        assertEquals(data.length, written);
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, arena.getInUseCount());
+        assertEquals(2, arena.getFreeCount());
+        item.delete();
+    }
+
+    @Test
+    public void shouldWriteInMemoryItemIntoChannel() throws Exception {
+
+        // Given
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory();
+        byte[] data = Random.bytes(100);
+        EncryptedFileItem item = createItem(fileItemFactory, data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        long written = item.writeTo(Channels.newChannel(out));
+
+        // Then
+        assertEquals(data.length, written);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void shouldDecryptSegmentStoreItemIntoChannel() throws Exception {
+
+        // Given
+        SegmentStore store = new SegmentStore(null, 8192, 1024, 0);
+        EncryptedFileItemFactory fileItemFactory = new EncryptedFileItemFactory(16, null);
+        fileItemFactory.setSegmentStore(store);
+        byte[] data = Random.bytes(20000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        try {
+            createItem(fileItemFactory, data).writeTo(Channels.newChannel(out));
+        } finally {
+            store.close();
+        }
+
+        // Then
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void shouldDecryptStreamIntoOutputStream() throws Exception {
+
+        // Given
+        File file = EncryptedFileItem.newTempFile(null);
+        EncryptedDeferredOutputStream stream = new EncryptedDeferredOutputStream(16, file, Keys.newSecretKey());
+        byte[] data = Random.bytes(1000);
+        stream.write(data);
+        stream.close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        try {
+            stream.writeTo(out);
+        } finally {
+            file.delete();
+        }
+
+        // Then
+        assertArrayEquals(data, out.toByteArray());
+    }
+}